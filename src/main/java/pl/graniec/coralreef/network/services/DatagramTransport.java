@@ -0,0 +1,237 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.services.datagram.DatagramFrame;
+import pl.graniec.coralreef.network.services.datagram.SequenceFilter;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * Datagram channel of a {@link ServiceServer}, used by unreliable
+ * services next to the reliable connections.
+ * <p>
+ * A connection gets a random token over the reliable channel. The
+ * client binds its datagram address by sending the token here. Every
+ * later datagram must carry the token and come from that address.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class DatagramTransport implements Runnable {
+
+	/** Datagram side of a single connection */
+	class Peer {
+		/** Secret of the connection */
+		final long token;
+		/** Reliable side of the connection */
+		final ServiceServer.ClientHandler handler;
+		/** Drops late datagrams from the client */
+		final SequenceFilter sequenceFilter = new SequenceFilter();
+		/** Sequence of next datagram to the client */
+		private final AtomicInteger nextSequence = new AtomicInteger();
+		/** Address of the client, <code>null</code> until bound */
+		volatile SocketAddress address;
+		
+		public Peer(long token, ServiceServer.ClientHandler handler) {
+			this.token = token;
+			this.handler = handler;
+		}
+		
+		/**
+		 * Sends the packet as a datagram.
+		 * 
+		 * @return <code>false</code> if client is not bound yet or
+		 * the packet is too big, so it must go the reliable way.
+		 * @throws NotSerializableException When packet data cannot
+		 * be serialized.
+		 */
+		boolean send(ServiceDataPacket packet) throws NotSerializableException {
+			final SocketAddress currentAddress = address;
+			
+			if (currentAddress == null) {
+				return false;
+			}
+			
+			final byte[] bytes;
+			
+			try {
+				bytes = new DatagramFrame(DatagramFrame.DATA, token, nextSequence.getAndIncrement(), packet).encode();
+			} catch (IOException e) {
+				throw new NotSerializableException(e.getMessage());
+			}
+			
+			if (bytes.length > DatagramFrame.MAX_SIZE) {
+				return false;
+			}
+			
+			try {
+				socket.send(new DatagramPacket(bytes, bytes.length, currentAddress));
+			} catch (IOException e) {
+				// datagrams may be lost anyway
+				logger.fine("cannot send datagram to " + currentAddress + ": " + e.getMessage());
+			}
+			
+			return true;
+		}
+	}
+	
+	private static final Logger logger = Logger.getLogger(DatagramTransport.class.getName());
+	
+	/** Server that receives the datagrams */
+	private final ServiceServer server;
+	/** Socket of the channel */
+	private final DatagramSocket socket;
+	/** Peers by token */
+	private final Map/*<Long, Peer>*/ peers = new HashMap();
+	/** Source of tokens */
+	private final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * Opens the channel on <code>port</code>, <code>0</code> for any
+	 * free port, and starts the receiving thread.
+	 */
+	public DatagramTransport(ServiceServer server, int port) throws SocketException {
+		this.server = server;
+		
+		socket = new DatagramSocket(port);
+		
+		final Thread thread = new Thread(this, "ServiceServer datagrams " + socket.getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Creates a peer with a new token for connection of <code>handler</code>.
+	 */
+	public synchronized Peer newPeer(ServiceServer.ClientHandler handler) {
+		Long token;
+		
+		do {
+			token = Long.valueOf(random.nextLong());
+		} while (peers.containsKey(token));
+		
+		final Peer peer = new Peer(token.longValue(), handler);
+		peers.put(token, peer);
+		
+		return peer;
+	}
+	
+	public synchronized void removePeer(Peer peer) {
+		peers.remove(Long.valueOf(peer.token));
+	}
+	
+	private synchronized Peer getPeer(long token) {
+		return (Peer) peers.get(Long.valueOf(token));
+	}
+	
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+	
+	/**
+	 * Closes the socket, the receiving thread ends.
+	 */
+	public void close() {
+		socket.close();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		final byte[] buffer = new byte[DatagramFrame.MAX_SIZE];
+		final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		
+		while (!socket.isClosed()) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.fine("cannot receive datagram: " + e.getMessage());
+				}
+				continue;
+			}
+			
+			try {
+				handleFrame(buffer, datagram.getOffset(), datagram.getLength(), datagram.getSocketAddress());
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.fine("malformed datagram from " + datagram.getSocketAddress() + ": " + e.getMessage());
+				}
+			} catch (RuntimeException e) {
+				logger.warning("cannot handle datagram from " + datagram.getSocketAddress() + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the token and the address of the sender before the packet
+	 * is deserialized.
+	 */
+	private void handleFrame(byte[] buffer, int offset, int length, SocketAddress from) throws IOException {
+		final DatagramFrame frame = DatagramFrame.decodeHeader(buffer, offset, length);
+		final Peer peer = getPeer(frame.getToken());
+		
+		if (peer == null) {
+			logger.fine("datagram with unknown token from " + from);
+			return;
+		}
+		
+		if (frame.getKind() == DatagramFrame.BIND) {
+			peer.address = from;
+			
+			final byte[] ack = new DatagramFrame(DatagramFrame.BIND_ACK, peer.token, 0, null).encode();
+			socket.send(new DatagramPacket(ack, ack.length, from));
+			return;
+		}
+		
+		if (frame.getKind() != DatagramFrame.DATA || !from.equals(peer.address)) {
+			return;
+		}
+		
+		final ServiceDataPacket packet = DatagramFrame.decodePacket(buffer, offset, length);
+		
+		if (peer.sequenceFilter.accept(packet.getServiceId(), frame.getSequence())) {
+			server.notifyDatagramReceived(peer.handler, packet);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid of square cells that indexes circular areas of
+ * interest. Every area is registered in each cell that its bounding
+ * box overlaps, so looking up who is interested in a point needs
+ * to check only the areas of a single cell.
+ * <p>
+ * Moving an area that stays within the same cells costs only the
+ * coordinates update. Otherwise only the cells that differ between
+ * old and new position are touched.
+ * <p>
+ * Areas spanning more than {@link #MAX_CELL_SPAN} cells in any
+ * direction are not linked to cells at all. They are kept on a
+ * separate list that is checked on every lookup.
+ * <p>
+ * This class is not thread safe.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class InterestGrid {
+
+	/** Single area of interest */
+	private static class Area {
+		/** Owner of this area */
+		final Object owner;
+		/** Center and radius */
+		float x, y, radius;
+		/** Range of cells that this area is registered in */
+		int minCellX, minCellY, maxCellX, maxCellY;
+		/** Area is on the wide areas list instead of cells */
+		boolean wide;
+		
+		public Area(Object owner) {
+			this.owner = owner;
+		}
+		
+		boolean covers(float px, float py) {
+			final float dx = px - x;
+			final float dy = py - y;
+			return dx * dx + dy * dy <= radius * radius;
+		}
+	}
+	
+	/** Maximum number of cells an area can span in each direction */
+	public static final int MAX_CELL_SPAN = 64;
+	
+	/** Cell indexes are clamped to this absolute value */
+	private static final int CELL_LIMIT = 1 << 30;
+	
+	/** Width and height of a single cell */
+	private float cellSize;
+	
+	/** Non-empty cells */
+	private final Map/*<Long, List<Area>>*/ cells = new HashMap();
+	/** Areas too big to be linked to cells */
+	private final List/*<Area>*/ wideAreas = new ArrayList();
+	/** Areas by their owners */
+	private final Map/*<Object, Area>*/ areas = new HashMap();
+	
+	public InterestGrid(float cellSize) {
+		checkCellSize(cellSize);
+		
+		this.cellSize = cellSize;
+	}
+	
+	/**
+	 * Registers or moves the area of interest of <code>owner</code>.
+	 * 
+	 * @param owner Owner of the area.
+	 * @param x Horizontal position of area center.
+	 * @param y Vertical position of area center.
+	 * @param radius Radius of the area.
+	 * 
+	 * @throws IllegalArgumentException When radius is negative or any
+	 * of the values is not finite.
+	 */
+	public void update(Object owner, float x, float y, float radius) {
+		if (Float.isNaN(x) || Float.isInfinite(x) || Float.isNaN(y) || Float.isInfinite(y)) {
+			throw new IllegalArgumentException("area center must be finite");
+		}
+		
+		if (!(radius >= 0) || Float.isInfinite(radius)) {
+			throw new IllegalArgumentException("radius must be finite and not negative");
+		}
+		
+		Area area = (Area) areas.get(owner);
+		
+		final int minCellX = cell(x - radius);
+		final int minCellY = cell(y - radius);
+		final int maxCellX = cell(x + radius);
+		final int maxCellY = cell(y + radius);
+		
+		if (area == null) {
+			area = new Area(owner);
+			areas.put(owner, area);
+			
+			link(area, minCellX, minCellY, maxCellX, maxCellY);
+		}
+		else if (area.wide || isWide(minCellX, minCellY, maxCellX, maxCellY)) {
+			if (!area.wide || !isWide(minCellX, minCellY, maxCellX, maxCellY)) {
+				unlink(area);
+				link(area, minCellX, minCellY, maxCellX, maxCellY);
+			}
+		}
+		else if (area.minCellX != minCellX || area.minCellY != minCellY
+				|| area.maxCellX != maxCellX || area.maxCellY != maxCellY) {
+			
+			// remove from cells that are no longer covered
+			for (int cx = area.minCellX; cx <= area.maxCellX; ++cx) {
+				for (int cy = area.minCellY; cy <= area.maxCellY; ++cy) {
+					if (cx < minCellX || cx > maxCellX || cy < minCellY || cy > maxCellY) {
+						unlink(area, cx, cy);
+					}
+				}
+			}
+			
+			// add to cells that weren't covered before
+			for (int cx = minCellX; cx <= maxCellX; ++cx) {
+				for (int cy = minCellY; cy <= maxCellY; ++cy) {
+					if (cx < area.minCellX || cx > area.maxCellX || cy < area.minCellY || cy > area.maxCellY) {
+						cellAreas(cx, cy, true).add(area);
+					}
+				}
+			}
+		}
+		
+		area.x = x;
+		area.y = y;
+		area.radius = radius;
+		area.minCellX = minCellX;
+		area.minCellY = minCellY;
+		area.maxCellX = maxCellX;
+		area.maxCellY = maxCellY;
+	}
+	
+	/**
+	 * Removes the area of interest of <code>owner</code>.
+	 * 
+	 * @return <code>true</code> if there was an area to remove.
+	 */
+	public boolean remove(Object owner) {
+		final Area area = (Area) areas.remove(owner);
+		
+		if (area == null) {
+			return false;
+		}
+		
+		unlink(area);
+		
+		return true;
+	}
+	
+	/**
+	 * Removes all areas.
+	 */
+	public void clear() {
+		cells.clear();
+		wideAreas.clear();
+		areas.clear();
+	}
+	
+	/**
+	 * Finds owners of all areas that cover the point.
+	 * 
+	 * @param x Horizontal position of the point.
+	 * @param y Vertical position of the point.
+	 * @param result List that owners will be added to.
+	 */
+	public void query(float x, float y, List result) {
+		final List cellAreas = cellAreas(cell(x), cell(y), false);
+		
+		if (cellAreas != null) {
+			query(cellAreas, x, y, result);
+		}
+		
+		query(wideAreas, x, y, result);
+	}
+	
+	private static void query(List areas, float x, float y, List result) {
+		Area area;
+		for (int i = 0, size = areas.size(); i < size; ++i) {
+			area = (Area) areas.get(i);
+			
+			if (area.covers(x, y)) {
+				result.add(area.owner);
+			}
+		}
+	}
+	
+	/**
+	 * Changes the cell size. All registered areas are indexed again.
+	 */
+	public void setCellSize(float cellSize) {
+		checkCellSize(cellSize);
+		
+		this.cellSize = cellSize;
+		
+		cells.clear();
+		wideAreas.clear();
+		
+		Area area;
+		for (final Iterator itor = areas.values().iterator(); itor.hasNext();) {
+			area = (Area) itor.next();
+			link(area, cell(area.x - area.radius), cell(area.y - area.radius),
+					cell(area.x + area.radius), cell(area.y + area.radius));
+		}
+	}
+	
+	/**
+	 * @return the cellSize
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+	
+	/**
+	 * @return Number of registered areas.
+	 */
+	public int size() {
+		return areas.size();
+	}
+	
+	private static void checkCellSize(float cellSize) {
+		if (!(cellSize > 0) || Float.isInfinite(cellSize)) {
+			throw new IllegalArgumentException("cell size must be positive and finite");
+		}
+	}
+	
+	private int cell(float coordinate) {
+		// clamped far from integer limits so cell loops cannot overflow
+		final double cell = Math.floor((double) coordinate / cellSize);
+		return (int) Math.max(-CELL_LIMIT, Math.min(CELL_LIMIT, cell));
+	}
+	
+	private static boolean isWide(int minCellX, int minCellY, int maxCellX, int maxCellY) {
+		return (long) maxCellX - minCellX >= MAX_CELL_SPAN || (long) maxCellY - minCellY >= MAX_CELL_SPAN;
+	}
+	
+	private void link(Area area, int minCellX, int minCellY, int maxCellX, int maxCellY) {
+		area.wide = isWide(minCellX, minCellY, maxCellX, maxCellY);
+		
+		if (area.wide) {
+			wideAreas.add(area);
+		} else {
+			for (int cx = minCellX; cx <= maxCellX; ++cx) {
+				for (int cy = minCellY; cy <= maxCellY; ++cy) {
+					cellAreas(cx, cy, true).add(area);
+				}
+			}
+		}
+		
+		area.minCellX = minCellX;
+		area.minCellY = minCellY;
+		area.maxCellX = maxCellX;
+		area.maxCellY = maxCellY;
+	}
+	
+	private void unlink(Area area) {
+		if (area.wide) {
+			wideAreas.remove(area);
+			return;
+		}
+		
+		for (int cx = area.minCellX; cx <= area.maxCellX; ++cx) {
+			for (int cy = area.minCellY; cy <= area.maxCellY; ++cy) {
+				unlink(area, cx, cy);
+			}
+		}
+	}
+	
+	private void unlink(Area area, int cx, int cy) {
+		final Long key = cellKey(cx, cy);
+		final List cellAreas = (List) cells.get(key);
+		
+		if (cellAreas == null) {
+			return;
+		}
+		
+		cellAreas.remove(area);
+		
+		if (cellAreas.isEmpty()) {
+			cells.remove(key);
+		}
+	}
+	
+	private List cellAreas(int cx, int cy, boolean create) {
+		final Long key = cellKey(cx, cy);
+		List cellAreas = (List) cells.get(key);
+		
+		if (cellAreas == null && create) {
+			cellAreas = new ArrayList();
+			cells.put(key, cellAreas);
+		}
+		
+		return cellAreas;
+	}
+	
+	private static Long cellKey(int cx, int cy) {
+		return Long.valueOf(((long) cx << 32) | (cy & 0xffffffffL));
+	}
+}
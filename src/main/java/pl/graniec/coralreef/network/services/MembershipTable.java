@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.BitSet;
+
+/**
+ * Compact store of clients' memberships in services.
+ * <p>
+ * Clients get dense slot numbers, reused after they leave, and
+ * services get dense indices. Every service keeps a bit set of its
+ * clients' slots and every client a bit set of its services' indices,
+ * so a membership costs two bits instead of map entries.
+ * <p>
+ * This class is not thread-safe.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class MembershipTable {
+
+	private static final Object[] EMPTY = new Object[0];
+	
+	/** Clients by slot */
+	private Object[] clients = new Object[16];
+	/** Services of clients by slot, <code>null</code> until first join */
+	private BitSet[] clientServices = new BitSet[16];
+	/** Slots that are not used below <code>slotCount</code> */
+	private int[] freeSlots = new int[16];
+	/** Number of free slots */
+	private int freeCount;
+	/** Number of slots ever used */
+	private int slotCount;
+	
+	/** Services by index */
+	private Object[] services = new Object[4];
+	/** Clients of services by index */
+	private BitSet[] serviceClients = new BitSet[4];
+	/** Number of service indices ever used */
+	private int serviceCount;
+	/** Indices of removed services below <code>serviceCount</code> */
+	private int[] freeIndices = new int[4];
+	/** Number of free indices */
+	private int freeIndexCount;
+	
+	/**
+	 * Assigns a slot to <code>client</code>.
+	 * 
+	 * @return Slot number.
+	 */
+	public int addClient(Object client) {
+		final int slot;
+		
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			if (slotCount == clients.length) {
+				clients = grow(clients, slotCount * 2);
+				
+				final BitSet[] newClientServices = new BitSet[slotCount * 2];
+				System.arraycopy(clientServices, 0, newClientServices, 0, slotCount);
+				clientServices = newClientServices;
+			}
+			
+			slot = slotCount++;
+		}
+		
+		clients[slot] = client;
+		return slot;
+	}
+	
+	/**
+	 * Frees the slot of a client and removes it from all its services.
+	 * 
+	 * @return Services that client has joined.
+	 */
+	public Object[] removeClient(int slot) {
+		final Object[] joined = getServices(slot);
+		final BitSet bits = clientServices[slot];
+		
+		if (bits != null) {
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				serviceClients[i].clear(slot);
+			}
+		}
+		
+		clients[slot] = null;
+		clientServices[slot] = null;
+		
+		if (freeCount == freeSlots.length) {
+			final int[] newFreeSlots = new int[freeCount * 2];
+			System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+			freeSlots = newFreeSlots;
+		}
+		
+		freeSlots[freeCount++] = slot;
+		
+		return joined;
+	}
+	
+	/**
+	 * Assigns an index to <code>service</code>.
+	 * 
+	 * @return Service index.
+	 */
+	public int addService(Object service) {
+		if (freeIndexCount > 0) {
+			final int index = freeIndices[--freeIndexCount];
+			
+			services[index] = service;
+			return index;
+		}
+		
+		if (serviceCount == services.length) {
+			services = grow(services, serviceCount * 2);
+			
+			final BitSet[] newServiceClients = new BitSet[serviceCount * 2];
+			System.arraycopy(serviceClients, 0, newServiceClients, 0, serviceCount);
+			serviceClients = newServiceClients;
+		}
+		
+		services[serviceCount] = service;
+		serviceClients[serviceCount] = new BitSet();
+		
+		return serviceCount++;
+	}
+	
+	/**
+	 * Adds client of <code>slot</code> to service of <code>index</code>.
+	 * 
+	 * @return <code>false</code> if client was already there.
+	 */
+	public boolean join(int slot, int index) {
+		if (isMember(slot, index)) {
+			return false;
+		}
+		
+		if (clientServices[slot] == null) {
+			clientServices[slot] = new BitSet(serviceCount);
+		}
+		
+		clientServices[slot].set(index);
+		serviceClients[index].set(slot);
+		
+		return true;
+	}
+	
+	/**
+	 * Removes client of <code>slot</code> from service of <code>index</code>.
+	 * 
+	 * @return <code>false</code> if client wasn't there.
+	 */
+	public boolean leave(int slot, int index) {
+		if (!isMember(slot, index)) {
+			return false;
+		}
+		
+		clientServices[slot].clear(index);
+		serviceClients[index].clear(slot);
+		
+		return true;
+	}
+	
+	public boolean isMember(int slot, int index) {
+		return serviceClients[index].get(slot);
+	}
+	
+	/**
+	 * @return Services that client of <code>slot</code> has joined.
+	 */
+	public Object[] getServices(int slot) {
+		final BitSet bits = clientServices[slot];
+		
+		if (bits == null) {
+			return EMPTY;
+		}
+		
+		final Object[] result = new Object[bits.cardinality()];
+		
+		int counter = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			result[counter++] = services[i];
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return Clients of service of <code>index</code>.
+	 */
+	public Object[] getClients(int index) {
+		final BitSet bits = serviceClients[index];
+		final Object[] result = new Object[bits.cardinality()];
+		
+		int counter = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			result[counter++] = clients[i];
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Removes all clients from service of <code>index</code>.
+	 * 
+	 * @return Removed clients.
+	 */
+	public Object[] removeClients(int index) {
+		final Object[] removed = getClients(index);
+		final BitSet bits = serviceClients[index];
+		
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			clientServices[i].clear(index);
+		}
+		
+		bits.clear();
+		
+		return removed;
+	}
+	
+	/**
+	 * Removes all clients from service of <code>index</code> and frees
+	 * the index for another service.
+	 * 
+	 * @return Removed clients.
+	 */
+	public Object[] removeService(int index) {
+		final Object[] removed = removeClients(index);
+		
+		services[index] = null;
+		
+		if (freeIndexCount == freeIndices.length) {
+			final int[] newFreeIndices = new int[freeIndexCount * 2];
+			System.arraycopy(freeIndices, 0, newFreeIndices, 0, freeIndexCount);
+			freeIndices = newFreeIndices;
+		}
+		
+		freeIndices[freeIndexCount++] = index;
+		
+		return removed;
+	}
+	
+	/**
+	 * @return Number of clients of service of <code>index</code>.
+	 */
+	public int getClientCount(int index) {
+		return serviceClients[index].cardinality();
+	}
+	
+	private static Object[] grow(Object[] array, int length) {
+		final Object[] newArray = new Object[length];
+		System.arraycopy(array, 0, newArray, 0, array.length);
+		return newArray;
+	}
+}
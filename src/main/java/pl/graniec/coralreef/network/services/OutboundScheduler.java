@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacketPool;
+
+/**
+ * Outbound queue of a single client connection shared by all services.
+ * <p>
+ * Control packets are always sent first. Then services are served by
+ * strict priority and, within the same priority, by deficit round
+ * robin: every turn a service may send frames worth
+ * <code>weight * {@link #QUANTUM}</code> bytes. This way a bulk
+ * transfer service cannot starve the others.
+ * <p>
+ * There is no writer thread. The thread that queues a frame when
+ * nobody else is sending becomes the sender and sends until the
+ * queue is empty. Other threads only queue their frames and return,
+ * so the frames can be interleaved fairly.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class OutboundScheduler {
+
+	/** Queued packet */
+	static class Frame {
+		/** Packet to send */
+		final Object packet;
+		/** Cost in bytes, estimated if not known */
+		final int cost;
+		/** Service client that sent it, <code>null</code> for control packets */
+		final ServiceRemoteClient sender;
+		/** Pool to return the packet to, <code>null</code> if not pooled */
+		final ServiceDataPacketPool pool;
+		
+		public Frame(Object packet, ServiceRemoteClient sender, ServiceDataPacketPool pool) {
+			this.packet = packet;
+			this.sender = sender;
+			this.pool = pool;
+			
+			cost = cost(packet);
+		}
+		
+		/** Called when the frame is sent or dropped */
+		void done() {
+			if (sender != null) {
+				sender.notifySent();
+			}
+			
+			if (pool != null) {
+				pool.release((ServiceDataPacket) packet);
+			}
+		}
+	}
+	
+	/** Frames of a single service */
+	private static class ServiceQueue {
+		final Service service;
+		final LinkedList/*<Frame>*/ frames = new LinkedList();
+		/** Bytes that can be sent in current turn */
+		int deficit;
+		/** Has the current turn started */
+		boolean inTurn;
+		
+		public ServiceQueue(Service service) {
+			this.service = service;
+		}
+	}
+	
+	private static final Logger logger = Logger.getLogger(OutboundScheduler.class.getName());
+	
+	/** Bytes that a service of weight 1 can send in one turn */
+	static final int QUANTUM = 1500;
+	/** Estimated size of frames whose size is not known */
+	static final int DEFAULT_FRAME_COST = 256;
+	
+	/** Connection of this scheduler */
+	private final RemoteClient remoteClient;
+	
+	/** Control packets */
+	private final LinkedList/*<Frame>*/ control = new LinkedList();
+	/** Queues of services */
+	private final Map/*<Service, ServiceQueue>*/ queues = new HashMap();
+	/** Non-empty service queues in round robin order by priority */
+	private final TreeMap/*<Integer, LinkedList<ServiceQueue>>*/ levels = new TreeMap();
+	/** Is some thread sending right now */
+	private boolean sending;
+	
+	public OutboundScheduler(RemoteClient remoteClient) {
+		this.remoteClient = remoteClient;
+	}
+	
+	/**
+	 * Queues a control packet before all service frames and sends
+	 * the queue if nobody else is sending.
+	 */
+	public void sendControl(Object packet) {
+		queueControl(packet);
+		drain();
+	}
+	
+	/**
+	 * Queues a control packet before all service frames without
+	 * sending it. Used under locks that sending must not hold up,
+	 * {@link #flush()} sends it after they are released.
+	 */
+	public synchronized void queueControl(Object packet) {
+		control.addLast(new Frame(packet, null, null));
+	}
+	
+	/**
+	 * Sends the queue if nobody else is sending.
+	 */
+	public void flush() {
+		drain();
+	}
+	
+	/**
+	 * Queues a frame of <code>service</code> and sends the queue
+	 * if nobody else is sending.
+	 */
+	public void send(Service service, Frame frame) {
+		synchronized (this) {
+			ServiceQueue queue = (ServiceQueue) queues.get(service);
+			
+			if (queue == null) {
+				queue = new ServiceQueue(service);
+				queues.put(service, queue);
+			}
+			
+			if (queue.frames.isEmpty()) {
+				activeQueues(service.getPriority()).addLast(queue);
+			}
+			
+			queue.frames.addLast(frame);
+		}
+		
+		drain();
+	}
+	
+	/**
+	 * Drops all queued frames.
+	 */
+	public void clear() {
+		final LinkedList dropped = new LinkedList();
+		
+		synchronized (this) {
+			dropped.addAll(control);
+			control.clear();
+			
+			for (final Iterator itor = queues.values().iterator(); itor.hasNext();) {
+				dropped.addAll(((ServiceQueue) itor.next()).frames);
+			}
+			
+			queues.clear();
+			levels.clear();
+		}
+		
+		for (final Iterator itor = dropped.iterator(); itor.hasNext();) {
+			((Frame) itor.next()).done();
+		}
+	}
+	
+	/**
+	 * @return Number of queued frames.
+	 */
+	public synchronized int size() {
+		int size = control.size();
+		
+		for (final Iterator itor = queues.values().iterator(); itor.hasNext();) {
+			size += ((ServiceQueue) itor.next()).frames.size();
+		}
+		
+		return size;
+	}
+	
+	private void drain() {
+		Frame frame;
+		
+		synchronized (this) {
+			if (sending) {
+				return;
+			}
+			
+			sending = true;
+		}
+		
+		while (true) {
+			synchronized (this) {
+				frame = next();
+				
+				if (frame == null) {
+					sending = false;
+					return;
+				}
+			}
+			
+			try {
+				remoteClient.send(frame.packet);
+			} catch (NetworkException e) {
+				logger.fine("cannot send " + frame.packet + " to " + remoteClient + ": " + e.getMessage());
+			} catch (Exception e) {
+				logger.warning("cannot send " + frame.packet + " to " + remoteClient + ": " + e);
+			} finally {
+				frame.done();
+			}
+		}
+	}
+	
+	/** Takes the next frame to send, must be called with lock held */
+	private Frame next() {
+		if (!control.isEmpty()) {
+			return (Frame) control.removeFirst();
+		}
+		
+		if (levels.isEmpty()) {
+			return null;
+		}
+		
+		final Integer priority = (Integer) levels.lastKey();
+		final LinkedList ring = (LinkedList) levels.get(priority);
+		
+		ServiceQueue queue;
+		Frame head;
+		
+		while (true) {
+			queue = (ServiceQueue) ring.getFirst();
+			
+			if (!queue.inTurn) {
+				queue.deficit += QUANTUM * Math.max(1, queue.service.getWeight());
+				queue.inTurn = true;
+			}
+			
+			head = (Frame) queue.frames.getFirst();
+			
+			if (head.cost <= queue.deficit) {
+				queue.deficit -= head.cost;
+				queue.frames.removeFirst();
+				
+				if (queue.frames.isEmpty()) {
+					queue.deficit = 0;
+					queue.inTurn = false;
+					ring.removeFirst();
+					
+					if (ring.isEmpty()) {
+						levels.remove(priority);
+					}
+				}
+				
+				return head;
+			}
+			
+			// turn is over, next service
+			queue.inTurn = false;
+			ring.removeFirst();
+			ring.addLast(queue);
+		}
+	}
+	
+	private LinkedList activeQueues(int priority) {
+		final Integer key = Integer.valueOf(priority);
+		LinkedList ring = (LinkedList) levels.get(key);
+		
+		if (ring == null) {
+			ring = new LinkedList();
+			levels.put(key, ring);
+		}
+		
+		return ring;
+	}
+	
+	/**
+	 * Estimates the size of a packet.
+	 */
+	static int cost(Object packet) {
+		if (packet instanceof ServiceDataPacket) {
+			final ServiceDataPacket dataPacket = (ServiceDataPacket) packet;
+			
+			if (dataPacket.isEncoded()) {
+				return dataPacket.getPayload().length;
+			}
+			
+			if (dataPacket.getData() instanceof byte[]) {
+				return ((byte[]) dataPacket.getData()).length;
+			}
+		}
+		
+		if (packet instanceof ServiceChunkPacket) {
+			return ((ServiceChunkPacket) packet).getData().length;
+		}
+		
+		return DEFAULT_FRAME_COST;
+	}
+}
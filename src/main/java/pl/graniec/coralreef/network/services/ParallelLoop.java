@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs {@link #run(Object)} for every item of an array, splitting the
+ * work between available processors. Used to notify listeners about
+ * many clients at once, so the items must be independent and the
+ * listeners thread safe.
+ * <p>
+ * An exception thrown for one item is logged and doesn't stop
+ * processing of the others.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+abstract class ParallelLoop {
+
+	private static final Logger logger = Logger.getLogger(ParallelLoop.class.getName());
+	
+	/** Minimal number of items worth starting a new thread */
+	private static final int MIN_ITEMS_PER_THREAD = 256;
+	
+	/**
+	 * Processes a single item.
+	 */
+	protected abstract void run(Object item);
+	
+	/**
+	 * Processes all items and returns when all of them are done.
+	 */
+	public void execute(final Object[] items) {
+		final int threads = Math.max(1, Math.min(
+				Runtime.getRuntime().availableProcessors(),
+				items.length / MIN_ITEMS_PER_THREAD));
+		
+		final int chunk = (items.length + threads - 1) / threads;
+		final Thread[] workers = new Thread[threads - 1];
+		
+		for (int t = 1; t < threads; ++t) {
+			final int from = t * chunk;
+			final int to = Math.min(items.length, from + chunk);
+			
+			workers[t - 1] = new Thread("ParallelLoop-" + t) {
+				public void run() {
+					runRange(items, from, to);
+				}
+			};
+			
+			workers[t - 1].start();
+		}
+		
+		// first chunk goes on current thread
+		runRange(items, 0, Math.min(items.length, chunk));
+		
+		for (int i = 0; i < workers.length; ++i) {
+			try {
+				workers[i].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private void runRange(Object[] items, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			try {
+				run(items[i]);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "failed to process " + items[i], e);
+			}
+		}
+	}
+}
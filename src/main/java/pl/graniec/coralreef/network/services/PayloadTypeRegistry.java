@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * Maps payload classes to small integer type ids and their
+ * {@link PayloadSerializer}s. Payloads of registered classes are sent
+ * as the type id followed by fields written by the serializer, instead
+ * of Java serialization with full class descriptors.
+ * <p>
+ * Both sides of the connection must register the same classes under
+ * the same ids. Payloads of classes that are not registered are
+ * still sent with Java serialization.
+ * <p>
+ * Registry of a {@link Service} falls back to the registry of its
+ * {@link ServiceServer}, so common types can be registered once.
+ * Lookups don't take any lock, registration copies the tables.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PayloadTypeRegistry {
+
+	/** Highest type id */
+	public static final int MAX_TYPE_ID = Short.MAX_VALUE;
+	
+	/** Encode buffers of threads, shared by all registries */
+	private static final ThreadLocal/*<PayloadEncoder>*/ encoders = new ThreadLocal() {
+		protected Object initialValue() {
+			return new PayloadEncoder();
+		}
+	};
+	
+	/** Registry consulted when type is not found here */
+	private final PayloadTypeRegistry parent;
+	
+	/** Type ids by classes */
+	private volatile Map/*<Class, Integer>*/ typeIds = new HashMap();
+	/** Serializers by type ids */
+	private volatile Map/*<Integer, PayloadSerializer>*/ serializers = new HashMap();
+	
+	public PayloadTypeRegistry() {
+		this(null);
+	}
+	
+	/**
+	 * @param parent Registry consulted when type is not found here.
+	 */
+	public PayloadTypeRegistry(PayloadTypeRegistry parent) {
+		this.parent = parent;
+	}
+	
+	/**
+	 * Registers a payload class.
+	 * 
+	 * @param typeId Type id from <code>0</code> to {@link #MAX_TYPE_ID}.
+	 * @param type Payload class. Subclasses are not matched.
+	 * @param serializer Serializer of the class.
+	 * 
+	 * @throws IllegalArgumentException When type id or class is
+	 * already registered.
+	 */
+	public synchronized void register(int typeId, Class type, PayloadSerializer serializer) {
+		if (typeId < 0 || typeId > MAX_TYPE_ID) {
+			throw new IllegalArgumentException("type id out of range: " + typeId);
+		}
+		
+		final Integer key = Integer.valueOf(typeId);
+		
+		if (serializers.containsKey(key)) {
+			throw new IllegalArgumentException("type id " + typeId + " already registered");
+		}
+		
+		if (typeIds.containsKey(type)) {
+			throw new IllegalArgumentException("class " + type.getName() + " already registered");
+		}
+		
+		final Map newTypeIds = new HashMap(typeIds);
+		final Map newSerializers = new HashMap(serializers);
+		
+		newTypeIds.put(type, key);
+		newSerializers.put(key, serializer);
+		
+		typeIds = newTypeIds;
+		serializers = newSerializers;
+	}
+	
+	/**
+	 * @return Type id of <code>payload</code> class or <code>-1</code>
+	 * if it's not registered.
+	 */
+	public int getTypeId(Object payload) {
+		if (payload == null) {
+			return -1;
+		}
+		
+		final Integer typeId = (Integer) typeIds.get(payload.getClass());
+		
+		if (typeId != null) {
+			return typeId.intValue();
+		}
+		
+		return parent != null ? parent.getTypeId(payload) : -1;
+	}
+	
+	/**
+	 * @return Serializer of <code>typeId</code> or <code>null</code>
+	 * if it's not registered.
+	 */
+	public PayloadSerializer getSerializer(int typeId) {
+		final PayloadSerializer serializer = (PayloadSerializer) serializers.get(Integer.valueOf(typeId));
+		
+		if (serializer != null) {
+			return serializer;
+		}
+		
+		return parent != null ? parent.getSerializer(typeId) : null;
+	}
+	
+	/**
+	 * Creates a data packet for <code>payload</code>. Registered payloads
+	 * are written with their serializers, others are left for Java
+	 * serialization.
+	 */
+	public ServiceDataPacket encode(int serviceId, Object payload) throws IOException {
+		final int typeId = getTypeId(payload);
+		
+		if (typeId < 0) {
+			return new ServiceDataPacket(serviceId, payload);
+		}
+		
+		return new ServiceDataPacket(serviceId, typeId, write(typeId, payload));
+	}
+	
+	/**
+	 * Writes fields of <code>payload</code> with serializer of <code>typeId</code>.
+	 */
+	public byte[] write(int typeId, Object payload) throws IOException {
+		final PayloadSerializer serializer = getSerializer(typeId);
+		
+		if (serializer == null) {
+			throw new IOException("unknown payload type id " + typeId);
+		}
+		
+		PayloadEncoder encoder = (PayloadEncoder) encoders.get();
+		
+		if (encoder.busy) {
+			// serializer writes a nested payload
+			encoder = new PayloadEncoder();
+		}
+		
+		encoder.reset();
+		encoder.busy = true;
+		
+		try {
+			serializer.write(payload, encoder.out);
+			encoder.out.flush();
+			
+			return encoder.toByteArray();
+		} finally {
+			encoder.busy = false;
+		}
+	}
+	
+	/**
+	 * Provides the payload of <code>packet</code>, reading it with
+	 * the registered serializer if needed.
+	 */
+	public Object decode(ServiceDataPacket packet) throws IOException {
+		if (packet.getTypeId() == ServiceDataPacket.TYPE_SERIALIZED) {
+			return packet.getData();
+		}
+		
+		return read(packet.getTypeId(), packet.getPayload());
+	}
+	
+	/**
+	 * Reads a payload written with serializer of <code>typeId</code>.
+	 */
+	public Object read(int typeId, byte[] payload) throws IOException {
+		final PayloadSerializer serializer = getSerializer(typeId);
+		
+		if (serializer == null) {
+			throw new IOException("unknown payload type id " + typeId);
+		}
+		
+		return serializer.read(new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+	
+	/**
+	 * Buffer that a thread writes payloads into. Only the final copy
+	 * of written bytes is allocated for every payload.
+	 */
+	private static class PayloadEncoder extends ByteArrayOutputStream {
+		
+		/** Stream writing into this buffer */
+		final DataOutputStream out = new DataOutputStream(this);
+		/** Is a payload being written */
+		boolean busy;
+		
+		public PayloadEncoder() {
+			super(64);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+/**
+ * Token bucket limit of packets that clients can send to a service.
+ * <p>
+ * The bucket is refilled with <code>rate</code> tokens per second and
+ * can hold up to <code>burst</code> tokens. Every data packet takes one
+ * token. When there is no token left then the <code>policy</code> decides
+ * what happens with the packet.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class RateLimit {
+
+	/** Packets over the limit are dropped */
+	public static final int DROP = 0;
+	/**
+	 * Packets over the limit are held back and delivered on the server
+	 * timer thread after a token becomes available, or dropped if that
+	 * takes longer than the max delay. Receiving doesn't wait for them.
+	 */
+	public static final int DELAY = 1;
+	/**
+	 * Client that exceeds the limit is disconnected from the service.
+	 * Applies to limits of single clients, packets over the limit of
+	 * the whole service are dropped.
+	 */
+	public static final int DISCONNECT = 2;
+	
+	/** Default maximum delay of {@link #DELAY} policy, 100 ms */
+	public static final long DEFAULT_MAX_DELAY = 100;
+	
+	/** Tokens per second */
+	private final double rate;
+	/** Bucket capacity */
+	private final int burst;
+	/** Overflow policy */
+	private final int policy;
+	/** Longest delay of a packet in milliseconds */
+	private final long maxDelay;
+	
+	/**
+	 * @param rate Number of packets per second.
+	 * @param burst Number of packets that can be received at once.
+	 * @param policy One of {@link #DROP}, {@link #DELAY} or {@link #DISCONNECT}.
+	 */
+	public RateLimit(double rate, int burst, int policy) {
+		this(rate, burst, policy, DEFAULT_MAX_DELAY);
+	}
+	
+	/**
+	 * @param rate Number of packets per second.
+	 * @param burst Number of packets that can be received at once.
+	 * @param policy One of {@link #DROP}, {@link #DELAY} or {@link #DISCONNECT}.
+	 * @param maxDelay Longest time in milliseconds that {@link #DELAY}
+	 * policy holds a packet, packets that would wait longer are dropped.
+	 */
+	public RateLimit(double rate, int burst, int policy, long maxDelay) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("rate must be positive");
+		}
+		
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		
+		if (policy != DROP && policy != DELAY && policy != DISCONNECT) {
+			throw new IllegalArgumentException("unknown policy: " + policy);
+		}
+		
+		if (maxDelay < 0) {
+			throw new IllegalArgumentException("max delay must not be negative");
+		}
+		
+		this.rate = rate;
+		this.burst = burst;
+		this.policy = policy;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @return the rate
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return the burst
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * @return the policy
+	 */
+	public int getPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * @return the maxDelay
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return "RateLimit[rate=" + rate + ", burst=" + burst + ", policy=" + policy + ", maxDelay=" + maxDelay + "]";
+	}
+}
@@ -28,17 +28,32 @@
  */
 package pl.graniec.coralreef.network.services;
 
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import pl.graniec.coralreef.network.DisconnectReason;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.ConnectionListener;
 import pl.graniec.coralreef.network.server.RemoteClient;
 import pl.graniec.coralreef.network.server.Server;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinResponsePacket;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
@@ -46,8 +61,32 @@ import pl.graniec.coralreef.network.server.Server;
  */
 public class Service implements Server {
 
+	/** Delivery of a data packet on dispatch thread */
+	private class Delivery implements Runnable {
+		final ServiceRemoteClient client;
+		final ServiceDataPacket packet;
+		
+		public Delivery(ServiceRemoteClient client, ServiceDataPacket packet) {
+			this.client = client;
+			this.packet = packet;
+		}
+		
+		public void run() {
+			deliver(client, packet);
+		}
+	}
+
 	private static final Logger logger = Logger.getLogger(Service.class.getName());
 	
+	/** Default cell size of area of interest grid */
+	public static final float DEFAULT_INTEREST_CELL_SIZE = 64.0f;
+	
+	/** Default retry-after hint for rejected joins in milliseconds */
+	public static final int DEFAULT_RETRY_AFTER = 1000;
+	
+	/** Default time in nanoseconds that halves the listener latency without new samples */
+	public static final long DEFAULT_LATENCY_HALF_LIFE = 1000000000L;
+	
 	/** Parent server */
 	private final ServiceServer parent;
 	
@@ -56,27 +95,130 @@ public class Service implements Server {
 	/** Connection listeners */
 	private final Set connectionListeners = new HashSet();
 	
-	/** Connected remote clients */
+	/**
+	 * Service clients created so far. They are created on demand, so
+	 * clients that were never needed here don't have one. Membership
+	 * itself is kept by {@link ServiceServer}.
+	 */
 	private final Map/*<RemoteClient, ServiceRemoteClient>*/ remoteClients = new HashMap();
+	/** Index in membership table of the server */
+	private int index;
+	
+	/** Payload types of this service */
+	private final PayloadTypeRegistry payloadTypes;
+	/** Payload codec, <code>null</code> if payload types are used */
+	private final ServiceCodec codec;
+	/** Thread that decodes and delivers packets, <code>null</code> if done on transport thread */
+	private final ServiceDispatcher dispatcher;
+	
+	/** Does this service accept new clients */
+	private volatile boolean open = true;
+	
+	/** Listener of requests from clients */
+	private volatile RequestListener requestListener;
+	
+	/** Limit of packets from every single client */
+	private volatile RateLimit clientRateLimit;
+	/** Bucket of the limit of packets from all clients together, <code>null</code> if not limited */
+	private volatile TokenBucket serviceBucket;
+	/** Number of packets that exceeded the rate limits */
+	private final AtomicLong rateLimitHits = new AtomicLong();
+	
+	/** Credits granted to every client, <code>0</code> if there is no flow control */
+	private volatile int flowWindow;
+	/** Number of credits granted to clients */
+	private final AtomicLong grantedCredits = new AtomicLong();
+	/** Number of data packets dropped because client had no credits */
+	private final AtomicLong creditViolations = new AtomicLong();
 	
-	Service(ServiceServer parent, int id) {
+	/** Are data packets sent over the reliable connection */
+	private volatile boolean reliable = true;
+	
+	/** Outbound priority, higher is sent first */
+	private volatile int priority;
+	/** Outbound share among services of the same priority */
+	private volatile int weight = 1;
+	
+	/** Maximum number of clients, <code>0</code> if not limited */
+	private volatile int capacity;
+	/** Dispatcher queue depth that rejects joins, <code>0</code> if not checked */
+	private volatile int maxQueueDepth;
+	/** Average listener time in nanoseconds that rejects joins, <code>0</code> if not checked */
+	private volatile long maxListenerLatency;
+	/** Average time of packet listeners in nanoseconds */
+	private volatile long listenerLatency;
+	/** When the last listener latency sample was taken */
+	private volatile long listenerLatencyTime = System.nanoTime();
+	/** Time in nanoseconds that halves the listener latency without new samples */
+	volatile long latencyHalfLife = DEFAULT_LATENCY_HALF_LIFE;
+	/** Retry-after hint in milliseconds sent with rejected joins */
+	private volatile int retryAfter = DEFAULT_RETRY_AFTER;
+	/** Number of rejected joins */
+	private final AtomicLong rejectedJoins = new AtomicLong();
+	
+	/** Inputs waiting for next tick, <code>null</code> if not in tick mode */
+	private volatile ConcurrentLinkedQueue/*<ServiceInput>*/ tickQueue;
+	/** Listener of ticks */
+	private volatile TickListener tickListener;
+	/** Timer of this service that runs ticks, <code>null</code> if not in tick mode */
+	private Timer tickTimer;
+	/** Thread that runs current tick, <code>null</code> between ticks */
+	private volatile Thread tickThread;
+	/** Number of next tick */
+	private long tickNumber;
+	/** Clients that were sent packets during current tick */
+	private final List/*<ServiceRemoteClient>*/ tickRecipients = new ArrayList();
+	/** Guards starting and stopping of ticks */
+	private final Object tickLock = new Object();
+	/** Held while a tick runs, so ticks of old and new timer don't overlap */
+	private final Object tickRunLock = new Object();
+	
+	/** Areas of interest of connected clients */
+	private final InterestGrid interestGrid = new InterestGrid(DEFAULT_INTEREST_CELL_SIZE);
+	
+	Service(ServiceServer parent, int id, ServiceCodec codec) {
 		this.parent = parent;
 		this.id = id;
+		this.codec = codec;
+		
+		payloadTypes = new PayloadTypeRegistry(parent.getPayloadTypes());
+		dispatcher = codec != null ? new ServiceDispatcher("Service " + id + " dispatcher") : null;
 	}
 	
 	/* (non-Javadoc)
 	 * @see pl.graniec.coralreef.network.server.Server#addConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
 	 */
 	public boolean addConnectionListener(ConnectionListener l) {
-		return connectionListeners.add(l);
+		synchronized (connectionListeners) {
+			return connectionListeners.add(l);
+		}
 	}
 
-	/* (non-Javadoc)
-	 * @see pl.graniec.coralreef.network.server.Server#close()
+	/**
+	 * Closes the service and disconnects all its clients at once.
+	 * 
+	 * @see #close(long)
 	 */
 	public void close() {
-		// TODO Auto-generated method stub
-
+		close(0);
+	}
+	
+	/**
+	 * Closes the service. All clients are removed from the service in
+	 * one step. Then, after packets that are being sent to them are
+	 * done or <code>drainTimeout</code> passes, connection listeners are
+	 * notified about disconnections in parallel threads.
+	 * <p>
+	 * Closed service doesn't accept new clients until it's opened again.
+	 * 
+	 * @param drainTimeout Maximum time in milliseconds to wait for
+	 * pending packets, <code>0</code> to not wait at all.
+	 */
+	public void close(long drainTimeout) {
+		open = false;
+		
+		parent.evictService(this, DisconnectReason.UserAction, "service closed",
+				System.currentTimeMillis() + drainTimeout);
 	}
 
 	/* (non-Javadoc)
@@ -90,25 +232,249 @@ public class Service implements Server {
 	 * @see pl.graniec.coralreef.network.server.Server#isOpen()
 	 */
 	public boolean isOpen() {
-		// TODO Auto-generated method stub
-		return false;
+		return open;
 	}
 
-	/* (non-Javadoc)
-	 * @see pl.graniec.coralreef.network.server.Server#open(int)
+	/**
+	 * Opens the service again after it was closed. Service is open when
+	 * it's created. The <code>port</code> is ignored, because all services
+	 * run on the port of their {@link ServiceServer}.
 	 */
 	public void open(int port) throws NetworkException {
-		// TODO Auto-generated method stub
-
+		open = true;
 	}
 
 	/* (non-Javadoc)
 	 * @see pl.graniec.coralreef.network.server.Server#removeConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
 	 */
 	public boolean removeConnectionListener(ConnectionListener l) {
-		// TODO Auto-generated method stub
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+
+	/**
+	 * Enables credit based flow control. Every client gets
+	 * <code>window</code> credits when it joins and every data packet
+	 * it sends takes one. Credits are granted back with
+	 * {@link ServiceCreditPacket} when listeners have handled half
+	 * of the window. Packets sent without credits are dropped.
+	 * <p>
+	 * This bounds the data buffered for a client, for example in the
+	 * dispatcher queue of a codec service, to <code>window</code> packets.
+	 * It applies to clients that join after the call.
+	 * 
+	 * @param window Credits of every client, <code>0</code> to disable.
+	 * @see ServiceCredits
+	 */
+	public void setFlowWindow(int window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("window must not be negative: " + window);
+		}
+		
+		flowWindow = window;
+	}
+	
+	/**
+	 * @return Credits of every client or <code>0</code> if there is no flow control.
+	 */
+	public int getFlowWindow() {
+		return flowWindow;
+	}
+	
+	/**
+	 * @return Number of credits granted to clients since this service was created.
+	 */
+	public long getGrantedCredits() {
+		return grantedCredits.get();
+	}
+	
+	/**
+	 * @return Number of data packets dropped because their senders had no credits.
+	 */
+	public long getCreditViolations() {
+		return creditViolations.get();
+	}
+	
+	void notifyCreditsGranted(int credits) {
+		grantedCredits.addAndGet(credits);
+	}
+	
+	/**
+	 * Takes a credit of flow controlled client.
+	 * 
+	 * @return <code>false</code> if packet must be dropped.
+	 */
+	private boolean takeCredit(ServiceRemoteClient client) {
+		if (!client.isFlowControlled() || client.takeCredit()) {
+			return true;
+		}
+		
+		creditViolations.incrementAndGet();
+		logger.fine("client " + client + " sent data to service " + id + " without credits");
+		
 		return false;
 	}
+	
+	/**
+	 * Marks this service as unreliable or reliable. Data sent by
+	 * unreliable service goes as datagrams to clients that have bound
+	 * the datagram channel. Such data can be lost and late datagrams
+	 * are dropped, but lost packets never delay the newer ones.
+	 * Data too big for a datagram and data to clients without datagram
+	 * channel is sent over the reliable connection. Requests and
+	 * responses are always reliable. Services are reliable by default.
+	 * 
+	 * @see ServiceServer#openDatagram(int)
+	 */
+	public void setReliable(boolean reliable) {
+		this.reliable = reliable;
+	}
+	
+	/**
+	 * @return <code>false</code> if data may be sent as datagrams.
+	 */
+	public boolean isReliable() {
+		return reliable;
+	}
+	
+	/**
+	 * Sets the outbound priority of this service. When outbound
+	 * scheduling is enabled, packets of services with higher priority
+	 * are always sent before packets of lower priority services that
+	 * share the connection. Default is <code>0</code>.
+	 * 
+	 * @see ServiceServer#setOutboundScheduling(boolean)
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+	
+	/**
+	 * @return Outbound priority of this service.
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Sets the outbound weight of this service. When outbound
+	 * scheduling is enabled, services of the same priority share
+	 * a connection in proportion to their weights. Default is <code>1</code>.
+	 * 
+	 * @see ServiceServer#setOutboundScheduling(boolean)
+	 */
+	public void setWeight(int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be positive: " + weight);
+		}
+		
+		this.weight = weight;
+	}
+	
+	/**
+	 * @return Outbound weight of this service.
+	 */
+	public int getWeight() {
+		return weight;
+	}
+	
+	/**
+	 * Provides the payload types registry of this service. Types not
+	 * found here are looked up in {@link ServiceServer#getPayloadTypes()}.
+	 */
+	public PayloadTypeRegistry getPayloadTypes() {
+		return payloadTypes;
+	}
+	
+	/**
+	 * @return Payload codec or <code>null</code> if Java serialization
+	 * and payload types are used.
+	 */
+	public ServiceCodec getCodec() {
+		return codec;
+	}
+	
+	int getIndex() {
+		return index;
+	}
+	
+	void setIndex(int index) {
+		this.index = index;
+	}
+	
+	/**
+	 * @return Server that this service runs on.
+	 */
+	ServiceServer getServer() {
+		return parent;
+	}
+	
+	/**
+	 * @return Clients connected to this service at the moment.
+	 */
+	public RemoteClient[] getClients() {
+		return parent.getServiceClients(this);
+	}
+	
+	/**
+	 * @return Number of clients connected to this service at the moment.
+	 */
+	public int getClientCount() {
+		return parent.getClientCount(this);
+	}
+	
+	/**
+	 * Provides the service client of <code>client</code>, creating
+	 * it if needed. Called by server with its lock held.
+	 */
+	ServiceRemoteClient getClient(RemoteClient client, ServiceServer.ClientHandler handler) {
+		synchronized (remoteClients) {
+			ServiceRemoteClient serviceRemoteClient = (ServiceRemoteClient) remoteClients.get(client);
+			
+			if (serviceRemoteClient == null) {
+				serviceRemoteClient = new ServiceRemoteClient(this, client, handler);
+				remoteClients.put(client, serviceRemoteClient);
+			}
+			
+			return serviceRemoteClient;
+		}
+	}
+	
+	/**
+	 * Finds the service client of <code>client</code>, asking the
+	 * server to create it if there is none yet.
+	 * 
+	 * @param event Profiling event started right before the call or <code>null</code>
+	 * @return Service client or <code>null</code> if client is not connected.
+	 */
+	private ServiceRemoteClient findClient(RemoteClient client, ServiceEvent event) {
+		final ServiceRemoteClient serviceRemoteClient;
+		
+		synchronized (remoteClients) {
+			if (event != null) {
+				event.addLockWait(System.nanoTime() - event.getStartTime());
+			}
+			
+			serviceRemoteClient = (ServiceRemoteClient) remoteClients.get(client);
+		}
+		
+		if (serviceRemoteClient != null) {
+			return serviceRemoteClient;
+		}
+		
+		return parent.getServiceClient(this, client);
+	}
+	
+	/**
+	 * @return <code>true</code> if there are connection listeners
+	 * that need service clients.
+	 */
+	private boolean hasConnectionListeners() {
+		synchronized (connectionListeners) {
+			return !connectionListeners.isEmpty();
+		}
+	}
 
 	/**
 	 * @return
@@ -130,8 +496,17 @@ public class Service implements Server {
 			serviceRemoteClient = (ServiceRemoteClient) remoteClients.remove(client);
 		}
 		
-		if (serviceRemoteClient == null) {
-			logger.severe("disconnected client " + client + " not on service " + this + " clients list");
+		if (serviceRemoteClient != null) {
+			synchronized (interestGrid) {
+				interestGrid.remove(serviceRemoteClient);
+			}
+			
+			serviceRemoteClient.notifyDisconnected();
+		} else if (hasConnectionListeners()) {
+			// client wasn't needed until now
+			serviceRemoteClient = new ServiceRemoteClient(this, client, null);
+			serviceRemoteClient.notifyDisconnected();
+		} else {
 			return;
 		}
 		
@@ -148,16 +523,19 @@ public class Service implements Server {
 	}
 
 	/**
+	 * Called by server with its lock held. Service client is created
+	 * only if there are listeners to notify.
+	 * 
 	 * @param client
 	 */
-	void notifyClientConnected(RemoteClient client) {
+	void notifyClientConnected(RemoteClient client, ServiceServer.ClientHandler handler) {
 		
-		ServiceRemoteClient serviceRemoteClient = new ServiceRemoteClient(parent, id, client);
-		
-		synchronized (remoteClients) {
-			remoteClients.put(client, serviceRemoteClient);
+		if (!hasConnectionListeners()) {
+			return;
 		}
 		
+		final ServiceRemoteClient serviceRemoteClient = getClient(client, handler);
+		
 		synchronized (connectionListeners) {
 			
 			ConnectionListener listener;
@@ -169,23 +547,875 @@ public class Service implements Server {
 		}
 	}
 
+	/**
+	 * Removes all clients from the service at once, waits until packets
+	 * sent to them are done and notifies listeners in parallel.
+	 * 
+	 * @param members Clients that were connected to the service.
+	 * @param deadline Time in milliseconds when waiting for pending
+	 * packets gives up.
+	 */
+	void evictAll(RemoteClient[] members, final int reason, final String reasonString, long deadline) {
+		final Map/*<RemoteClient, ServiceRemoteClient>*/ created;
+		
+		synchronized (remoteClients) {
+			created = new HashMap(remoteClients);
+			remoteClients.clear();
+		}
+		
+		synchronized (interestGrid) {
+			interestGrid.clear();
+		}
+		
+		final ConnectionListener[] listeners;
+		
+		synchronized (connectionListeners) {
+			listeners = (ConnectionListener[]) connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+		
+		final ServiceRemoteClient[] evicted;
+		
+		if (listeners.length == 0) {
+			evicted = (ServiceRemoteClient[]) created.values().toArray(new ServiceRemoteClient[created.size()]);
+		} else {
+			// listeners must hear about every client, not only those needed so far
+			evicted = new ServiceRemoteClient[members.length];
+			
+			for (int i = 0; i < members.length; ++i) {
+				evicted[i] = (ServiceRemoteClient) created.get(members[i]);
+				
+				if (evicted[i] == null) {
+					evicted[i] = new ServiceRemoteClient(this, members[i], null);
+				}
+			}
+		}
+		
+		if (evicted.length == 0) {
+			return;
+		}
+		
+		for (int i = 0; i < evicted.length; ++i) {
+			if (!evicted[i].awaitDrained(deadline)) {
+				logger.warning("pending packets of " + (evicted.length - i) + " clients of service " + id + " not drained in time");
+				break;
+			}
+		}
+		
+		new ParallelLoop() {
+			protected void run(Object item) {
+				final ServiceRemoteClient serviceRemoteClient = (ServiceRemoteClient) item;
+				
+				serviceRemoteClient.notifyDisconnected();
+				
+				for (int i = 0; i < listeners.length; ++i) {
+					listeners[i].clientDisconnected(serviceRemoteClient, reason, reasonString);
+				}
+			}
+		}.execute(evicted);
+	}
+
 	/**
 	 * @param sender
 	 * @param data
 	 */
-	public void notifyPacketReceived(RemoteClient sender, Object data) {
-		ServiceRemoteClient serviceRemoteClient;
+	public void notifyPacketReceived(RemoteClient sender, final Object data) {
+		final ServiceEvent event = parent.startEvent(ServiceEvent.DELIVERY, sender);
+		final ServiceRemoteClient serviceRemoteClient = findSender(sender, event);
+		final long delay = admit(serviceRemoteClient, true);
 		
-		synchronized (remoteClients) {
-			serviceRemoteClient = (ServiceRemoteClient) remoteClients.get(sender);
+		if (delay == 0) {
+			passData(serviceRemoteClient, data);
+		} else if (delay > 0) {
+			serviceRemoteClient.delay(new Runnable() {
+				public void run() {
+					passData(serviceRemoteClient, data);
+				}
+			}, delay);
+		}
+		
+		if (event != null) {
+			event.setServiceId(id);
+			event.setPayload(data);
+			parent.endEvent(event);
+		}
+	}
+	
+	/**
+	 * Delivers a data packet from <code>sender</code>. When service has
+	 * a codec then the payload is decoded and delivered on dispatch
+	 * thread, otherwise right away.
+	 * 
+	 * @param sender
+	 * @param packet
+	 */
+	void notifyPacketReceived(RemoteClient sender, final ServiceDataPacket packet) {
+		final ServiceEvent event = parent.startEvent(ServiceEvent.DELIVERY, sender);
+		final ServiceRemoteClient serviceRemoteClient = findSender(sender, event);
+		final long delay = admit(serviceRemoteClient, true);
+		
+		if (delay == 0) {
+			passPacket(serviceRemoteClient, packet);
+		} else if (delay > 0) {
+			serviceRemoteClient.delay(new Runnable() {
+				public void run() {
+					passPacket(serviceRemoteClient, packet);
+				}
+			}, delay);
+		}
+		
+		if (event != null) {
+			event.setServiceId(id);
+			event.setPayload(packet);
+			parent.endEvent(event);
+		}
+	}
+	
+	/**
+	 * Passes admitted data to the tick queue or packet listeners.
+	 */
+	private void passData(ServiceRemoteClient client, Object data) {
+		final ConcurrentLinkedQueue queue = tickQueue;
+		
+		if (queue != null) {
+			queue.add(new ServiceInput(client, data));
+			discardIfStopped(queue);
+		} else {
+			deliverData(client, data);
+		}
+	}
+	
+	/**
+	 * Passes admitted data packet to the tick queue, dispatch thread
+	 * or packet listeners.
+	 */
+	private void passPacket(ServiceRemoteClient client, ServiceDataPacket packet) {
+		final ConcurrentLinkedQueue queue = tickQueue;
+		
+		if (queue != null) {
+			// decoded on tick
+			queue.add(new ServiceInput(client, packet));
+			discardIfStopped(queue);
+		} else if (dispatcher != null) {
+			if (!dispatcher.dispatch(new Delivery(client, packet))) {
+				logger.warning("dispatch queue of service " + id + " is full, dropping packet from " + client);
+				client.notifyConsumed();
+			}
+		} else {
+			deliver(client, packet);
+		}
+	}
+	
+	private void deliver(ServiceRemoteClient client, ServiceDataPacket packet) {
+		final Object data;
+		
+		try {
+			data = decode(packet);
+		} catch (IOException e) {
+			logger.warning("cannot decode payload of type " + packet.getTypeId() + " from " + client + ": " + e.getMessage());
+			client.notifyConsumed();
+			return;
+		}
+		
+		deliverData(client, data);
+	}
+	
+	/**
+	 * Passes decoded data to packet listeners and measures how long
+	 * they take.
+	 */
+	private void deliverData(ServiceRemoteClient client, Object data) {
+		final long startTime = System.nanoTime();
+		
+		client.notifyPacketReceived(data);
+		client.notifyConsumed();
+		
+		sampleListenerLatency(startTime);
+	}
+	
+	private void sampleListenerLatency(long startTime) {
+		final long now = System.nanoTime();
+		
+		// moving average, concurrent updates may lose a sample
+		final long latency = getListenerLatency(now);
+		listenerLatency = latency + (now - startTime - latency) / 8;
+		listenerLatencyTime = now;
+	}
+	
+	/**
+	 * Ages the listener latency by time since the last sample, so
+	 * a service that went idle doesn't stay overloaded.
+	 */
+	private long getListenerLatency(long now) {
+		final long halves = (now - listenerLatencyTime) / latencyHalfLife;
+		
+		if (halves <= 0) {
+			return listenerLatency;
+		}
+		
+		return halves < 63 ? listenerLatency >> halves : 0;
+	}
+	
+	/**
+	 * Switches the service to tick mode. Received data is queued and
+	 * every <code>period</code> passed to <code>listener</code> at once
+	 * instead of packet listeners. Packets sent to a client during a
+	 * tick are sent together in one {@link ServiceBatchPacket}, so its
+	 * clients should unpack them with {@link ServiceBatchReceiver}.
+	 * <p>
+	 * Ticks run on a timer thread of this service, so slow ticks don't
+	 * delay other services or timed tasks of the server.
+	 * 
+	 * @param period Time between ticks in milliseconds.
+	 */
+	public void startTicks(long period, TickListener listener) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("period must be positive: " + period);
+		}
+		
+		synchronized (tickLock) {
+			stopTicks();
+			
+			final ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
+			
+			tickListener = listener;
+			tickQueue = queue;
+			tickTimer = new Timer("Service " + id + " ticks", true);
+			tickTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					runTick(queue);
+				}
+			}, period, period);
+		}
+	}
+	
+	/**
+	 * Leaves tick mode and stops the tick thread. Data queued for next
+	 * tick is dropped, but still counts as consumed for flow control.
+	 * A tick that is running right now is not waited for.
+	 */
+	public void stopTicks() {
+		synchronized (tickLock) {
+			if (tickTimer != null) {
+				tickTimer.cancel();
+				tickTimer = null;
+			}
+			
+			final ConcurrentLinkedQueue queue = tickQueue;
+			
+			tickQueue = null;
+			
+			if (queue != null) {
+				discardInputs(queue);
+			}
+		}
+	}
+	
+	/**
+	 * Discards inputs that were queued after ticks of
+	 * <code>queue</code> were stopped.
+	 */
+	private void discardIfStopped(ConcurrentLinkedQueue queue) {
+		if (tickQueue != queue) {
+			discardInputs(queue);
+		}
+	}
+	
+	/**
+	 * Drops all inputs of <code>queue</code> and gives back their credits.
+	 */
+	private void discardInputs(ConcurrentLinkedQueue queue) {
+		ServiceInput input;
+		while ((input = (ServiceInput) queue.poll()) != null) {
+			input.getClient().notifyConsumed();
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if service is in tick mode.
+	 */
+	public boolean isTicking() {
+		return tickQueue != null;
+	}
+	
+	/**
+	 * Passes queued inputs to the listener and sends what it has sent
+	 * to clients meanwhile.
+	 */
+	void runTick() {
+		runTick(tickQueue);
+	}
+	
+	/**
+	 * Runs a tick unless ticks of <code>queue</code> were stopped. Ticks
+	 * never overlap, so a tick of a timer that was replaced by
+	 * {@link #startTicks(long, TickListener)} while running finishes
+	 * before the first tick of the new timer.
+	 * 
+	 * @param queue Input queue of the timer that runs the tick.
+	 */
+	private void runTick(ConcurrentLinkedQueue queue) {
+		synchronized (tickRunLock) {
+			if (queue == null || queue != tickQueue) {
+				return;
+			}
+			
+			final TickListener listener = tickListener;
+			
+			final List/*<ServiceInput>*/ inputs = new ArrayList();
+			
+			ServiceInput input;
+			while ((input = (ServiceInput) queue.poll()) != null) {
+				if (input.getPacket() != null) {
+					try {
+						input.setData(decode(input.getPacket()));
+					} catch (IOException e) {
+						logger.warning("cannot decode payload of type " + input.getPacket().getTypeId() + " from " + input.getClient() + ": " + e.getMessage());
+						input.getClient().notifyConsumed();
+						continue;
+					}
+				}
+			
+				inputs.add(input);
+			}
+			
+			tickThread = Thread.currentThread();
+			
+			final long startTime = System.nanoTime();
+			
+			try {
+				listener.tick(tickNumber++, (ServiceInput[]) inputs.toArray(new ServiceInput[inputs.size()]));
+			} catch (RuntimeException e) {
+				// timer thread must survive
+				logger.log(Level.SEVERE, "tick of service " + id + " failed", e);
+			} finally {
+				tickThread = null;
+			}
+			
+			sampleListenerLatency(startTime);
+			
+			for (int i = 0; i < tickRecipients.size(); ++i) {
+				((ServiceRemoteClient) tickRecipients.get(i)).flushTick();
+			}
+			
+			tickRecipients.clear();
+			
+			for (int i = 0; i < inputs.size(); ++i) {
+				((ServiceInput) inputs.get(i)).getClient().notifyConsumed();
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if current thread runs a tick of this service.
+	 */
+	boolean isTickThread() {
+		return tickThread == Thread.currentThread();
+	}
+	
+	/**
+	 * Schedules a flush of packets sent to <code>client</code> at the
+	 * end of current tick. Called only on the tick thread.
+	 */
+	void notifyTickSend(ServiceRemoteClient client) {
+		tickRecipients.add(client);
+	}
+	
+	/**
+	 * Provides the payload of <code>packet</code>, decoding it if needed.
+	 */
+	Object decode(ServiceDataPacket packet) throws IOException {
+		if (packet.getTypeId() == ServiceDataPacket.TYPE_ENCODED) {
+			if (codec == null) {
+				throw new IOException("service " + id + " has no codec");
+			}
+			
+			return codec.decode(packet.getPayload());
 		}
 		
+		return payloadTypes.decode(packet);
+	}
+	
+	/**
+	 * Stops the dispatch thread after queued packets are delivered.
+	 */
+	void stopDispatcher() {
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+	
+	/**
+	 * @param sender
+	 * @param requestId
+	 * @param data
+	 */
+	void notifyRequestReceived(RemoteClient sender, final int requestId, final Object data) {
+		final ServiceRemoteClient serviceRemoteClient = findSender(sender, null);
+		final long delay = admit(serviceRemoteClient, false);
+		
+		if (delay == 0) {
+			passRequest(serviceRemoteClient, requestId, data);
+		} else if (delay > 0) {
+			serviceRemoteClient.delay(new Runnable() {
+				public void run() {
+					passRequest(serviceRemoteClient, requestId, data);
+				}
+			}, delay);
+		}
+	}
+	
+	private void passRequest(ServiceRemoteClient client, int requestId, Object data) {
+		final RequestListener listener = requestListener;
+		
+		if (listener == null) {
+			logger.warning("request from " + client + " to service " + id + " but there is no request listener");
+			return;
+		}
+		
+		listener.requestReceived(new ServiceRequest(client, requestId, data));
+	}
+	
+	/**
+	 * @param sender
+	 * @param requestId
+	 * @param data
+	 */
+	void notifyResponseReceived(RemoteClient sender, final int requestId, final Object data) {
+		final ServiceRemoteClient serviceRemoteClient = findSender(sender, null);
+		final long delay = admit(serviceRemoteClient, false);
+		
+		if (delay == 0) {
+			serviceRemoteClient.notifyResponseReceived(requestId, data);
+		} else if (delay > 0) {
+			serviceRemoteClient.delay(new Runnable() {
+				public void run() {
+					serviceRemoteClient.notifyResponseReceived(requestId, data);
+				}
+			}, delay);
+		}
+	}
+	
+	void notifyChunkReceived(RemoteClient sender, final ServiceChunkPacket packet) {
+		final ServiceRemoteClient serviceRemoteClient = findSender(sender, null);
+		final long delay = admit(serviceRemoteClient, false);
+		
+		if (delay == 0) {
+			serviceRemoteClient.notifyChunkReceived(packet);
+		} else if (delay > 0) {
+			serviceRemoteClient.delay(new Runnable() {
+				public void run() {
+					serviceRemoteClient.notifyChunkReceived(packet);
+				}
+			}, delay);
+		}
+	}
+	
+	/**
+	 * @param event Profiling event started right before the call or <code>null</code>
+	 * @return Service client of <code>sender</code> or <code>null</code>
+	 * if it's not a client of this service.
+	 */
+	private ServiceRemoteClient findSender(RemoteClient sender, ServiceEvent event) {
+		final ServiceRemoteClient serviceRemoteClient = findClient(sender, event);
+		
 		if (serviceRemoteClient == null) {
 			logger.severe("client " + sender + " not on service " + this + " clients list");
-			return;
 		}
 		
-		serviceRemoteClient.notifyPacketReceived(data);
+		return serviceRemoteClient;
+	}
+	
+	/**
+	 * Takes a credit and checks the rate limits. Packets dropped by
+	 * the rate limits count as consumed, so their credits are granted
+	 * back. Packets of a client that has packets held back by
+	 * {@link RateLimit#DELAY} policy are held back too, to keep them
+	 * in order.
+	 * 
+	 * @param client Sender or <code>null</code> if not known.
+	 * @param credited <code>true</code> if packet is flow controlled.
+	 * @return <code>-1</code> if packet should be dropped, <code>0</code>
+	 * if it should be passed on now, otherwise nanoseconds to hold it back.
+	 */
+	private long admit(ServiceRemoteClient client, boolean credited) {
+		if (client == null || (credited && !takeCredit(client))) {
+			return -1;
+		}
+		
+		final long delay = checkRateLimits(client);
+		
+		if (delay < 0) {
+			if (credited) {
+				client.notifyConsumed();
+			}
+			return -1;
+		}
+		
+		return delay > 0 || !client.isDelaying() ? delay : 1;
+	}
+	
+	/**
+	 * Decides if a client may join this service now.
+	 * 
+	 * @param clientCount Number of clients of this service.
+	 * @return <code>0</code> if client may join or one of
+	 * <code>ServiceJoinResponsePacket.REASON_</code> constants.
+	 */
+	int checkAdmission(int clientCount) {
+		int reason = 0;
+		
+		if (!open) {
+			return ServiceJoinResponsePacket.REASON_CLOSED;
+		}
+		
+		final int currentCapacity = capacity;
+		final int currentMaxQueueDepth = maxQueueDepth;
+		final long currentMaxListenerLatency = maxListenerLatency;
+		
+		if (currentCapacity > 0 && clientCount >= currentCapacity) {
+			reason = ServiceJoinResponsePacket.REASON_FULL;
+		} else if (currentMaxQueueDepth > 0 && dispatcher != null && dispatcher.getQueueDepth() >= currentMaxQueueDepth) {
+			reason = ServiceJoinResponsePacket.REASON_OVERLOADED;
+		} else if (currentMaxListenerLatency > 0 && getListenerLatency(System.nanoTime()) >= currentMaxListenerLatency) {
+			reason = ServiceJoinResponsePacket.REASON_OVERLOADED;
+		}
+		
+		if (reason != 0) {
+			rejectedJoins.incrementAndGet();
+		}
+		
+		return reason;
+	}
+	
+	/**
+	 * Sets the maximum number of clients. Joins above it are rejected
+	 * with {@link ServiceJoinResponsePacket#REASON_FULL}.
+	 * 
+	 * @param capacity Maximum clients or <code>0</code> to not limit them.
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		}
+		
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Sets the load above which joins are rejected with
+	 * {@link ServiceJoinResponsePacket#REASON_OVERLOADED}, so that
+	 * a surge of new clients doesn't make it worse for the connected ones.
+	 * 
+	 * @param maxQueueDepth Packets waiting on the dispatch thread of a
+	 * codec service, <code>0</code> to not check it.
+	 * @param maxListenerLatency Average time in nanoseconds that packet
+	 * listeners take, <code>0</code> to not check it. In tick mode it's
+	 * the time of the tick listener. The average halves every
+	 * {@link #DEFAULT_LATENCY_HALF_LIFE} without new packets.
+	 */
+	public void setLoadLimits(int maxQueueDepth, long maxListenerLatency) {
+		if (maxQueueDepth < 0 || maxListenerLatency < 0) {
+			throw new IllegalArgumentException("load limits must not be negative");
+		}
+		
+		this.maxQueueDepth = maxQueueDepth;
+		this.maxListenerLatency = maxListenerLatency;
+	}
+	
+	/**
+	 * @return the maxQueueDepth
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+	
+	/**
+	 * @return the maxListenerLatency
+	 */
+	public long getMaxListenerLatency() {
+		return maxListenerLatency;
+	}
+	
+	/**
+	 * @return Average time in nanoseconds that packet listeners take,
+	 * aged by time since the last packet.
+	 */
+	public long getListenerLatency() {
+		return getListenerLatency(System.nanoTime());
+	}
+	
+	/**
+	 * @return Number of packets waiting on the dispatch thread,
+	 * always <code>0</code> if service has no codec.
+	 */
+	public int getQueueDepth() {
+		return dispatcher != null ? dispatcher.getQueueDepth() : 0;
+	}
+	
+	/**
+	 * Sets how long clients are told to wait before joining again
+	 * after their join was rejected. Clients get up to half of it
+	 * more at random, so they don't come back all at once.
+	 * 
+	 * @param millis Hint in milliseconds.
+	 */
+	public void setRetryAfter(int millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("retry after must not be negative: " + millis);
+		}
+		
+		retryAfter = millis;
+	}
+	
+	/**
+	 * @return the retryAfter
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+	
+	/**
+	 * @return Number of joins rejected because service was full or
+	 * overloaded.
+	 */
+	public long getRejectedJoins() {
+		return rejectedJoins.get();
+	}
+	
+	/**
+	 * Sets the listener that will handle requests sent by clients
+	 * of this service. Clients' requests are dropped when there
+	 * is no listener.
+	 * 
+	 * @param listener Listener or <code>null</code> to remove it.
+	 */
+	public void setRequestListener(RequestListener listener) {
+		requestListener = listener;
+	}
+	
+	/**
+	 * @return the requestListener
+	 */
+	public RequestListener getRequestListener() {
+		return requestListener;
+	}
+	
+	/**
+	 * Takes tokens from the client and service buckets. A token is
+	 * taken from the client bucket only if the service bucket lets
+	 * the packet through too. Delays longer than the max delay of the
+	 * limit drop the packet instead.
+	 * 
+	 * @return <code>-1</code> if packet should be dropped, otherwise
+	 * nanoseconds that it should be held back.
+	 */
+	private long checkRateLimits(ServiceRemoteClient client) {
+		final TokenBucket clientBucket = client.getRateLimitBucket(clientRateLimit);
+		final TokenBucket currentServiceBucket = serviceBucket;
+		final long now = System.nanoTime();
+		
+		final long clientWait = takeToken(clientBucket, now);
+		
+		if (clientWait < 0) {
+			rateLimitExceeded(client, clientBucket.getLimit(), true);
+			return -1;
+		}
+		
+		final long serviceWait = takeToken(currentServiceBucket, now);
+		
+		if (serviceWait < 0) {
+			if (clientBucket != null) {
+				clientBucket.refund();
+			}
+			
+			rateLimitExceeded(client, currentServiceBucket.getLimit(), false);
+			return -1;
+		}
+		
+		if (clientWait > 0 || serviceWait > 0) {
+			rateLimitHits.incrementAndGet();
+			client.notifyRateLimitHit();
+		}
+		
+		return Math.max(clientWait, serviceWait);
+	}
+	
+	/**
+	 * @param bucket Bucket or <code>null</code> if there is no limit.
+	 * @return <code>-1</code> if no token was taken, otherwise
+	 * nanoseconds to wait for it.
+	 */
+	private static long takeToken(TokenBucket bucket, long now) {
+		if (bucket == null) {
+			return 0;
+		}
+		
+		final RateLimit limit = bucket.getLimit();
+		
+		if (limit.getPolicy() == RateLimit.DELAY) {
+			final long maxWait = limit.getMaxDelay() < Long.MAX_VALUE / 1000000L ? limit.getMaxDelay() * 1000000L : Long.MAX_VALUE;
+			return bucket.reserve(now, maxWait);
+		}
+		
+		return bucket.tryAcquire(now) ? 0 : -1;
+	}
+	
+	/**
+	 * Counts a dropped packet and applies the limit policy.
+	 * 
+	 * @param perClient Is it the limit of the client alone, only
+	 * then the client can be disconnected.
+	 */
+	private void rateLimitExceeded(ServiceRemoteClient client, RateLimit limit, boolean perClient) {
+		rateLimitHits.incrementAndGet();
+		client.notifyRateLimitHit();
+		
+		if (limit.getPolicy() == RateLimit.DISCONNECT && perClient) {
+			logger.warning("client " + client + " exceeded " + limit + " on service " + id + ", disconnecting");
+			
+			parent.disconnectClientFromService(client.getRemoteClient(), id,
+					ServiceDisconnectReason.RateLimitExceeded, "rate limit exceeded");
+		}
+	}
+	
+	/**
+	 * Sets the limit of packets that all clients together can send
+	 * to this service. {@link RateLimit#DISCONNECT} policy drops
+	 * packets over this limit, no single client is to blame.
+	 * 
+	 * @param limit Limit or <code>null</code> to remove it.
+	 */
+	public void setServiceRateLimit(RateLimit limit) {
+		serviceBucket = limit != null ? new TokenBucket(limit) : null;
+	}
+	
+	/**
+	 * @return the serviceRateLimit
+	 */
+	public RateLimit getServiceRateLimit() {
+		final TokenBucket bucket = serviceBucket;
+		return bucket != null ? bucket.getLimit() : null;
+	}
+	
+	/**
+	 * Sets the limit of packets that every single client can send
+	 * to this service.
+	 * 
+	 * @param limit Limit or <code>null</code> to remove it.
+	 */
+	public void setClientRateLimit(RateLimit limit) {
+		clientRateLimit = limit;
+	}
+	
+	/**
+	 * @return the clientRateLimit
+	 */
+	public RateLimit getClientRateLimit() {
+		return clientRateLimit;
+	}
+	
+	/**
+	 * @return Number of packets that exceeded any of rate limits
+	 * since this service was created.
+	 */
+	public long getRateLimitHits() {
+		return rateLimitHits.get();
 	}
 
+	/**
+	 * Sets or moves the area of interest of <code>client</code>. The area
+	 * is a circle that decides which of {@link #publishAt(float, float, Object)}
+	 * calls will reach this client.
+	 * 
+	 * @param client Client of this service.
+	 * @param x Horizontal position of area center.
+	 * @param y Vertical position of area center.
+	 * @param radius Radius of the area.
+	 * 
+	 * @throws IllegalArgumentException When client is not connected to
+	 * this service, radius is negative or any of the values is not finite.
+	 */
+	public void setInterestArea(RemoteClient client, float x, float y, float radius) {
+		synchronized (remoteClients) {
+			checkOwnClient(client);
+			
+			synchronized (interestGrid) {
+				interestGrid.update(client, x, y, radius);
+			}
+		}
+	}
+	
+	/**
+	 * Removes the area of interest of <code>client</code>. After that
+	 * the client will not receive any data sent using
+	 * {@link #publishAt(float, float, Object)}.
+	 * 
+	 * @return <code>true</code> if client had an area of interest.
+	 */
+	public boolean removeInterestArea(RemoteClient client) {
+		synchronized (interestGrid) {
+			return interestGrid.remove(client);
+		}
+	}
+	
+	/**
+	 * Changes the cell size of area of interest grid. The best size is
+	 * close to the typical area radius. Too small cells make areas
+	 * registered in many cells, too big make every lookup check
+	 * many areas.
+	 */
+	public void setInterestCellSize(float cellSize) {
+		synchronized (interestGrid) {
+			interestGrid.setCellSize(cellSize);
+		}
+	}
+	
+	/**
+	 * Sends <code>data</code> to every client of this service whose
+	 * area of interest covers the point.
+	 * <p>
+	 * Clients without area of interest never receive data sent with
+	 * this method. Network failures of single clients are logged and
+	 * don't stop delivering data to others.
+	 * 
+	 * @param x Horizontal position of the point.
+	 * @param y Vertical position of the point.
+	 * @param data Data to send.
+	 * 
+	 * @throws NotSerializableException When <code>data</code> cannot
+	 * be serialized.
+	 */
+	public void publishAt(float x, float y, Object data) throws NotSerializableException {
+		final List targets = new ArrayList();
+		
+		synchronized (interestGrid) {
+			interestGrid.query(x, y, targets);
+		}
+		
+		ServiceRemoteClient target;
+		for (int i = 0, size = targets.size(); i < size; ++i) {
+			target = (ServiceRemoteClient) targets.get(i);
+			
+			try {
+				target.send(data);
+			} catch (NetworkException e) {
+				logger.warning("cannot send data to " + target + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/** Must be called with <code>remoteClients</code> lock held */
+	private void checkOwnClient(RemoteClient client) {
+		if (!(client instanceof ServiceRemoteClient)
+				|| remoteClients.get(((ServiceRemoteClient) client).getRemoteClient()) != client) {
+			throw new IllegalArgumentException("client " + client + " is not connected to service " + id);
+		}
+	}
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+
+/**
+ * Passes packets of {@link ServiceBatchPacket}s one by one to another
+ * listener, along with all other packets. Clients of services in
+ * tick mode should add it instead of their listener.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceBatchReceiver implements PacketListener {
+
+	/** Listener of unpacked packets */
+	private final PacketListener listener;
+	
+	public ServiceBatchReceiver(PacketListener listener) {
+		this.listener = listener;
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.PacketListener#packetReceived(java.lang.Object)
+	 */
+	public void packetReceived(Object data) {
+		if (!(data instanceof ServiceBatchPacket)) {
+			listener.packetReceived(data);
+			return;
+		}
+		
+		final Object[] packets = ((ServiceBatchPacket) data).getPackets();
+		
+		for (int i = 0; i < packets.length; ++i) {
+			listener.packetReceived(packets[i]);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
+
+/**
+ * Client side credits of flow controlled services. Add it as packet
+ * listener of the client connection and call {@link #tryAcquire(int)}
+ * before sending every data packet.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceCredits implements PacketListener {
+
+	/** Credits by service id */
+	private final Map/*<Integer, int[]>*/ credits = new HashMap();
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.PacketListener#packetReceived(java.lang.Object)
+	 */
+	public synchronized void packetReceived(Object data) {
+		if (!(data instanceof ServiceCreditPacket)) {
+			return;
+		}
+		
+		final ServiceCreditPacket packet = (ServiceCreditPacket) data;
+		final Integer serviceId = Integer.valueOf(packet.getServiceId());
+		final int[] current = (int[]) credits.get(serviceId);
+		
+		if (current == null) {
+			credits.put(serviceId, new int[] {packet.getCredits()});
+		} else {
+			current[0] += packet.getCredits();
+		}
+		
+		notifyAll();
+	}
+	
+	/**
+	 * Takes a credit of service <code>serviceId</code>.
+	 * 
+	 * @return <code>false</code> if there are no credits left and data
+	 * must not be sent now. Services without flow control always
+	 * return <code>true</code>.
+	 */
+	public synchronized boolean tryAcquire(int serviceId) {
+		final int[] current = (int[]) credits.get(Integer.valueOf(serviceId));
+		
+		if (current == null) {
+			return true;
+		}
+		
+		if (current[0] <= 0) {
+			return false;
+		}
+		
+		--current[0];
+		return true;
+	}
+	
+	/**
+	 * Takes a credit of service <code>serviceId</code>, waiting for
+	 * a grant if there are none.
+	 * 
+	 * @param timeout Time in milliseconds, <code>0</code> to wait forever.
+	 * @return <code>false</code> if timed out.
+	 */
+	public synchronized boolean acquire(int serviceId, long timeout) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		while (!tryAcquire(serviceId)) {
+			if (timeout == 0) {
+				wait();
+				continue;
+			}
+			
+			final long wait = deadline - System.currentTimeMillis();
+			
+			if (wait <= 0) {
+				return false;
+			}
+			
+			wait(wait);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return Credits left or <code>-1</code> if service is not flow controlled.
+	 */
+	public synchronized int getCredits(int serviceId) {
+		final int[] current = (int[]) credits.get(Integer.valueOf(serviceId));
+		
+		return current != null ? current[0] : -1;
+	}
+	
+	/**
+	 * Forgets credits of service, for example after leaving it.
+	 */
+	public synchronized void reset(int serviceId) {
+		credits.remove(Integer.valueOf(serviceId));
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single thread that runs deliveries of one service in the order
+ * they were queued. The thread is started with the first task.
+ * The queue is bounded, tasks over its capacity are refused.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class ServiceDispatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(ServiceDispatcher.class.getName());
+	
+	/** Default number of tasks that can wait to be run */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	/** Name of the thread */
+	private final String name;
+	/** Maximum number of waiting tasks */
+	private final int capacity;
+	/** Tasks waiting to be run */
+	private final LinkedList/*<Runnable>*/ queue = new LinkedList();
+	/** Dispatch thread, <code>null</code> when it has exited */
+	private Thread thread;
+	/** Should the thread exit when the queue is empty */
+	private boolean stopping;
+	
+	public ServiceDispatcher(String name) {
+		this(name, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param capacity Maximum number of tasks waiting to be run.
+	 */
+	public ServiceDispatcher(String name, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		
+		this.name = name;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Queues the task to be run on dispatch thread.
+	 * 
+	 * @return <code>false</code> if the queue is full and the task
+	 * was not queued.
+	 */
+	public boolean dispatch(Runnable task) {
+		synchronized (queue) {
+			if (queue.size() >= capacity) {
+				return false;
+			}
+			
+			queue.addLast(task);
+			
+			if (thread == null) {
+				thread = new Thread(this, name);
+				thread.setDaemon(true);
+				thread.start();
+			}
+			
+			queue.notify();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Stops the thread after all queued tasks are done. Next
+	 * dispatched task will start it again once it has exited, so
+	 * there is never more than one thread running tasks.
+	 */
+	public void shutdown() {
+		synchronized (queue) {
+			if (thread != null) {
+				stopping = true;
+				queue.notify();
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of tasks waiting to be run.
+	 */
+	public int getQueueDepth() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		Runnable task;
+		
+		while (true) {
+			synchronized (queue) {
+				while (queue.isEmpty()) {
+					if (stopping) {
+						exit();
+						return;
+					}
+					
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						exit();
+						return;
+					}
+				}
+				
+				task = (Runnable) queue.removeFirst();
+			}
+			
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "task failed on " + name, e);
+			}
+		}
+	}
+	
+	/** Lets the next task start a new thread, must be called with queue lock held */
+	private void exit() {
+		thread = null;
+		stopping = false;
+	}
+}
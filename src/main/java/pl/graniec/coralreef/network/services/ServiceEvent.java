@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * Timing of a single step of packet processing, reported to
+ * {@link ServiceProfiler} when it took longer than the threshold
+ * set with {@link ServiceServer#setProfilingThreshold(int, long)}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceEvent {
+
+	/** Whole handling of a packet received by the server */
+	public static final int ROUTE = 0;
+	/** Handling of service join request */
+	public static final int JOIN = 1;
+	/** Delivery of data to a service, including rate limits and listeners */
+	public static final int DELIVERY = 2;
+	/** Single listener invocation */
+	public static final int LISTENER = 3;
+	
+	/** Number of event types */
+	static final int TYPE_COUNT = 4;
+	
+	/** Names of event types */
+	private static final String[] TYPE_NAMES = { "route", "join", "delivery", "listener" };
+	
+	/** Event type */
+	private final int type;
+	/** Client that sent the packet */
+	private RemoteClient client;
+	/** When the event started, in nanoseconds */
+	private long startTime;
+	/** Service id or <code>-1</code> if not known */
+	private int serviceId = -1;
+	/** Payload size in bytes or <code>-1</code> if not known */
+	private int payloadSize = -1;
+	/** Time spent waiting for locks in nanoseconds */
+	private long lockWait;
+	/** Duration in nanoseconds */
+	private long duration;
+	/** Reused event is being measured */
+	private boolean busy;
+	
+	ServiceEvent(int type, RemoteClient client, long startTime) {
+		this.type = type;
+		this.client = client;
+		this.startTime = startTime;
+	}
+	
+	/**
+	 * Starts measuring again, so the server can reuse one event per
+	 * thread and type instead of creating one for every packet.
+	 */
+	void restart(RemoteClient client) {
+		this.client = client;
+		startTime = System.nanoTime();
+		serviceId = -1;
+		payloadSize = -1;
+		lockWait = 0;
+		duration = 0;
+		busy = true;
+	}
+	
+	/**
+	 * Forgets the client, so a reused event doesn't keep it until
+	 * the next packet.
+	 */
+	void release() {
+		client = null;
+		busy = false;
+	}
+	
+	/**
+	 * @return <code>true</code> if event was restarted and not released yet.
+	 */
+	boolean isBusy() {
+		return busy;
+	}
+	
+	/**
+	 * @return Copy that stays the same when this event is reused.
+	 */
+	ServiceEvent copy() {
+		final ServiceEvent event = new ServiceEvent(type, client, startTime);
+		
+		event.serviceId = serviceId;
+		event.payloadSize = payloadSize;
+		event.lockWait = lockWait;
+		event.duration = duration;
+		
+		return event;
+	}
+	
+	/**
+	 * Measures the duration.
+	 */
+	void end() {
+		duration = System.nanoTime() - startTime;
+	}
+	
+	void setServiceId(int serviceId) {
+		this.serviceId = serviceId;
+	}
+	
+	void setPayload(Object data) {
+		if (data instanceof byte[]) {
+			payloadSize = ((byte[]) data).length;
+		}
+		else if (data instanceof ServiceDataPacket) {
+			final ServiceDataPacket packet = (ServiceDataPacket) data;
+			
+			if (packet.isEncoded()) {
+				payloadSize = packet.getPayload().length;
+			} else {
+				setPayload(packet.getData());
+			}
+		}
+		else {
+			payloadSize = -1;
+		}
+	}
+	
+	void addLockWait(long lockWait) {
+		this.lockWait += lockWait;
+	}
+
+	/**
+	 * @return the type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the client
+	 */
+	public RemoteClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the startTime in nanoseconds
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @return the serviceId or <code>-1</code> if not known
+	 */
+	public int getServiceId() {
+		return serviceId;
+	}
+
+	/**
+	 * @return the payloadSize or <code>-1</code> if not known
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+	/**
+	 * @return the lockWait in nanoseconds
+	 */
+	public long getLockWait() {
+		return lockWait;
+	}
+
+	/**
+	 * @return the duration in nanoseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return TYPE_NAMES[type] + " of service " + serviceId + " from " + client
+			+ " took " + (duration / 1000) + " us (lock wait " + (lockWait / 1000)
+			+ " us, payload " + payloadSize + " bytes)";
+	}
+}
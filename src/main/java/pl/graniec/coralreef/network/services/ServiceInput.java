@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * Data received from a service client, delivered with other inputs
+ * of the same tick to a {@link TickListener}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceInput {
+
+	/** Client that sent the data */
+	private final ServiceRemoteClient client;
+	/** Received data */
+	private Object data;
+	/** Packet to decode on tick, <code>null</code> if data is ready */
+	private ServiceDataPacket packet;
+	
+	ServiceInput(ServiceRemoteClient client, Object data) {
+		this.client = client;
+		this.data = data;
+	}
+	
+	ServiceInput(ServiceRemoteClient client, ServiceDataPacket packet) {
+		this.client = client;
+		this.packet = packet;
+	}
+	
+	/**
+	 * @return the client
+	 */
+	public ServiceRemoteClient getClient() {
+		return client;
+	}
+	
+	/**
+	 * @return the data
+	 */
+	public Object getData() {
+		return data;
+	}
+	
+	ServiceDataPacket getPacket() {
+		return packet;
+	}
+	
+	void setData(Object data) {
+		this.data = data;
+		packet = null;
+	}
+}
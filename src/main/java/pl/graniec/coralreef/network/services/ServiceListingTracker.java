@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.NotSerializableException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.services.packets.ServiceListingDeltaPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingSubscribePacket;
+
+/**
+ * Client side copy of the service listing. Add it as packet listener
+ * of the client connection and send {@link ServiceListingSubscribePacket}
+ * to keep it up to date without polling.
+ * <p>
+ * When a delta doesn't follow the known version, the tracker asks
+ * for the full listing and ignores deltas until it comes. Listings
+ * older than the known version are ignored.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceListingTracker implements PacketListener {
+
+	private static final Logger logger = Logger.getLogger(ServiceListingTracker.class.getName());
+	
+	/** Connection that full listings are requested over */
+	private final ServiceConnection connection;
+	/** Ids of services */
+	private final Set/*<Integer>*/ services = new HashSet();
+	/** Version of the listing, <code>-1</code> if none was received */
+	private int version = -1;
+	/** Was the full listing requested because of a missing delta */
+	private boolean resyncing;
+	
+	/**
+	 * @param connection Connection to request full listing over when
+	 * deltas are missing.
+	 */
+	public ServiceListingTracker(ServiceConnection connection) {
+		this.connection = connection;
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.PacketListener#packetReceived(java.lang.Object)
+	 */
+	public void packetReceived(Object data) {
+		if (data instanceof ServiceListingPacket) {
+			listingReceived((ServiceListingPacket) data);
+		} else if (data instanceof ServiceListingDeltaPacket && !deltaReceived((ServiceListingDeltaPacket) data)) {
+			requestListing();
+		}
+	}
+	
+	private synchronized void listingReceived(ServiceListingPacket packet) {
+		if (packet.getVersion() < version) {
+			// overtaken by deltas
+			return;
+		}
+		
+		services.clear();
+		add(packet.getServices());
+		version = packet.getVersion();
+		resyncing = false;
+	}
+	
+	/**
+	 * Applies the delta if it follows the known version.
+	 * 
+	 * @return <code>false</code> if the full listing must be requested.
+	 */
+	private synchronized boolean deltaReceived(ServiceListingDeltaPacket packet) {
+		if (version == -1 || packet.getVersion() <= version) {
+			// not subscribed yet or already in the listing
+			return true;
+		}
+		
+		if (packet.getVersion() != version + 1) {
+			if (resyncing) {
+				return true;
+			}
+			
+			logger.fine("listing deltas from " + (version + 1) + " to " + (packet.getVersion() - 1) + " are missing");
+			resyncing = true;
+			return false;
+		}
+		
+		if (resyncing) {
+			// full listing is on its way
+			return true;
+		}
+		
+		add(packet.getAdded());
+		
+		for (int i = 0; i < packet.getRemoved().length; ++i) {
+			services.remove(Integer.valueOf(packet.getRemoved()[i]));
+		}
+		
+		version = packet.getVersion();
+		return true;
+	}
+	
+	/**
+	 * Asks for the full listing, outside of the tracker lock.
+	 */
+	private void requestListing() {
+		try {
+			connection.send(new ServiceListingRequestPacket());
+		} catch (NotSerializableException e) {
+			// not possible
+		} catch (NetworkException e) {
+			logger.warning("cannot request service listing: " + e.getMessage());
+			
+			synchronized (this) {
+				resyncing = false;
+			}
+		}
+	}
+	private void add(int[] ids) {
+		for (int i = 0; i < ids.length; ++i) {
+			services.add(Integer.valueOf(ids[i]));
+		}
+	}
+	
+	/**
+	 * @return Ids of services known so far.
+	 */
+	public synchronized int[] getServices() {
+		final int[] ids = new int[services.size()];
+		
+		int counter = 0;
+		for (final Iterator itor = services.iterator(); itor.hasNext();) {
+			ids[counter++] = ((Integer) itor.next()).intValue();
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * @return Version of the listing, <code>-1</code> if no listing
+	 * was received yet.
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+}
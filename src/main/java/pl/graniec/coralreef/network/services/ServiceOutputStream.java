@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+
+/**
+ * Sends written bytes as a stream of {@link ServiceChunkPacket}s.
+ * Only one chunk is buffered, so memory use doesn't depend on the
+ * stream length. The stream must be closed to send the last chunk.
+ * <p>
+ * Service clients create them with {@link ServiceRemoteClient#openStream()}.
+ * Clients can subclass it to send chunks over their connection.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public abstract class ServiceOutputStream extends OutputStream {
+
+	/** Default chunk size, 16 kB */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+	
+	private final int serviceId;
+	private final int streamId;
+	/** Data of current chunk */
+	private final byte[] buffer;
+	/** Bytes in buffer */
+	private int count;
+	/** Index of next chunk */
+	private int index;
+	/** Was the last chunk sent */
+	private boolean closed;
+	
+	public ServiceOutputStream(int serviceId, int streamId, int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > ServiceChunkPacket.MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("chunk size must be from 1 to " + ServiceChunkPacket.MAX_CHUNK_SIZE + ": " + chunkSize);
+		}
+		
+		this.serviceId = serviceId;
+		this.streamId = streamId;
+		
+		buffer = new byte[chunkSize];
+	}
+	
+	/**
+	 * Sends a chunk.
+	 */
+	protected abstract void sendChunk(ServiceChunkPacket packet) throws IOException;
+	
+	/**
+	 * @return the streamId
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	public void write(int b) throws IOException {
+		ensureOpen();
+		
+		if (count == buffer.length) {
+			sendBuffer(false);
+		}
+		
+		buffer[count++] = (byte) b;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		
+		int length;
+		while (len > 0) {
+			if (count == buffer.length) {
+				sendBuffer(false);
+			}
+			
+			length = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, length);
+			
+			count += length;
+			off += length;
+			len -= length;
+		}
+	}
+	
+	/**
+	 * Sends buffered bytes as a chunk, if there are any.
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		
+		if (count > 0) {
+			sendBuffer(false);
+		}
+	}
+	
+	/**
+	 * Sends the last chunk.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		
+		sendBuffer(true);
+		closed = true;
+	}
+	
+	private void sendBuffer(boolean last) throws IOException {
+		final byte[] data = new byte[count];
+		System.arraycopy(buffer, 0, data, 0, count);
+		
+		count = 0;
+		
+		sendChunk(new ServiceChunkPacket(serviceId, streamId, index++, last, data));
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("stream " + streamId + " is closed");
+		}
+	}
+}
@@ -28,15 +28,34 @@
  */
 package pl.graniec.coralreef.network.services;
 
+import java.io.IOException;
 import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.PacketListener;
 import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.capture.TrafficRecorder;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacketPool;
+import pl.graniec.coralreef.network.services.packets.ServicePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceResponsePacket;
 
 /**
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
@@ -44,23 +63,115 @@ import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
  */
 public class ServiceRemoteClient implements RemoteClient {
 
+	/** Request waiting for its response. Runs when it times out. */
+	private class PendingRequest extends TimerTask {
+		/** Request identifier */
+		final int requestId;
+		/** Callback to complete */
+		final ResponseCallback callback;
+		
+		public PendingRequest(int requestId, ResponseCallback callback) {
+			this.requestId = requestId;
+			this.callback = callback;
+		}
+		
+		public void run() {
+			if (removePendingRequest(requestId) != null) {
+				callback.requestTimedOut();
+			}
+		}
+	}
+	
+	/** Packet held back by {@link RateLimit#DELAY} policy */
+	private static class DelayedPacket {
+		/** Passes the packet on */
+		final Runnable task;
+		/** When the packet may be passed on, in nanoseconds */
+		final long due;
+		
+		public DelayedPacket(Runnable task, long due) {
+			this.task = task;
+			this.due = due;
+		}
+	}
+	
+	private static final Logger logger = Logger.getLogger(ServiceRemoteClient.class.getName());
+
 	/** ServiceServer that this client is running on */
 	private final ServiceServer serviceServer;
 	/** Service id that this client belongs to */
 	private final int serviceId;
 	/** Orginal RemoteClient */
 	private final RemoteClient remoteClient;
+	/** Payload types of the service */
+	private final PayloadTypeRegistry payloadTypes;
+	/** Payload codec of the service, <code>null</code> if payload types are used */
+	private final ServiceCodec codec;
+	/** Service of this client, <code>null</code> if not known */
+	private final Service service;
+	/** Connection of this client, <code>null</code> if not known */
+	private final ServiceServer.ClientHandler handler;
 	
 	public ServiceRemoteClient(ServiceServer serviceServer, int serviceId, RemoteClient remoteClient) {
 		super();
 		this.serviceServer = serviceServer;
 		this.serviceId = serviceId;
 		this.remoteClient = remoteClient;
+		
+		service = serviceServer.getService(serviceId);
+		payloadTypes = service != null ? service.getPayloadTypes() : serviceServer.getPayloadTypes();
+		codec = service != null ? service.getCodec() : null;
+		handler = null;
+	}
+	
+	ServiceRemoteClient(Service service, RemoteClient remoteClient, ServiceServer.ClientHandler handler) {
+		this.serviceServer = service.getServer();
+		this.serviceId = service.getId();
+		this.remoteClient = remoteClient;
+		this.service = service;
+		this.handler = handler;
+		
+		payloadTypes = service.getPayloadTypes();
+		codec = service.getCodec();
 	}
 
 	/** Packet listeners for this service */
 	private final Set/*<PacketListener>*/ packetListeners = new HashSet();
 	
+	/** Requests waiting for response */
+	private final Map/*<Integer, PendingRequest>*/ pendingRequests = new HashMap();
+	/** Identifier of next request */
+	private int nextRequestId;
+	
+	/** Number of packets being sent right now */
+	private final AtomicInteger pendingSends = new AtomicInteger();
+	/** Set when client leaves the service */
+	private volatile boolean disconnected;
+	
+	/** Credits granted at join, <code>0</code> if there is no flow control */
+	private volatile int flowWindow;
+	/** Credits that the client still has */
+	private final AtomicInteger credits = new AtomicInteger();
+	/** Packets handled since last grant */
+	private final AtomicInteger consumed = new AtomicInteger();
+	
+	/** Identifier of next stream sent to the client */
+	private final AtomicInteger nextStreamId = new AtomicInteger();
+	/** Receiver of streams sent by the client, <code>null</code> if they are dropped */
+	private volatile ServiceStreamReceiver streamReceiver;
+	
+	/** Packets sent during current tick, <code>null</code> if there are none */
+	private List/*<ServicePacket>*/ tickBatch;
+	
+	/** Bucket of service's client rate limit */
+	private volatile TokenBucket rateLimitBucket;
+	/** Number of packets that exceeded the rate limits */
+	private final AtomicLong rateLimitHits = new AtomicLong();
+	/** Packets held back by rate limits, in order of arrival */
+	private final LinkedList/*<DelayedPacket>*/ delayedPackets = new LinkedList();
+	/** Is the timer passing on a held back packet right now */
+	private boolean passingDelayed;
+	
 	/* (non-Javadoc)
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#addPacketListener(pl.graniec.coralreef.network.PacketListener)
 	 */
@@ -74,7 +185,7 @@ public class ServiceRemoteClient implements RemoteClient {
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#disconnect()
 	 */
 	public void disconnect() {
-		
+		serviceServer.disconnectClientFromService(remoteClient, serviceId);
 	}
 
 	/* (non-Javadoc)
@@ -97,13 +208,578 @@ public class ServiceRemoteClient implements RemoteClient {
 	 * @see pl.graniec.coralreef.network.server.RemoteClient#send(java.lang.Object)
 	 */
 	public void send(Object data) throws NotSerializableException, NetworkException {
-		remoteClient.send(new ServiceDataPacket(serviceId, data));
+		// packets sent during a tick wait for its end, so they don't come from pool
+		final boolean batched = service != null && service.isReliable() && service.isTickThread();
+		final ServiceDataPacketPool pool = batched ? null : serviceServer.getPacketPool();
+		final int typeId = codec != null ? ServiceDataPacket.TYPE_ENCODED : payloadTypes.getTypeId(data);
+		final byte[] payload = typeId != ServiceDataPacket.TYPE_SERIALIZED ? encodePayload(typeId, data) : null;
+		
+		final ServiceDataPacket packet;
+		
+		if (pool == null) {
+			packet = payload != null ? new ServiceDataPacket(serviceId, typeId, payload) : new ServiceDataPacket(serviceId, data);
+		} else {
+			packet = payload != null ? pool.acquire(serviceId, typeId, payload) : pool.acquire(serviceId, data);
+		}
+		
+		if (batched) {
+			addToTickBatch(packet);
+			return;
+		}
+		
+		if (sendDatagram(packet)) {
+			if (pool != null) {
+				pool.release(packet);
+			}
+			
+			return;
+		}
+		
+		transmit(packet, pool);
+	}
+	
+	/**
+	 * Keeps the packet until the end of current tick.
+	 */
+	private void addToTickBatch(ServicePacket packet) throws NetworkException {
+		if (disconnected) {
+			throw new NetworkException("client " + remoteClient + " is not connected to service " + serviceId);
+		}
+		
+		if (tickBatch == null) {
+			tickBatch = new ArrayList();
+			service.notifyTickSend(this);
+		}
+		
+		tickBatch.add(packet);
+	}
+	
+	/**
+	 * Sends packets kept during the tick, in batches if there are more.
+	 * Called on the tick thread.
+	 */
+	void flushTick() {
+		final List batch = tickBatch;
+		
+		tickBatch = null;
+		
+		if (batch == null) {
+			return;
+		}
+		
+		try {
+			if (batch.size() == 1) {
+				transmit(batch.get(0), null);
+				return;
+			}
+			
+			for (int i = 0; i < batch.size(); i += ServiceBatchPacket.MAX_PACKETS) {
+				final List part = batch.subList(i, Math.min(i + ServiceBatchPacket.MAX_PACKETS, batch.size()));
+				
+				transmit(new ServiceBatchPacket(serviceId, (ServicePacket[]) part.toArray(new ServicePacket[part.size()])), null);
+			}
+		} catch (NotSerializableException e) {
+			logger.warning("cannot send tick batch to " + remoteClient + ": " + e.getMessage());
+		} catch (NetworkException e) {
+			logger.fine("cannot send tick batch to " + remoteClient + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends the packet over datagram channel if service is unreliable
+	 * and client has bound the channel.
+	 * 
+	 * @return <code>false</code> if packet must be sent the reliable way.
+	 */
+	private boolean sendDatagram(ServiceDataPacket packet) throws NotSerializableException {
+		if (disconnected || handler == null || service.isReliable()) {
+			return false;
+		}
+		
+		final DatagramTransport.Peer peer = handler.datagramPeer;
+		
+		if (peer == null || !peer.send(packet)) {
+			return false;
+		}
+		
+		serviceServer.record(TrafficRecorder.OUTBOUND, handler, packet);
+		return true;
+	}
+	
+	private byte[] encodePayload(int typeId, Object data) throws NotSerializableException {
+		try {
+			if (typeId == ServiceDataPacket.TYPE_ENCODED) {
+				return codec.encode(data);
+			}
+			
+			return payloadTypes.write(typeId, data);
+		} catch (IOException e) {
+			throw new NotSerializableException((data != null ? data.getClass().getName() : "null") + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Sends a request to the client. The <code>callback</code> is
+	 * completed when the client sends back the response, when the
+	 * timeout passes or when the client disconnects from the service.
+	 * <p>
+	 * This method doesn't wait for the response, so many requests can
+	 * be pending at the same time. Responses can come in any order.
+	 * 
+	 * @param data Request data.
+	 * @param timeout Timeout in milliseconds, <code>0</code> to wait forever.
+	 * @param callback Callback that will receive the response.
+	 */
+	public void call(Object data, long timeout, ResponseCallback callback) throws NotSerializableException, NetworkException {
+		final PendingRequest pending;
+		
+		synchronized (pendingRequests) {
+			pending = new PendingRequest(nextRequestId++, callback);
+			pendingRequests.put(Integer.valueOf(pending.requestId), pending);
+		}
+		
+		if (timeout > 0) {
+			serviceServer.getTimer().schedule(pending, timeout);
+		}
+		
+		try {
+			transmit(new ServiceRequestPacket(serviceId, pending.requestId, data), null);
+		} catch (NotSerializableException e) {
+			removePendingRequest(pending.requestId);
+			throw e;
+		} catch (NetworkException e) {
+			removePendingRequest(pending.requestId);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return Number of requests waiting for response.
+	 */
+	public int getPendingRequestCount() {
+		synchronized (pendingRequests) {
+			return pendingRequests.size();
+		}
+	}
+	
+	void sendResponse(int requestId, Object data) throws NotSerializableException, NetworkException {
+		transmit(new ServiceResponsePacket(serviceId, requestId, data), null);
+	}
+	
+	/**
+	 * Opens a stream to the client with default chunk size.
+	 * 
+	 * @see #openStream(int)
+	 */
+	public ServiceOutputStream openStream() {
+		return openStream(ServiceOutputStream.DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Opens a stream to the client. Written bytes are sent in chunks
+	 * of <code>chunkSize</code>, which are scheduled like other
+	 * packets of this service, so a large stream doesn't hold up
+	 * other services. Writing blocks while the client has
+	 * {@link #MAX_PENDING_CHUNKS} packets waiting to be sent.
+	 * <p>
+	 * Clients receive the stream with {@link ServiceStreamReceiver}.
+	 * 
+	 * @param chunkSize Maximum size of chunk in bytes, up to
+	 * {@link ServiceChunkPacket#MAX_CHUNK_SIZE}.
+	 */
+	public ServiceOutputStream openStream(int chunkSize) {
+		return new ServiceOutputStream(serviceId, nextStreamId.getAndIncrement(), chunkSize) {
+			protected void sendChunk(ServiceChunkPacket packet) throws IOException {
+				try {
+					awaitPendingBelow(MAX_PENDING_CHUNKS);
+					transmit(packet, null);
+				} catch (NetworkException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		};
+	}
+	
+	/** Number of pending packets that blocks writing to a stream */
+	public static final int MAX_PENDING_CHUNKS = 4;
+	
+	/**
+	 * Waits until less than <code>max</code> packets are being sent to
+	 * this client, so that streams don't fill the outbound queue.
+	 */
+	private void awaitPendingBelow(int max) throws NetworkException {
+		while (pendingSends.get() >= max && !disconnected) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new NetworkException("interrupted while sending stream to " + remoteClient);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the listener of streams that the client sends to the
+	 * service. Streams are dropped when there is no listener.
+	 * 
+	 * @param listener Listener or <code>null</code> to remove it.
+	 */
+	public void setStreamListener(ServiceStreamListener listener) {
+		final ServiceStreamReceiver previous = streamReceiver;
+		
+		streamReceiver = listener != null ? new ServiceStreamReceiver(serviceId, listener) : null;
+		
+		if (previous != null) {
+			previous.abortAll();
+		}
+	}
+	
+	void notifyChunkReceived(ServiceChunkPacket packet) {
+		final ServiceStreamReceiver receiver = streamReceiver;
+		
+		if (receiver == null) {
+			logger.fine("chunk of stream " + packet.getStreamId() + " from " + remoteClient + " but there is no stream listener");
+			return;
+		}
+		
+		receiver.chunkReceived(packet);
+	}
+	
+	/**
+	 * Sends the packet through the original RemoteClient or queues it
+	 * in the outbound scheduler, counting it as pending until the send
+	 * is done. Pooled packet is returned to <code>pool</code> after that.
+	 */
+	private void transmit(Object packet, ServiceDataPacketPool pool) throws NotSerializableException, NetworkException {
+		if (disconnected) {
+			if (pool != null) {
+				pool.release((ServiceDataPacket) packet);
+			}
+			
+			throw new NetworkException("client " + remoteClient + " is not connected to service " + serviceId);
+		}
+		
+		pendingSends.incrementAndGet();
+		serviceServer.record(TrafficRecorder.OUTBOUND, handler, packet);
+		
+		// striped clients get the service over its own connection
+		final ServiceServer.ClientHandler route = handler != null ? handler.route(serviceId) : null;
+		
+		if (route != null && serviceServer.isOutboundScheduling()) {
+			route.scheduler.send(service, new OutboundScheduler.Frame(packet, this, pool));
+			return;
+		}
+		
+		try {
+			if (route != null) {
+				route.remoteClient.send(packet);
+			} else {
+				remoteClient.send(packet);
+			}
+		} finally {
+			notifySent();
+			
+			if (pool != null) {
+				pool.release((ServiceDataPacket) packet);
+			}
+		}
+	}
+	
+	/** Called when a packet counted as pending is sent or dropped */
+	void notifySent() {
+		pendingSends.decrementAndGet();
+	}
+	
+	/**
+	 * Waits until all packets that are being sent to this client
+	 * are done.
+	 * 
+	 * @param deadline Time in milliseconds when waiting gives up.
+	 * @return <code>true</code> if there's nothing pending.
+	 */
+	boolean awaitDrained(long deadline) {
+		while (pendingSends.get() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	void notifyResponseReceived(int requestId, Object data) {
+		final PendingRequest pending = removePendingRequest(requestId);
+		
+		if (pending == null) {
+			logger.fine("response to unknown or timed out request " + requestId + " from " + remoteClient);
+			return;
+		}
+		
+		pending.callback.responseReceived(data);
+	}
+	
+	/**
+	 * Refuses further sends and cancels all pending requests.
+	 */
+	void notifyDisconnected() {
+		final PendingRequest[] pending;
+		
+		disconnected = true;
+		
+		synchronized (pendingRequests) {
+			pending = (PendingRequest[]) pendingRequests.values().toArray(new PendingRequest[pendingRequests.size()]);
+			pendingRequests.clear();
+		}
+		
+		for (int i = 0; i < pending.length; ++i) {
+			pending[i].cancel();
+			pending[i].callback.requestCancelled();
+		}
+		
+		final ServiceStreamReceiver receiver = streamReceiver;
+		
+		if (receiver != null) {
+			receiver.abortAll();
+		}
+	}
+	
+	private PendingRequest removePendingRequest(int requestId) {
+		final PendingRequest pending;
+		
+		synchronized (pendingRequests) {
+			pending = (PendingRequest) pendingRequests.remove(Integer.valueOf(requestId));
+		}
+		
+		if (pending != null) {
+			pending.cancel();
+		}
+		
+		return pending;
+	}
+	
+	/**
+	 * Grants the first <code>window</code> credits to the client.
+	 */
+	void startFlowControl(int window) {
+		flowWindow = window;
+		// called under the server lock, sent along with the join response
+		grantCredits(window, false);
+	}
+	
+	boolean isFlowControlled() {
+		return flowWindow > 0;
+	}
+	
+	/**
+	 * @return Credits that the client still has, <code>-1</code> if
+	 * there is no flow control.
+	 */
+	public int getCredits() {
+		return isFlowControlled() ? credits.get() : -1;
+	}
+	
+	/**
+	 * Takes a credit for a received data packet.
+	 * 
+	 * @return <code>false</code> if client has no credits.
+	 */
+	boolean takeCredit() {
+		int current;
+		
+		do {
+			current = credits.get();
+			
+			if (current <= 0) {
+				return false;
+			}
+		} while (!credits.compareAndSet(current, current - 1));
+		
+		return true;
+	}
+	
+	/**
+	 * Called when listeners have handled a data packet. Credits are
+	 * granted back in batches of half the window.
+	 */
+	void notifyConsumed() {
+		final int window = flowWindow;
+		
+		if (window == 0 || consumed.incrementAndGet() < Math.max(1, window / 2)) {
+			return;
+		}
+		
+		final int granted = consumed.getAndSet(0);
+		
+		if (granted > 0 && !disconnected) {
+			grantCredits(granted, true);
+		}
+	}
+	
+	/**
+	 * @param send Send the credit packet right away, otherwise it's
+	 * only queued with the next control packet of the connection.
+	 */
+	private void grantCredits(int count, boolean send) {
+		credits.addAndGet(count);
+		
+		if (service != null) {
+			service.notifyCreditsGranted(count);
+		}
+		
+		if (handler == null) {
+			return;
+		}
+		
+		try {
+			if (send) {
+				serviceServer.sendControl(handler, new ServiceCreditPacket(serviceId, count));
+			} else {
+				serviceServer.queueControl(handler, new ServiceCreditPacket(serviceId, count));
+			}
+		} catch (NotSerializableException e) {
+			// not possible
+		} catch (NetworkException e) {
+			logger.fine("cannot grant credits to " + remoteClient + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return Orginal RemoteClient
+	 */
+	RemoteClient getRemoteClient() {
+		return remoteClient;
+	}
+	
+	/**
+	 * @return Number of packets from this client that exceeded
+	 * any of service rate limits.
+	 */
+	public long getRateLimitHits() {
+		return rateLimitHits.get();
+	}
+	
+	void notifyRateLimitHit() {
+		rateLimitHits.incrementAndGet();
+	}
+	
+	/**
+	 * @return <code>true</code> if packets of this client are held
+	 * back, so new ones must wait behind them.
+	 */
+	boolean isDelaying() {
+		synchronized (delayedPackets) {
+			return passingDelayed || !delayedPackets.isEmpty();
+		}
+	}
+	
+	/**
+	 * Runs <code>task</code> on the server timer after <code>delay</code>,
+	 * but never before tasks of packets that were held back earlier.
+	 * The receiving thread doesn't wait for it.
+	 * 
+	 * @param delay Delay in nanoseconds.
+	 */
+	void delay(Runnable task, long delay) {
+		synchronized (delayedPackets) {
+			delayedPackets.addLast(new DelayedPacket(task, System.nanoTime() + delay));
+		}
+		
+		scheduleDelayed(delay);
+	}
+	
+	private void scheduleDelayed(long delay) {
+		serviceServer.getTimer().schedule(new TimerTask() {
+			public void run() {
+				passDelayed();
+			}
+		}, (delay + 999999L) / 1000000L);
+	}
+	
+	/**
+	 * Passes on held back packets that are due, in order. Called on
+	 * the timer thread only.
+	 */
+	private void passDelayed() {
+		DelayedPacket packet;
+		
+		while (true) {
+			synchronized (delayedPackets) {
+				passingDelayed = false;
+				
+				if (delayedPackets.isEmpty()) {
+					return;
+				}
+				
+				packet = (DelayedPacket) delayedPackets.getFirst();
+				
+				final long wait = packet.due - System.nanoTime();
+				
+				if (wait > 0) {
+					// timer woke up early
+					scheduleDelayed(wait);
+					return;
+				}
+				
+				delayedPackets.removeFirst();
+				passingDelayed = true;
+			}
+			
+			if (disconnected) {
+				continue;
+			}
+			
+			try {
+				packet.task.run();
+			} catch (RuntimeException e) {
+				// timer thread must survive
+				logger.log(Level.SEVERE, "delayed packet from " + remoteClient + " to service " + serviceId + " failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Provides the token bucket for current client rate limit of
+	 * the service.
+	 * 
+	 * @param limit Current client rate limit.
+	 * @return Bucket or <code>null</code> if there is no limit.
+	 */
+	TokenBucket getRateLimitBucket(RateLimit limit) {
+		if (limit == null) {
+			return null;
+		}
+		
+		TokenBucket bucket = rateLimitBucket;
+		
+		if (bucket == null || bucket.getLimit() != limit) {
+			bucket = new TokenBucket(limit);
+			rateLimitBucket = bucket;
+		}
+		
+		return bucket;
 	}
 	
 	void notifyPacketReceived(Object data) {
+		final boolean profiling = serviceServer.isProfiling();
+		
 		synchronized (packetListeners) {
+			long startTime;
 			for (final Iterator itor = packetListeners.iterator(); itor.hasNext();) {
+				if (!profiling) {
+					((PacketListener)itor.next()).packetReceived(data);
+					continue;
+				}
+				
+				startTime = System.nanoTime();
 				((PacketListener)itor.next()).packetReceived(data);
+				serviceServer.endEvent(ServiceEvent.LISTENER, remoteClient, serviceId, data, startTime);
 			}
 		}
 	}
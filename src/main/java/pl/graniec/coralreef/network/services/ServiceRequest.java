@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.NotSerializableException;
+
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+
+/**
+ * Request received from a service client. It has to be answered
+ * with {@link #respond(Object)} exactly once.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceRequest {
+
+	/** Client that sent this request */
+	private final ServiceRemoteClient client;
+	/** Request identifier */
+	private final int requestId;
+	/** Request data */
+	private final Object data;
+	/** Has the response been sent already */
+	private boolean responded;
+	
+	ServiceRequest(ServiceRemoteClient client, int requestId, Object data) {
+		this.client = client;
+		this.requestId = requestId;
+		this.data = data;
+	}
+	
+	/**
+	 * Sends the response back to the client.
+	 * 
+	 * @param response Response data.
+	 * 
+	 * @throws IllegalStateException When response has been sent already.
+	 */
+	public void respond(Object response) throws NotSerializableException, NetworkException {
+		synchronized (this) {
+			if (responded) {
+				throw new IllegalStateException("request " + requestId + " already responded");
+			}
+			
+			responded = true;
+		}
+		
+		client.sendResponse(requestId, response);
+	}
+
+	/**
+	 * @return the client
+	 */
+	public ServiceRemoteClient getClient() {
+		return client;
+	}
+
+	/**
+	 * @return the requestId
+	 */
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return the data
+	 */
+	public Object getData() {
+		return data;
+	}
+	
+	/**
+	 * @return <code>true</code> if response has been sent.
+	 */
+	public synchronized boolean isResponded() {
+		return responded;
+	}
+}
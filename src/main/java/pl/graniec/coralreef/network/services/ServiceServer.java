@@ -29,11 +29,18 @@
 package pl.graniec.coralreef.network.services;
 
 import java.io.NotSerializableException;
+import java.net.SocketException;
+import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Logger;
 
 import pl.graniec.coralreef.network.DisconnectReason;
@@ -42,12 +49,25 @@ import pl.graniec.coralreef.network.exceptions.NetworkException;
 import pl.graniec.coralreef.network.server.ConnectionListener;
 import pl.graniec.coralreef.network.server.RemoteClient;
 import pl.graniec.coralreef.network.server.Server;
+import pl.graniec.coralreef.network.services.capture.TrafficRecorder;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacketPool;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramTokenPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceJoinPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceJoinResponsePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingDeltaPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceListingPacket;
 import pl.graniec.coralreef.network.services.packets.ServiceListingRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingSubscribePacket;
 import pl.graniec.coralreef.network.services.packets.ServicePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceResponsePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceSessionPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceStripePacket;
 
 /**
  * The ServiceServer class can provide multiple CoralReef
@@ -64,27 +84,170 @@ import pl.graniec.coralreef.network.services.packets.ServicePacket;
  */
 public class ServiceServer {
 	
-	private static class ClientHandler {
+	static class ClientHandler {
 		/** Instance to RemoteClient object */
 		RemoteClient remoteClient;
-		/** Services that this client has joined */
-		private Map/*<Integer, Service>*/ services = new HashMap();
+		/** Id of the connection, unique in this server */
+		final int id;
+		/** Server implementation that accepted the connection */
+		final Server transport;
+		/** Slot in membership table */
+		int slot;
+		/** Outbound queue of this connection */
+		final OutboundScheduler scheduler;
+		/** Datagram side of this connection, <code>null</code> if not requested */
+		volatile DatagramTransport.Peer datagramPeer;
+		/** Token of session opened over this connection, <code>0</code> if there is none */
+		long sessionToken;
+		/** First connection of the client if this connection is one of its stripes */
+		volatile ClientHandler session;
+		/** Stripes of the client by index, <code>null</code> if it has none */
+		volatile ClientHandler[] stripes;
+		/** Stripes of explicitly assigned services by service id, copied on write */
+		volatile Map/*<Integer, ClientHandler>*/ routes = new HashMap();
 		
-		public ClientHandler(RemoteClient remoteClient) {
+		public ClientHandler(RemoteClient remoteClient, int id, Server transport) {
 			super();
 			this.remoteClient = remoteClient;
+			this.id = id;
+			this.transport = transport;
+			scheduler = new OutboundScheduler(remoteClient);
 		}
 		
+		/**
+		 * @return Connection that packets of service <code>serviceId</code>
+		 * should be sent over.
+		 */
+		ClientHandler route(int serviceId) {
+			final ClientHandler[] current = stripes;
+			
+			if (current == null) {
+				return this;
+			}
+			
+			final ClientHandler explicit = (ClientHandler) routes.get(Integer.valueOf(serviceId));
+			
+			if (explicit != null) {
+				return explicit;
+			}
+			
+			final ClientHandler stripe = current[ServiceStripePacket.stripeOf(serviceId, current.length)];
+			
+			return stripe != null ? stripe : this;
+		}
+		
+	}
+	
+	/**
+	 * Factory of a range of service ids. Runs on the timer to release
+	 * services that have been idle for too long.
+	 */
+	private class FactoryRange extends TimerTask {
+		final int firstId;
+		final int lastId;
+		final ServiceFactory factory;
+		/** Time in milliseconds after which empty services are released, <code>0</code> to never release */
+		final long idleTimeout;
+		/** Time when created services became empty by service, <code>0</code> while they have clients */
+		final Map/*<Service, long[]>*/ created = new HashMap();
+		
+		public FactoryRange(int firstId, int lastId, ServiceFactory factory, long idleTimeout) {
+			this.firstId = firstId;
+			this.lastId = lastId;
+			this.factory = factory;
+			this.idleTimeout = idleTimeout;
+		}
+		
+		public void run() {
+			releaseIdleServices(this);
+		}
 	}
 	
 	private static Logger logger = Logger.getLogger(ServiceServer.class.getName());
+	
+	/** Default threshold of profiled events, 10 ms */
+	public static final long DEFAULT_PROFILING_THRESHOLD = 10000000L;
+	/** Default limit of connections of a striped client */
+	public static final int DEFAULT_MAX_STRIPES = 8;
+	
+	/** Classes of packets of this library by type */
+	private static final Class[] PACKET_CLASSES = {
+		ServiceDataPacket.class,
+		ServiceRequestPacket.class,
+		ServiceResponsePacket.class,
+		ServiceJoinPacket.class,
+		ServiceJoinResponsePacket.class,
+		ServiceListingRequestPacket.class,
+		ServiceListingPacket.class,
+		ServiceDatagramRequestPacket.class,
+		ServiceDatagramTokenPacket.class,
+		ServiceCreditPacket.class,
+		ServiceChunkPacket.class,
+		ServiceListingSubscribePacket.class,
+		ServiceListingDeltaPacket.class,
+		ServiceSessionPacket.class,
+		ServiceStripePacket.class,
+		ServiceBatchPacket.class
+	};
+	
+	/** Number of free packets kept in packet pool */
+	private static final int PACKET_POOL_CAPACITY = 256;
 
 	/** Server implementation */
 	private final Server serverImpl;
+	/** Connection listeners of all server implementations, including <code>serverImpl</code> */
+	private final Map/*<Server, ConnectionListener>*/ transports = new HashMap();
 	/** Map of available services */
 	private Map/*<Integer, Service>*/ services = new HashMap();
 	/** Map of client handlers */
 	private final Map/*<RemoteClient, ClientHandler>*/ clients = new HashMap();
+	/** Which client handlers have joined which services */
+	private final MembershipTable membership = new MembershipTable();
+	/** Timer shared by request timeouts, created on demand */
+	private Timer timer;
+	/** Payload types common for all services */
+	private final PayloadTypeRegistry payloadTypes = new PayloadTypeRegistry();
+	/** Receiver of slow events, <code>null</code> if profiling is disabled */
+	private volatile ServiceProfiler profiler;
+	/** Thresholds of events in nanoseconds by event type */
+	private final long[] profilingThresholds = new long[ServiceEvent.TYPE_COUNT];
+	/** Events of the current thread by type, reused for every packet */
+	private final ThreadLocal/*<ServiceEvent[]>*/ threadEvents = new ThreadLocal() {
+		protected Object initialValue() {
+			return new ServiceEvent[ServiceEvent.TYPE_COUNT];
+		}
+	};
+	/** Pool of outgoing data packets, <code>null</code> if pooling is disabled */
+	private volatile ServiceDataPacketPool packetPool;
+	/** Are outgoing packets queued and sent by service priority and weight */
+	private volatile boolean outboundScheduling;
+	/** Datagram channel, <code>null</code> if not open */
+	private DatagramTransport datagramTransport;
+	/** Traffic recorder, <code>null</code> if not recording */
+	private volatile TrafficRecorder recorder;
+	/** First connections of striped clients by session token */
+	private final Map/*<Long, ClientHandler>*/ sessions = new HashMap();
+	/** Jitter of retry-after hints */
+	private final Random random = new Random();
+	/** Source of session tokens, which must not be guessed */
+	private final SecureRandom tokenRandom = new SecureRandom();
+	/** Largest number of connections of a striped client */
+	private volatile int maxStripes = DEFAULT_MAX_STRIPES;
+	/** Id of next connection */
+	private int nextClientId;
+	/** Current service listing, rebuilt when services change */
+	private volatile ServiceListingPacket listing = new ServiceListingPacket(new int[0], 0);
+	/** Client handlers subscribed to listing changes */
+	private final Set/*<ClientHandler>*/ listingSubscribers = new HashSet();
+	/**
+	 * Held while the listing changes and its deltas are sent, so that
+	 * subscribers get them in order. Taken before the server lock.
+	 */
+	private final Object listingLock = new Object();
+	/** Ranges of lazily created services, copied on write under <code>listingLock</code> */
+	private volatile FactoryRange[] factoryRanges = new FactoryRange[0];
+	/** Handlers of application packets by type, copied on write */
+	private volatile ServicePacketHandler[] packetHandlers = new ServicePacketHandler[ServicePacket.MAX_TYPE + 1];
 	
 	/**
 	 * Creates a service server that will run on specified
@@ -93,125 +256,1158 @@ public class ServiceServer {
 	public ServiceServer(Server serverImplementation) {
 			serverImpl = serverImplementation;
 			
-			serverImpl.addConnectionListener(new ConnectionListener() {
-				public void clientConnected(RemoteClient client) {
-					handleClientConnected(client);
-				}
+			for (int i = 0; i < profilingThresholds.length; ++i) {
+				profilingThresholds[i] = DEFAULT_PROFILING_THRESHOLD;
+			}
+			
+			attach(serverImpl);
+	}
+	
+	/**
+	 * Attaches another server implementation, for example one
+	 * listening on another port or using another transport. Its
+	 * clients share services with clients of all other attached
+	 * servers, so they can join the same service.
+	 * <p>
+	 * The server is not opened here, but it's closed along with this
+	 * service server.
+	 * 
+	 * @return <code>false</code> if the server is already attached.
+	 */
+	public synchronized boolean attach(final Server server) {
+		if (transports.containsKey(server)) {
+			return false;
+		}
+		
+		final ConnectionListener listener = new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				handleClientConnected(server, client);
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+				handleClientDisconnected(client, reason, reasonString);
+			}
+		};
+		
+		transports.put(server, listener);
+		server.addConnectionListener(listener);
+		
+		return true;
+	}
+	
+	/**
+	 * Detaches and closes a server attached with {@link #attach(Server)}.
+	 * Its clients are disconnected from all services.
+	 * 
+	 * @return <code>false</code> if the server isn't attached.
+	 * @throws IllegalArgumentException If the server is the one given
+	 * to the constructor.
+	 */
+	public boolean detach(Server server) {
+		if (server == serverImpl) {
+			throw new IllegalArgumentException("cannot detach the main server implementation");
+		}
+		
+		final ConnectionListener listener;
+		
+		synchronized (this) {
+			listener = (ConnectionListener) transports.remove(server);
+		}
+		
+		if (listener == null) {
+			return false;
+		}
+		
+		server.close();
+		server.removeConnectionListener(listener);
+		
+		// clients that transport didn't report as disconnected
+		final List/*<RemoteClient>*/ remaining = new LinkedList();
+		
+		synchronized (this) {
+			ClientHandler handler;
+			for (final Iterator itor = clients.values().iterator(); itor.hasNext();) {
+				handler = (ClientHandler) itor.next();
 				
-				public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
-					handleClientDisconnected(client, reason, reasonString);
+				if (handler.transport == server) {
+					remaining.add(handler.remoteClient);
 				}
-			});
+			}
+		}
+		
+		for (final Iterator itor = remaining.iterator(); itor.hasNext();) {
+			handleClientDisconnected((RemoteClient) itor.next(), DisconnectReason.UserAction, "server detached");
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return All attached server implementations, the one given to
+	 * the constructor included.
+	 */
+	public synchronized Server[] getServers() {
+		return (Server[]) transports.keySet().toArray(new Server[transports.size()]);
 	}
 	
+	/**
+	 * Disconnects all clients from all services and closes the server.
+	 * 
+	 * @see #close(long)
+	 */
 	public void close() {
-		serverImpl.close();
+		close(0);
 	}
 	
+	/**
+	 * Disconnects all clients from all services and closes the server.
+	 * <p>
+	 * Clients are removed from all services in one step. Then every
+	 * service waits until packets that are being sent are done or
+	 * <code>drainTimeout</code> passes and notifies its listeners
+	 * in parallel threads. The server implementation is closed at the end.
+	 * 
+	 * @param drainTimeout Maximum time in milliseconds to wait for
+	 * pending packets, <code>0</code> to not wait at all.
+	 */
+	public void close(long drainTimeout) {
+		final long deadline = System.currentTimeMillis() + drainTimeout;
+		final Service[] allServices;
+		final RemoteClient[][] members;
+		
+		synchronized (this) {
+			allServices = (Service[]) services.values().toArray(new Service[services.size()]);
+			members = new RemoteClient[allServices.length][];
+			
+			for (int i = 0; i < allServices.length; ++i) {
+				members[i] = toRemoteClients(membership.removeClients(allServices[i].getIndex()));
+			}
+			
+			// transport will report disconnections of clients that are already gone
+			ClientHandler handler;
+			for (final Iterator itor = clients.values().iterator(); itor.hasNext();) {
+				handler = (ClientHandler) itor.next();
+				
+				// stripes have no slots of their own
+				if (handler.session == null) {
+					membership.removeClient(handler.slot);
+				}
+			}
+			
+			clients.clear();
+			sessions.clear();
+			listingSubscribers.clear();
+		}
+		
+		for (int i = 0; i < allServices.length; ++i) {
+			allServices[i].evictAll(members[i], DisconnectReason.UserAction, "server closed", deadline);
+			allServices[i].stopDispatcher();
+			allServices[i].stopTicks();
+		}
+		
+		final Server[] servers = getServers();
+		
+		for (int i = 0; i < servers.length; ++i) {
+			servers[i].close();
+		}
+		
+		synchronized (this) {
+			if (datagramTransport != null) {
+				datagramTransport.close();
+				datagramTransport = null;
+			}
+			
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return Port of the server implementation given to the constructor.
+	 */
 	public int getPort() {
 		return serverImpl.getPort();
 	}
 	
-	private synchronized void handleClientConnected(final RemoteClient client) {
-		clients.put(client, new ClientHandler(client));
+	/**
+	 * Enables or disables reusing of outgoing {@link ServiceDataPacket}
+	 * envelopes. It reduces garbage produced by busy services.
+	 * <p>
+	 * Pooled packets are reused right after <code>send()</code> of
+	 * server implementation returns, so enable it only if server
+	 * implementation serializes packets before that. Payload
+	 * objects are not affected.
+	 * 
+	 * @see ServiceDataPacketPool
+	 */
+	public void setPacketPooling(boolean enabled) {
+		packetPool = enabled ? new ServiceDataPacketPool(PACKET_POOL_CAPACITY) : null;
+	}
+	
+	/**
+	 * @return <code>true</code> if outgoing packets are pooled.
+	 */
+	public boolean isPacketPooling() {
+		return packetPool != null;
+	}
+	
+	/**
+	 * Opens the datagram channel for unreliable services. Clients
+	 * request it with {@link ServiceDatagramRequestPacket} sent over the
+	 * reliable connection. Joins and everything else stay on the
+	 * reliable connection.
+	 * 
+	 * @param port Datagram port, <code>0</code> for any free port.
+	 * @throws NetworkException When the port cannot be opened.
+	 * 
+	 * @see Service#setReliable(boolean)
+	 * @see pl.graniec.coralreef.network.services.datagram.DatagramClient
+	 */
+	public synchronized void openDatagram(int port) throws NetworkException {
+		if (datagramTransport != null) {
+			throw new NetworkException("datagram channel is already open on port " + datagramTransport.getPort());
+		}
+		
+		try {
+			datagramTransport = new DatagramTransport(this, port);
+		} catch (SocketException e) {
+			throw new NetworkException("cannot open datagram port " + port + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return Datagram port or <code>-1</code> if datagram channel is not open.
+	 */
+	public synchronized int getDatagramPort() {
+		return datagramTransport != null ? datagramTransport.getPort() : -1;
+	}
+	
+	/**
+	 * Starts or stops recording of all packets that clients send to
+	 * services and services send to clients, along with connections
+	 * and disconnections. Recorder is not closed by this server.
+	 * 
+	 * @param recorder Recorder or <code>null</code> to stop recording.
+	 * @see pl.graniec.coralreef.network.services.capture.TrafficReplayer
+	 */
+	public void setTrafficRecorder(TrafficRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * @return Traffic recorder or <code>null</code> if not recording.
+	 */
+	public TrafficRecorder getTrafficRecorder() {
+		return recorder;
+	}
+	
+	/**
+	 * Records a packet sent to or received from <code>handler</code>
+	 * if recording is on.
+	 * 
+	 * @param handler Connection or <code>null</code> if not known.
+	 */
+	void record(int direction, ClientHandler handler, Object packet) {
+		final TrafficRecorder currentRecorder = recorder;
+		
+		if (currentRecorder != null) {
+			currentRecorder.recordPacket(direction, handler != null ? handler.id : -1, packet);
+		}
+	}
+	
+	/**
+	 * Enables or disables outbound scheduling. When enabled, packets
+	 * that services send to the same connection are queued and sent by
+	 * service priority and, among services of the same priority, in
+	 * proportion to service weights. Control packets are sent first.
+	 * This keeps bulk transfers from delaying latency sensitive services.
+	 * <p>
+	 * No thread is started. The thread that sends when the queue is
+	 * empty sends the queue until it's empty again. Errors of queued
+	 * packets are logged instead of being thrown from <code>send()</code>.
+	 * 
+	 * @see Service#setPriority(int)
+	 * @see Service#setWeight(int)
+	 */
+	public void setOutboundScheduling(boolean enabled) {
+		outboundScheduling = enabled;
+	}
+	
+	/**
+	 * @return <code>true</code> if outgoing packets are scheduled.
+	 */
+	public boolean isOutboundScheduling() {
+		return outboundScheduling;
+	}
+	
+	/**
+	 * Sets the largest number of connections, including the first one,
+	 * that a client may stripe its services over. Stripes of bigger
+	 * clients are refused. Default is {@link #DEFAULT_MAX_STRIPES}.
+	 */
+	public void setMaxStripes(int maxStripes) {
+		if (maxStripes < 1) {
+			throw new IllegalArgumentException("max stripes must be positive: " + maxStripes);
+		}
+		
+		this.maxStripes = maxStripes;
+	}
+	
+	/**
+	 * @return Largest number of connections of a striped client.
+	 */
+	public int getMaxStripes() {
+		return maxStripes;
+	}
+	
+	/**
+	 * Provides the payload types registry shared by all services.
+	 * Services have their own registries that fall back to this one.
+	 */
+	public PayloadTypeRegistry getPayloadTypes() {
+		return payloadTypes;
+	}
+	
+	/**
+	 * @return Service of <code>id</code> or <code>null</code> if there
+	 * is no such service.
+	 */
+	public synchronized Service getService(int id) {
+		return (Service) services.get(Integer.valueOf(id));
+	}
+	
+	/**
+	 * Sets the profiler that will receive timings of packet processing
+	 * steps that took longer than their thresholds. When profiler is
+	 * set, every packet is timed, but events are created only for
+	 * the slow ones.
+	 * 
+	 * @param profiler Profiler or <code>null</code> to disable profiling.
+	 */
+	public void setProfiler(ServiceProfiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * @return the profiler
+	 */
+	public ServiceProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/**
+	 * Sets the minimal duration of events that are reported to the
+	 * profiler. Default is {@link #DEFAULT_PROFILING_THRESHOLD}.
+	 * 
+	 * @param eventType One of {@link ServiceEvent} types.
+	 * @param threshold Threshold in nanoseconds.
+	 */
+	public void setProfilingThreshold(int eventType, long threshold) {
+		profilingThresholds[eventType] = threshold;
+	}
+	
+	/**
+	 * @return Threshold of <code>eventType</code> in nanoseconds.
+	 */
+	public long getProfilingThreshold(int eventType) {
+		return profilingThresholds[eventType];
+	}
+	
+	/**
+	 * Starts an event if profiling is enabled. Every thread measures
+	 * with one event per type and nothing is allocated until an event
+	 * is reported. Events nested in a busy one of the same type, like
+	 * a packet received synchronously while a listener replies, get
+	 * a new event.
+	 * 
+	 * @return Event of the current thread or <code>null</code> if
+	 * profiling is disabled.
+	 */
+	ServiceEvent startEvent(int type, RemoteClient client) {
+		if (profiler == null) {
+			return null;
+		}
+		
+		final ServiceEvent[] events = (ServiceEvent[]) threadEvents.get();
+		
+		if (events[type] == null) {
+			events[type] = new ServiceEvent(type, client, 0);
+		}
+		else if (events[type].isBusy()) {
+			final ServiceEvent event = new ServiceEvent(type, client, 0);
+			event.restart(client);
+			return event;
+		}
+		
+		events[type].restart(client);
+		
+		return events[type];
+	}
+	
+	/**
+	 * Ends the event and reports a copy of it if it took long enough.
+	 * 
+	 * @param event Event or <code>null</code>.
+	 */
+	void endEvent(ServiceEvent event) {
+		if (event == null) {
+			return;
+		}
+		
+		event.end();
+		
+		final ServiceProfiler currentProfiler = profiler;
+		
+		if (currentProfiler != null && event.getDuration() >= profilingThresholds[event.getType()]) {
+			currentProfiler.eventRecorded(event.copy());
+		}
+		
+		event.release();
+	}
+	
+	/**
+	 * Reports an event that started at <code>startTime</code> and
+	 * ends now, if it took long enough. The event object is created
+	 * only when it's reported.
+	 */
+	void endEvent(int type, RemoteClient client, int serviceId, Object data, long startTime) {
+		final ServiceProfiler currentProfiler = profiler;
+		
+		if (currentProfiler == null || System.nanoTime() - startTime < profilingThresholds[type]) {
+			return;
+		}
+		
+		final ServiceEvent event = new ServiceEvent(type, client, startTime);
+		
+		event.setServiceId(serviceId);
+		event.setPayload(data);
+		event.end();
+		
+		currentProfiler.eventRecorded(event);
+	}
+	
+	/**
+	 * @return <code>true</code> if there is a profiler set.
+	 */
+	boolean isProfiling() {
+		return profiler != null;
+	}
+	
+	/**
+	 * Provides the timer thread shared by all services of this server.
+	 */
+	synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("ServiceServer timer", true);
+		}
+		
+		return timer;
+	}
+	
+	/**
+	 * @return Pool of outgoing packets or <code>null</code> if disabled.
+	 */
+	ServiceDataPacketPool getPacketPool() {
+		return packetPool;
+	}
+	
+	private synchronized void handleClientConnected(Server transport, final RemoteClient client) {
+		final ClientHandler handler = new ClientHandler(client, nextClientId++, transport);
+		
+		handler.slot = membership.addClient(handler);
+		clients.put(client, handler);
+		
+		final TrafficRecorder currentRecorder = recorder;
+		
+		if (currentRecorder != null) {
+			currentRecorder.recordConnection(handler.id, TrafficRecorder.TYPE_CONNECT);
+		}
+		
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				record(TrafficRecorder.INBOUND, handler, data);
+				
+				// stripes speak for the first connection of their client
+				final ClientHandler session = handler.session;
+				handlePacketReceived(session != null ? session.remoteClient : client, data);
+			}
+		});
+	}
+	
+	/** When client disconnects */
+	private void handleClientDisconnected(RemoteClient client, int reason, String reasonString) {
+		
+		final ClientHandler handler;
+		final Object[] joined;
+		final ClientHandler[] stripes;
+		
+		synchronized (this) {
+			handler = (ClientHandler) clients.remove(client);
+			
+			if (handler == null) {
+				// all clients are removed at once when server is closed
+				return;
+			}
+			
+			if (handler.session != null) {
+				// client is still there on its other connections
+				unlinkStripe(handler);
+				joined = new Object[0];
+				stripes = null;
+			} else {
+				joined = membership.removeClient(handler.slot);
+				stripes = handler.stripes;
+				
+				if (handler.sessionToken != 0) {
+					sessions.remove(Long.valueOf(handler.sessionToken));
+				}
+			}
+			
+			listingSubscribers.remove(handler);
+			
+			if (handler.datagramPeer != null && datagramTransport != null) {
+				datagramTransport.removePeer(handler.datagramPeer);
+			}
+		}
+		
+		handler.scheduler.clear();
+		
+		final TrafficRecorder currentRecorder = recorder;
+		
+		if (currentRecorder != null) {
+			currentRecorder.recordConnection(handler.id, TrafficRecorder.TYPE_DISCONNECT);
+		}
+		
+		// stripes leave along with their client
+		if (stripes != null) {
+			for (int i = 1; i < stripes.length; ++i) {
+				if (stripes[i] != null) {
+					stripes[i].remoteClient.disconnect();
+				}
+			}
+		}
+		
+		// let the all services know about disconnection
+		for (int i = 0; i < joined.length; ++i) {
+			((Service) joined[i]).notifyClientDisconnected(client, reason, reasonString);
+		}
+	}
+	
+	/**
+	 * Handles packets of the batch in order. Batches hold only data,
+	 * request and response packets of their service, so they don't nest.
+	 */
+	private void handleServiceBatchPacket(RemoteClient sender, ServiceBatchPacket batch) {
+		final ServicePacket[] packets = batch.getPackets();
+		
+		for (int i = 0; i < packets.length; ++i) {
+			if (!ServiceBatchPacket.isBatchable(packets[i], batch.getServiceId())) {
+				logger.warning("got batch of service " + batch.getServiceId() + " with packet " + packets[i] + " from " + sender);
+				return;
+			}
+		}
+		
+		for (int i = 0; i < packets.length; ++i) {
+			handlePacketReceived(sender, packets[i]);
+		}
+	}
+	
+	private void handlePacketReceived(RemoteClient sender, Object data) {
+		if (!(data instanceof ServicePacket)) {
+			return;
+		}
+		
+		final ServicePacket packet = (ServicePacket) data;
+		final int type = packet.getPacketType();
+		
+		if (type >= 0 && type < PACKET_CLASSES.length && packet.getClass() != PACKET_CLASSES[type]) {
+			logger.warning("got packet " + packet.getClass().getName() + " of type " + type + " reserved for " + PACKET_CLASSES[type].getName() + " from " + sender);
+			return;
+		}
+		
+		if (type == ServicePacket.TYPE_BATCH) {
+			handleServiceBatchPacket(sender, (ServiceBatchPacket) packet);
+			return;
+		}
+		
+		final ServiceEvent event = startEvent(ServiceEvent.ROUTE, sender);
+		
+		switch (type) {
+			case ServicePacket.TYPE_DATA:
+				handleServiceDataPacet(sender, (ServiceDataPacket) packet, event);
+				break;
+			case ServicePacket.TYPE_REQUEST:
+				handleServiceRequestPacket(sender, (ServiceRequestPacket) packet, event);
+				break;
+			case ServicePacket.TYPE_RESPONSE:
+				handleServiceResponsePacket(sender, (ServiceResponsePacket) packet, event);
+				break;
+			case ServicePacket.TYPE_CHUNK:
+				handleServiceChunkPacket(sender, (ServiceChunkPacket) packet, event);
+				break;
+			case ServicePacket.TYPE_LISTING_REQUEST:
+				handleServiceListingRequestPacket(sender, (ServiceListingRequestPacket) packet);
+				break;
+			case ServicePacket.TYPE_LISTING_SUBSCRIBE:
+				handleServiceListingSubscribePacket(sender, (ServiceListingSubscribePacket) packet);
+				break;
+			case ServicePacket.TYPE_SESSION:
+				handleServiceSessionPacket(sender);
+				break;
+			case ServicePacket.TYPE_STRIPE:
+				handleServiceStripePacket(sender, (ServiceStripePacket) packet);
+				break;
+			case ServicePacket.TYPE_DATAGRAM_REQUEST:
+				handleServiceDatagramRequestPacket(sender);
+				break;
+			case ServicePacket.TYPE_JOIN:
+				final ServiceEvent joinEvent = startEvent(ServiceEvent.JOIN, sender);
+				handleServiceJoinPacket(sender, (ServiceJoinPacket) packet, joinEvent);
+				endEvent(joinEvent);
+				break;
+			default:
+				handleApplicationPacket(sender, packet);
+		}
+		
+		endEvent(event);
+	}
+	
+	/**
+	 * Passes the packet to the handler registered for its type.
+	 */
+	private void handleApplicationPacket(RemoteClient sender, ServicePacket packet) {
+		final int type = packet.getPacketType();
+		final ServicePacketHandler[] handlers = packetHandlers;
+		final ServicePacketHandler handler = type >= 0 && type < handlers.length ? handlers[type] : null;
+		
+		if (handler == null) {
+			logger.warning("got packet " + packet.getClass().getName() + " of unknown type " + type + " from " + sender);
+			return;
+		}
+		
+		handler.packetReceived(sender, packet);
+	}
+	
+	/**
+	 * Registers the handler of application packets of <code>type</code>.
+	 * Types below {@link ServicePacket#FIRST_USER_TYPE} are reserved
+	 * for packets of this library. Packets of types without handler
+	 * are logged and dropped.
+	 * 
+	 * @param type Packet type from {@link ServicePacket#FIRST_USER_TYPE}
+	 * to {@link ServicePacket#MAX_TYPE}.
+	 * @param handler Handler or <code>null</code> to remove it.
+	 */
+	public synchronized void setPacketHandler(int type, ServicePacketHandler handler) {
+		if (type < ServicePacket.FIRST_USER_TYPE || type > ServicePacket.MAX_TYPE) {
+			throw new IllegalArgumentException("packet type must be from " + ServicePacket.FIRST_USER_TYPE
+					+ " to " + ServicePacket.MAX_TYPE + ": " + type);
+		}
+		
+		final ServicePacketHandler[] handlers = (ServicePacketHandler[]) packetHandlers.clone();
+		handlers[type] = handler;
+		packetHandlers = handlers;
+	}
+	
+	/**
+	 * @return Handler of packets of <code>type</code> or <code>null</code>.
+	 */
+	public ServicePacketHandler getPacketHandler(int type) {
+		final ServicePacketHandler[] handlers = packetHandlers;
+		
+		return type >= 0 && type < handlers.length ? handlers[type] : null;
+	}
+
+	/**
+	 * Called by datagram channel when a data packet comes.
+	 */
+	void notifyDatagramReceived(ClientHandler sender, ServiceDataPacket packet) {
+		record(TrafficRecorder.INBOUND, sender, packet);
+		handlePacketReceived(sender.remoteClient, packet);
+	}
+	
+	/**
+	 * Opens a session that other connections of the client can join
+	 * as stripes and sends back its token.
+	 */
+	private void handleServiceSessionPacket(RemoteClient sender) {
+		final ClientHandler handler;
+		
+		synchronized (this) {
+			handler = (ClientHandler) clients.get(sender);
+			
+			if (handler == null) {
+				return;
+			}
+			
+			while (handler.sessionToken == 0) {
+				handler.sessionToken = tokenRandom.nextLong();
+				
+				if (sessions.containsKey(Long.valueOf(handler.sessionToken))) {
+					handler.sessionToken = 0;
+				}
+			}
+			
+			sessions.put(Long.valueOf(handler.sessionToken), handler);
+			
+			try {
+				queueControl(handler, new ServiceSessionPacket(handler.sessionToken));
+			} catch (NotSerializableException e) {
+				// not possible
+			} catch (NetworkException e) {
+				// ignore
+			}
+		}
+		
+		flushControl(handler);
+	}
+	
+	/**
+	 * Joins the connection to a session as a stripe and confirms it.
+	 */
+	private void handleServiceStripePacket(RemoteClient sender, ServiceStripePacket packet) {
+		final ClientHandler handler;
+		
+		synchronized (this) {
+			handler = (ClientHandler) clients.get(sender);
+			
+			if (handler == null) {
+				return;
+			}
+			
+			final ClientHandler primary = (ClientHandler) sessions.get(Long.valueOf(packet.getToken()));
+			ServicePacket response = packet;
+			
+			if (!linkStripe(handler, primary, packet)) {
+				logger.warning("stripe " + packet.getIndex() + "/" + packet.getCount() + " from " + sender + " refused");
+				response = new ServiceStripePacket(packet.getToken(), -1, packet.getCount(), packet.getServices());
+			}
+			
+			try {
+				queueControl(handler, response);
+			} catch (NotSerializableException e) {
+				// not possible
+			} catch (NetworkException e) {
+				// ignore
+			}
+		}
+		
+		flushControl(handler);
+	}
+	
+	/**
+	 * Makes <code>stripe</code> one of connections of the client of
+	 * <code>primary</code>. Stripe must not have joined any service.
+	 * Must be called with the server lock held.
+	 * 
+	 * @return <code>false</code> if stripe cannot be joined.
+	 */
+	private boolean linkStripe(ClientHandler stripe, ClientHandler primary, ServiceStripePacket packet) {
+		final int index = packet.getIndex();
+		final int count = packet.getCount();
+		
+		if (primary == null || stripe == primary || stripe.sessionToken != 0 || stripe.session != null
+				|| index < 1 || index >= count || count > maxStripes || membership.getServices(stripe.slot).length > 0) {
+			return false;
+		}
+		
+		ClientHandler[] stripes = primary.stripes;
+		
+		if (stripes == null) {
+			stripes = new ClientHandler[count];
+			stripes[0] = primary;
+		} else if (stripes.length != count || stripes[index] != null) {
+			return false;
+		} else {
+			stripes = (ClientHandler[]) stripes.clone();
+		}
+		
+		stripes[index] = stripe;
+		
+		// stripe is a member of services through its client
+		membership.removeClient(stripe.slot);
+		listingSubscribers.remove(stripe);
+		stripe.session = primary;
+		
+		final Map routes = new HashMap(primary.routes);
+		final int[] services = packet.getServices();
+		
+		for (int i = 0; i < services.length; ++i) {
+			routes.put(Integer.valueOf(services[i]), stripe);
+		}
+		
+		primary.routes = routes;
+		primary.stripes = stripes;
+		
+		return true;
+	}
+	
+	/**
+	 * Removes disconnected <code>stripe</code> from its client, so its
+	 * services are sent over the first connection. Must be called with
+	 * the server lock held.
+	 */
+	private void unlinkStripe(ClientHandler stripe) {
+		final ClientHandler primary = stripe.session;
+		final ClientHandler[] stripes = (ClientHandler[]) primary.stripes.clone();
+		
+		for (int i = 0; i < stripes.length; ++i) {
+			if (stripes[i] == stripe) {
+				stripes[i] = null;
+			}
+		}
+		
+		final Map routes = new HashMap(primary.routes);
+		
+		for (final Iterator itor = routes.values().iterator(); itor.hasNext();) {
+			if (itor.next() == stripe) {
+				itor.remove();
+			}
+		}
+		
+		primary.routes = routes;
+		primary.stripes = stripes;
+	}
+	
+	/**
+	 * Sends back the datagram token of the connection.
+	 */
+	private void handleServiceDatagramRequestPacket(RemoteClient sender) {
+		final ClientHandler handler;
+		
+		synchronized (this) {
+			handler = (ClientHandler) clients.get(sender);
+			
+			if (datagramTransport == null || handler == null) {
+				return;
+			}
+			
+			if (handler.datagramPeer == null) {
+				handler.datagramPeer = datagramTransport.newPeer(handler);
+			}
+			
+			try {
+				queueControl(handler, new ServiceDatagramTokenPacket(handler.datagramPeer.token, datagramTransport.getPort()));
+			} catch (NotSerializableException e) {
+				// not possible
+			} catch (NetworkException e) {
+				// ignore
+			}
+		}
+		
+		flushControl(handler);
+	}
+	
+	/**
+	 * Routes the data packet to its service. Only the lookup is done
+	 * under the server lock, so that the rate limiting and listeners
+	 * of one service don't hold up the others.
+	 * 
+	 * @param sender
+	 * @param packet
+	 * @param event Profiling event or <code>null</code>
+	 */
+	private void handleServiceDataPacet(RemoteClient sender, ServiceDataPacket packet, ServiceEvent event) {
+		final Service targetService = findJoinedService(sender, packet.getServiceId(), event);
+		
+		if (targetService == null) {
+			return;
+		}
+		
+		if (event != null) {
+			event.setPayload(packet);
+		}
+		
+		// just put the packet throu
+		targetService.notifyPacketReceived(sender, packet);
+	}
+	
+	private void handleServiceRequestPacket(RemoteClient sender, ServiceRequestPacket packet, ServiceEvent event) {
+		final Service targetService = findJoinedService(sender, packet.getServiceId(), event);
 		
-		client.addPacketListener(new PacketListener() {
-			public void packetReceived(Object data) {
-				handlePacketReceived(client, data);
-			}
-		});
+		if (targetService == null) {
+			return;
+		}
+		
+		if (event != null) {
+			event.setPayload(packet.getData());
+		}
+		
+		targetService.notifyRequestReceived(sender, packet.getRequestId(), packet.getData());
 	}
 	
-	/** When client disconnects */
-	private synchronized void handleClientDisconnected(RemoteClient client, int reason, String reasonString) {
-		
-		// let the all services know about disconnection
-		final ClientHandler handler = (ClientHandler) clients.get(client);
+	private void handleServiceResponsePacket(RemoteClient sender, ServiceResponsePacket packet, ServiceEvent event) {
+		final Service targetService = findJoinedService(sender, packet.getServiceId(), event);
 		
-		if (handler == null) {
-			logger.severe("got message from client " + client + " but no handler found; this is possible a bug!");
+		if (targetService == null) {
 			return;
 		}
 		
-		Service service;
-		for (final Iterator itor = handler.services.values().iterator(); itor.hasNext();) {
-			service = (Service) itor.next();
-			service.notifyClientDisconnected(client, reason, reasonString);
+		if (event != null) {
+			event.setPayload(packet.getData());
 		}
 		
-		clients.remove(client);
+		targetService.notifyResponseReceived(sender, packet.getRequestId(), packet.getData());
 	}
 	
-	private void handlePacketReceived(RemoteClient sender, Object data) {
-		if (!(data instanceof ServicePacket)) {
+	private void handleServiceChunkPacket(RemoteClient sender, ServiceChunkPacket packet, ServiceEvent event) {
+		final Service targetService = findJoinedService(sender, packet.getServiceId(), event);
+		
+		if (targetService == null) {
 			return;
 		}
 		
-		if (data instanceof ServiceDataPacket) {
-			handleServiceDataPacet(sender, (ServiceDataPacket) data);
+		targetService.notifyChunkReceived(sender, packet);
+	}
+	
+	/**
+	 * Finds the service that packet from <code>sender</code> is
+	 * addressed to.
+	 * 
+	 * @param event Profiling event started right before the call or <code>null</code>
+	 * @return Service or <code>null</code> if sender hasn't joined it.
+	 */
+	private synchronized Service findJoinedService(RemoteClient sender, int serviceId, ServiceEvent event) {
+		if (event != null) {
+			event.addLockWait(System.nanoTime() - event.getStartTime());
+			event.setServiceId(serviceId);
 		}
-		else if (data instanceof ServiceListingRequestPacket) {
-			handleServiceListingRequestPacket(sender, (ServiceListingRequestPacket) data);
+		
+		final ClientHandler clientHandler = (ClientHandler) clients.get(sender);
+		
+		if (clientHandler == null) {
+			logger.severe("got message from client " + sender + " but no handler found; this is possible a bug!");
+			return null;
 		}
-		else if (data instanceof ServiceJoinPacket) {
-			handleServiceJoinPacket(sender, (ServiceJoinPacket) data);
+		
+		// sender must belong to this service
+		final Service service = (Service) services.get(Integer.valueOf(serviceId));
+		
+		if (service == null || !membership.isMember(clientHandler.slot, service.getIndex())) {
+			logger.warning("got packet from " + sender + " to service " + serviceId + ", but he doesn't belong to that service");
+			return null;
 		}
+		
+		return service;
 	}
 
 	/**
 	 * @param sender
 	 * @param packet
+	 * @param event Profiling event started right before the call or <code>null</code>
 	 */
-	private synchronized void handleServiceDataPacet(RemoteClient sender, ServiceDataPacket packet) {
-		// sender must belong to this service
-		final Integer serviceId = Integer.valueOf(packet.getServiceId());
-		final ClientHandler clientHandler = (ClientHandler) clients.get(sender);
+	private void handleServiceJoinPacket(RemoteClient sender, ServiceJoinPacket packet, ServiceEvent event) {
+		if (factoryRanges.length > 0) {
+			createRequestedServices(packet.getServices());
+		}
 		
-		if (!clientHandler.services.containsKey(serviceId)) {
-			logger.warning("got packet from " + sender + " to service " + serviceId + ", but he doesn't belong to that service");
-			return;
+		final ClientHandler handler = joinServices(sender, packet, event);
+		
+		if (handler != null) {
+			flushControl(handler);
 		}
+	}
+	
+	/**
+	 * Creates services that are requested for the first time, if they
+	 * belong to a range of a factory.
+	 */
+	private void createRequestedServices(int[] ids) {
+		FactoryRange range;
+		Service service;
 		
-		// just put the packet throu
-		final Service targetService = (Service) clientHandler.services.get(serviceId);
-		targetService.notifyPacketReceived(sender, packet.getData());
+		for (int i = 0; i < ids.length; ++i) {
+			range = findFactoryRange(ids[i]);
+			
+			if (range == null || getService(ids[i]) != null) {
+				continue;
+			}
+			
+			synchronized (listingLock) {
+				if (getService(ids[i]) != null) {
+					// created by a concurrent join
+					continue;
+				}
+				
+				service = range.factory.createService(this, ids[i]);
+				
+				if (service != null) {
+					range.created.put(service, new long[1]);
+				}
+			}
+		}
 	}
-
+	
+	private FactoryRange findFactoryRange(int id) {
+		final FactoryRange[] ranges = factoryRanges;
+		
+		for (int i = 0; i < ranges.length; ++i) {
+			if (id >= ranges[i].firstId && id <= ranges[i].lastId) {
+				return ranges[i];
+			}
+		}
+		
+		return null;
+	}
+	
 	/**
-	 * @param sender
-	 * @param packet
+	 * Lets <code>factory</code> create services of ids from
+	 * <code>firstId</code> to <code>lastId</code> when clients join
+	 * them for the first time. Services created this way are removed
+	 * after they have had no clients for <code>idleTimeout</code>.
+	 * 
+	 * @param idleTimeout Time in milliseconds, <code>0</code> to never
+	 * remove created services.
+	 * @throws IllegalArgumentException If the range overlaps a range
+	 * of another factory.
 	 */
-	private synchronized void handleServiceJoinPacket(RemoteClient sender, ServiceJoinPacket packet) {
+	public void addServiceFactory(int firstId, int lastId, ServiceFactory factory, long idleTimeout) {
+		if (firstId > lastId || idleTimeout < 0) {
+			throw new IllegalArgumentException("bad range " + firstId + ".." + lastId + " or idle timeout " + idleTimeout);
+		}
 		
-		try {
-			final ClientHandler handler = (ClientHandler) clients.get(sender);
+		final FactoryRange range = new FactoryRange(firstId, lastId, factory, idleTimeout);
+		
+		synchronized (listingLock) {
+			final FactoryRange[] ranges = factoryRanges;
 			
-			if (handler == null) {
-				logger.severe("got message from client " + sender + " but no handler found; this is possible a bug!");
-				return;
+			for (int i = 0; i < ranges.length; ++i) {
+				if (firstId <= ranges[i].lastId && lastId >= ranges[i].firstId) {
+					throw new IllegalArgumentException("range " + firstId + ".." + lastId + " overlaps " + ranges[i].firstId + ".." + ranges[i].lastId);
+				}
+			}
+			
+			final FactoryRange[] newRanges = new FactoryRange[ranges.length + 1];
+			System.arraycopy(ranges, 0, newRanges, 0, ranges.length);
+			newRanges[ranges.length] = range;
+			
+			factoryRanges = newRanges;
+		}
+		
+		if (idleTimeout > 0) {
+			final long period = Math.max(idleTimeout / 4, 1);
+			getTimer().scheduleAtFixedRate(range, period, period);
+		}
+	}
+	
+	/**
+	 * Removes services of <code>range</code> that have had no clients
+	 * for its idle timeout.
+	 */
+	private void releaseIdleServices(FactoryRange range) {
+		final List/*<Service>*/ released = new LinkedList();
+		
+		synchronized (listingLock) {
+			final long now = System.currentTimeMillis();
+			
+			Map.Entry entry;
+			Service service;
+			long[] idleSince;
+			
+			for (final Iterator itor = range.created.entrySet().iterator(); itor.hasNext();) {
+				entry = (Map.Entry) itor.next();
+				service = (Service) entry.getKey();
+				idleSince = (long[]) entry.getValue();
+				
+				synchronized (this) {
+					if (isRemoved(service)) {
+						itor.remove();
+						continue;
+					}
+					
+					if (membership.getClientCount(service.getIndex()) > 0) {
+						idleSince[0] = 0;
+						continue;
+					}
+				}
+				
+				if (idleSince[0] == 0) {
+					idleSince[0] = now;
+				} else if (now - idleSince[0] >= range.idleTimeout && removeService(service.getId(), true) != null) {
+					itor.remove();
+					released.add(service);
+				}
+			}
+		}
+		
+		for (final Iterator itor = released.iterator(); itor.hasNext();) {
+			range.factory.serviceReleased((Service) itor.next());
+		}
+	}
+	
+	/**
+	 * Joins the client to services and queues the response, which
+	 * must be flushed after the server lock is released.
+	 * 
+	 * @return Handler of the client or <code>null</code> if not found.
+	 */
+	private synchronized ClientHandler joinServices(RemoteClient sender, ServiceJoinPacket packet, ServiceEvent event) {
+		
+		if (event != null) {
+			event.addLockWait(System.nanoTime() - event.getStartTime());
+			
+			if (packet.getServices().length == 1) {
+				event.setServiceId(packet.getServices()[0]);
 			}
+		}
+		
+		final ClientHandler handler = (ClientHandler) clients.get(sender);
+		
+		if (handler == null) {
+			logger.severe("got message from client " + sender + " but no handler found; this is possible a bug!");
+			return null;
+		}
+		
+		try {
 			
 			// join the service
 			
 			final int[] services = packet.getServices();
 			final List/*<Integer>*/ servicesJoined = new LinkedList();
+			final int[] rejected = new int[services.length];
+			final int[] reasons = new int[services.length];
+			final int[] retryAfter = new int[services.length];
+			int rejectedCount = 0;
 			
 			Integer serviceId;
 			Service service;
+			int reason;
 			
 			for (int i = 0; i < services.length; ++i) {
 				
 				serviceId = Integer.valueOf(services[i]);
 				
-				if (!this.services.containsKey(serviceId)) {
+				service = (Service) this.services.get(serviceId);
+				
+				if (service == null) {
+					reason = ServiceJoinResponsePacket.REASON_UNKNOWN_SERVICE;
+				} else if (membership.isMember(handler.slot, service.getIndex())) {
+					reason = 0;
+				} else {
+					reason = service.checkAdmission(membership.getClientCount(service.getIndex()));
+				}
+				
+				if (reason != 0) {
+					rejected[rejectedCount] = services[i];
+					reasons[rejectedCount] = reason;
+					
+					if (reason == ServiceJoinResponsePacket.REASON_FULL || reason == ServiceJoinResponsePacket.REASON_OVERLOADED) {
+						retryAfter[rejectedCount] = service.getRetryAfter() + random.nextInt(service.getRetryAfter() / 2 + 1);
+					}
+					
+					++rejectedCount;
 					continue;
 				}
 				
-				if (!handler.services.containsKey(serviceId)) {
-					service = (Service) this.services.get(serviceId);
-					service.notifyClientConnected(sender);
+				if (membership.join(handler.slot, service.getIndex())) {
+					service.notifyClientConnected(sender, handler);
 					
-					handler.services.put(serviceId, service);
+					if (service.getFlowWindow() > 0) {
+						// credits must come before the join response
+						service.getClient(sender, handler).startFlowControl(service.getFlowWindow());
+					}
 				}
 				
 				servicesJoined.add(serviceId);
@@ -225,12 +1421,21 @@ public class ServiceServer {
 				servicesJoinedInt[counter++] = ((Integer)itor.next()).intValue();
 			}
 		
-			sender.send(new ServiceJoinResponsePacket(servicesJoinedInt));
+			queueControl(handler, new ServiceJoinResponsePacket(servicesJoinedInt,
+					trim(rejected, rejectedCount), trim(reasons, rejectedCount), trim(retryAfter, rejectedCount)));
 		} catch (NotSerializableException e) {
 			// impossible
 		} catch (NetworkException e) {
 			// do nothing
 		}
+		
+		return handler;
+	}
+	
+	private static int[] trim(int[] array, int length) {
+		final int[] result = new int[length];
+		System.arraycopy(array, 0, result, 0, length);
+		return result;
 	}
 	
 	/**
@@ -252,58 +1457,240 @@ public class ServiceServer {
 			return false;
 		}
 		
-		return handler.services.containsKey(Integer.valueOf(serviceId));
+		final Service service = (Service) services.get(Integer.valueOf(serviceId));
+		
+		return service != null && membership.isMember(handler.slot, service.getIndex());
 	}
 	
-	synchronized void disconnectClientFromService(RemoteClient client, int serviceId) {
+	/**
+	 * Provides the service client of <code>client</code>, creating it
+	 * if service hasn't done it yet.
+	 * 
+	 * @return Service client or <code>null</code> if client hasn't
+	 * joined the service.
+	 */
+	synchronized ServiceRemoteClient getServiceClient(Service service, RemoteClient client) {
 		final ClientHandler handler = (ClientHandler) clients.get(client);
 		
-		if (handler == null) {
-			return;
+		if (handler == null || isRemoved(service) || !membership.isMember(handler.slot, service.getIndex())) {
+			return null;
 		}
 		
-		final Service service = (Service) handler.services.get(Integer.valueOf(serviceId));
-		
-		if (service == null) {
-			return;
+		return service.getClient(client, handler);
+	}
+	
+	/**
+	 * @return Service clients of all clients that have joined <code>service</code>.
+	 */
+	synchronized RemoteClient[] getServiceClients(Service service) {
+		if (isRemoved(service)) {
+			return new RemoteClient[0];
 		}
 		
-		handler.services.remove(Integer.valueOf(serviceId));
-		service.notifyClientDisconnected(client, DisconnectReason.UserAction, "user action");
+		final Object[] handlers = membership.getClients(service.getIndex());
+		final RemoteClient[] result = new RemoteClient[handlers.length];
 		
-		// FIXME: send disconnection information to ServiceClient
+		ClientHandler handler;
+		for (int i = 0; i < handlers.length; ++i) {
+			handler = (ClientHandler) handlers[i];
+			result[i] = service.getClient(handler.remoteClient, handler);
+		}
+		
+		return result;
 	}
 	
 	/**
-	 * Sends back the service listing information.
-	 * 
-	 * @param data
+	 * @return Number of clients that have joined <code>service</code>.
+	 */
+	synchronized int getClientCount(Service service) {
+		return isRemoved(service) ? 0 : membership.getClientCount(service.getIndex());
+	}
+	
+	/**
+	 * @return <code>true</code> if <code>service</code> was removed, so
+	 * its index may belong to another service now.
 	 */
-	private synchronized void handleServiceListingRequestPacket(RemoteClient sender, ServiceListingRequestPacket data) {
+	private boolean isRemoved(Service service) {
+		return services.get(Integer.valueOf(service.getId())) != service;
+	}
+	
+	private static RemoteClient[] toRemoteClients(Object[] handlers) {
+		final RemoteClient[] result = new RemoteClient[handlers.length];
 		
-		try {
+		for (int i = 0; i < handlers.length; ++i) {
+			result[i] = ((ClientHandler) handlers[i]).remoteClient;
+		}
+		
+		return result;
+	}
+	
+	void disconnectClientFromService(RemoteClient client, int serviceId) {
+		disconnectClientFromService(client, serviceId, DisconnectReason.UserAction, "user action");
+	}
+	
+	void disconnectClientFromService(RemoteClient client, int serviceId, int reason, String reasonString) {
+		final Service service;
+		
+		synchronized (this) {
+			final ClientHandler handler = (ClientHandler) clients.get(client);
 			
-			int[] ids;
+			if (handler == null) {
+				return;
+			}
 			
-			ids = new int[services.size()];
+			service = (Service) services.get(Integer.valueOf(serviceId));
 			
-			Service service;
-			int counter = 0;
-			for (Iterator itor = services.values().iterator(); itor.hasNext(); ) {
-				service = (Service) itor.next();
-				ids[counter++] = service.getId();
+			if (service == null || !membership.leave(handler.slot, service.getIndex())) {
+				return;
+			}
+		}
+		
+		service.notifyClientDisconnected(client, reason, reasonString);
+		
+		// FIXME: send disconnection information to ServiceClient
+	}
+	
+	/**
+	 * Sends a packet of the service protocol itself, ahead of queued
+	 * service packets if outbound scheduling is enabled. Must not be
+	 * called with the server lock held, use
+	 * {@link #queueControl(ClientHandler, ServicePacket)} there.
+	 */
+	void sendControl(ClientHandler handler, ServicePacket packet) throws NotSerializableException, NetworkException {
+		queueControl(handler, packet);
+		flushControl(handler);
+	}
+	
+	/**
+	 * Queues a packet of the service protocol itself if outbound
+	 * scheduling is enabled, so that queued service packets are not
+	 * sent under the server lock. Must be followed by
+	 * {@link #flushControl(ClientHandler)} once the lock is released.
+	 * Without scheduling the packet is sent right away.
+	 */
+	void queueControl(ClientHandler handler, ServicePacket packet) throws NotSerializableException, NetworkException {
+		record(TrafficRecorder.OUTBOUND, handler, packet);
+		
+		if (outboundScheduling) {
+			handler.scheduler.queueControl(packet);
+		} else {
+			handler.remoteClient.send(packet);
+		}
+	}
+	
+	/**
+	 * Sends the control packets queued for the connection.
+	 */
+	void flushControl(ClientHandler handler) {
+		handler.scheduler.flush();
+	}
+	
+	/**
+	 * Removes all clients from <code>service</code> at once.
+	 * 
+	 * @param deadline Time in milliseconds when waiting for pending
+	 * packets gives up.
+	 */
+	void evictService(Service service, int reason, String reasonString, long deadline) {
+		final RemoteClient[] evicted;
+		
+		synchronized (this) {
+			if (isRemoved(service)) {
+				return;
 			}
 			
-			ServicePacket packet = new ServiceListingPacket(ids);
+			evicted = toRemoteClients(membership.removeClients(service.getIndex()));
+		}
+		
+		service.evictAll(evicted, reason, reasonString, deadline);
+	}
+	
+	/**
+	 * Sends back the service listing information. The listing is
+	 * built when services change, not on every request.
+	 * 
+	 * @param data
+	 */
+	private void handleServiceListingRequestPacket(RemoteClient sender, ServiceListingRequestPacket data) {
+		final ClientHandler handler;
+		
+		synchronized (this) {
+			handler = (ClientHandler) clients.get(sender);
+		}
+		
+		sendListing(sender, handler, listing);
+	}
+	
+	/**
+	 * Subscribes the client to listing changes and sends it the
+	 * current listing, or cancels the subscription.
+	 */
+	private void handleServiceListingSubscribePacket(RemoteClient sender, ServiceListingSubscribePacket packet) {
+		synchronized (listingLock) {
+			final ClientHandler handler;
 			
-			sender.send(packet);
+			synchronized (this) {
+				handler = (ClientHandler) clients.get(sender);
+				
+				if (handler == null) {
+					return;
+				}
+				
+				if (!packet.isSubscribe()) {
+					listingSubscribers.remove(handler);
+					return;
+				}
+				
+				listingSubscribers.add(handler);
+			}
 			
+			sendListing(sender, handler, listing);
+		}
+	}
+	
+	private void sendListing(RemoteClient sender, ClientHandler handler, ServicePacket packet) {
+		try {
+			if (handler != null) {
+				sendControl(handler, packet);
+			} else {
+				sender.send(packet);
+			}
 		} catch (NotSerializableException e) {
 			// not possible
 		} catch (NetworkException e) {
 			// ignore
 		}
 	}
+	
+	/**
+	 * Rebuilds the listing after services have changed and provides
+	 * the change for subscribers. Must be called with
+	 * <code>listingLock</code> and the server lock held.
+	 * 
+	 * @return Subscribers that should get the change.
+	 */
+	private ClientHandler[] updateListing() {
+		final int[] ids = new int[services.size()];
+		
+		int counter = 0;
+		for (final Iterator itor = services.keySet().iterator(); itor.hasNext();) {
+			ids[counter++] = ((Integer) itor.next()).intValue();
+		}
+		
+		listing = new ServiceListingPacket(ids, listing.getVersion() + 1);
+		
+		return (ClientHandler[]) listingSubscribers.toArray(new ClientHandler[listingSubscribers.size()]);
+	}
+	
+	/**
+	 * Sends a listing change to subscribers. Must be called with
+	 * <code>listingLock</code> held.
+	 */
+	private void pushListingDelta(ClientHandler[] subscribers, ServiceListingDeltaPacket delta) {
+		for (int i = 0; i < subscribers.length; ++i) {
+			sendListing(subscribers[i].remoteClient, subscribers[i], delta);
+		}
+	}
 
 	/**
 	 * Creates a new service that is bound to this server.
@@ -312,15 +1699,96 @@ public class ServiceServer {
 	 * Coral Reef network applications.
 	 * 
 	 * @return New service (a Server implementation)
+	 * @throws IllegalArgumentException When there already is a service
+	 * of <code>id</code>.
+	 */
+	public Service newService(int id) {
+		return newService(id, null);
+	}
+	
+	/**
+	 * Creates a new service that encodes its payloads with
+	 * <code>codec</code> instead of Java serialization. Received
+	 * payloads are decoded and delivered to listeners on a separate
+	 * thread of the service.
+	 * 
+	 * @param codec Codec or <code>null</code> to use Java serialization.
+	 * @return New service (a Server implementation)
+	 * @throws IllegalArgumentException When there already is a service
+	 * of <code>id</code>. Remove it first to replace it.
+	 */
+	public Service newService(int id, ServiceCodec codec) {
+		synchronized (listingLock) {
+			// services are created and removed only under the listing lock
+			if (getService(id) != null) {
+				throw new IllegalArgumentException("service " + id + " already exists");
+			}
+			
+			final Service service = new Service(this, id, codec);
+			final ClientHandler[] subscribers;
+			
+			synchronized (this) {
+				service.setIndex(membership.addService(service));
+				services.put(Integer.valueOf(id), service);
+				
+				subscribers = updateListing();
+			}
+			
+			pushListingDelta(subscribers, new ServiceListingDeltaPacket(listing.getVersion(), new int[] {id}, new int[0]));
+			
+			return service;
+		}
+	}
+	
+	/**
+	 * Removes the service from this server. Its clients are
+	 * disconnected like on {@link Service#close()} and clients
+	 * subscribed to the listing are told it's gone. Another service
+	 * can be created with the same id after that.
+	 * 
+	 * @return Removed service or <code>null</code> if there was no
+	 * service of <code>id</code>.
+	 */
+	public Service removeService(int id) {
+		return removeService(id, false);
+	}
+	
+	/**
+	 * @param onlyIfEmpty Remove the service only if it has no clients.
 	 */
-	public synchronized Service newService(int id) {
-		final Service service = new Service(this, id);
+	private Service removeService(int id, boolean onlyIfEmpty) {
+		final Service service;
+		final RemoteClient[] evicted;
+		
+		synchronized (listingLock) {
+			final ClientHandler[] subscribers;
+			
+			synchronized (this) {
+				service = (Service) services.get(Integer.valueOf(id));
+				
+				if (service == null || onlyIfEmpty && membership.getClientCount(service.getIndex()) > 0) {
+					return null;
+				}
+				
+				services.remove(Integer.valueOf(id));
+				evicted = toRemoteClients(membership.removeService(service.getIndex()));
+				subscribers = updateListing();
+			}
+			
+			pushListingDelta(subscribers, new ServiceListingDeltaPacket(listing.getVersion(), new int[0], new int[] {id}));
+		}
 		
-		services.put(Integer.valueOf(id), service);
+		service.evictAll(evicted, DisconnectReason.UserAction, "service removed", System.currentTimeMillis());
+		service.stopDispatcher();
+		service.stopTicks();
 		
 		return service;
 	}
 	
+	/**
+	 * Opens the server implementation given to the constructor.
+	 * Attached servers are opened by their owners.
+	 */
 	public void open(int port) throws NetworkException {
 		serverImpl.open(port);
 	}
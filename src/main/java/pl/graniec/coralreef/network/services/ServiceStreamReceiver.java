@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+
+/**
+ * Passes chunks of streams of one service to a {@link ServiceStreamListener}.
+ * Clients add it as packet listener of their connection, service
+ * clients use it for streams sent by clients.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceStreamReceiver implements PacketListener {
+
+	private static final Logger logger = Logger.getLogger(ServiceStreamReceiver.class.getName());
+	
+	/** Service of the streams */
+	private final int serviceId;
+	/** Listener of the streams */
+	private final ServiceStreamListener listener;
+	/** Index of next chunk by open stream id */
+	private final Map/*<Integer, int[]>*/ openStreams = new HashMap();
+	
+	public ServiceStreamReceiver(int serviceId, ServiceStreamListener listener) {
+		this.serviceId = serviceId;
+		this.listener = listener;
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.PacketListener#packetReceived(java.lang.Object)
+	 */
+	public void packetReceived(Object data) {
+		if (data instanceof ServiceChunkPacket && ((ServiceChunkPacket) data).getServiceId() == serviceId) {
+			chunkReceived((ServiceChunkPacket) data);
+		}
+	}
+	
+	/**
+	 * Passes the chunk to the listener. Streams with missing chunks
+	 * are aborted and their remaining chunks ignored.
+	 */
+	public synchronized void chunkReceived(ServiceChunkPacket packet) {
+		final Integer streamId = Integer.valueOf(packet.getStreamId());
+		int[] nextIndex = (int[]) openStreams.get(streamId);
+		
+		if (nextIndex == null) {
+			if (packet.getIndex() != 0) {
+				// rest of aborted stream
+				return;
+			}
+			
+			nextIndex = new int[1];
+			openStreams.put(streamId, nextIndex);
+			listener.streamStarted(packet.getStreamId());
+		}
+		
+		if (packet.getIndex() != nextIndex[0]) {
+			logger.warning("chunk " + nextIndex[0] + " of stream " + streamId + " of service " + serviceId + " is missing");
+			
+			openStreams.remove(streamId);
+			listener.streamAborted(packet.getStreamId());
+			return;
+		}
+		
+		++nextIndex[0];
+		listener.chunkReceived(packet.getStreamId(), packet.getData());
+		
+		if (packet.isLast()) {
+			openStreams.remove(streamId);
+			listener.streamFinished(packet.getStreamId());
+		}
+	}
+	
+	/**
+	 * Aborts all open streams, for example when the sender disconnects.
+	 */
+	public synchronized void abortAll() {
+		for (final Iterator itor = openStreams.keySet().iterator(); itor.hasNext();) {
+			listener.streamAborted(((Integer) itor.next()).intValue());
+		}
+		
+		openStreams.clear();
+	}
+	
+	/**
+	 * @return Number of streams that are being received.
+	 */
+	public synchronized int getOpenStreamCount() {
+		return openStreams.size();
+	}
+}
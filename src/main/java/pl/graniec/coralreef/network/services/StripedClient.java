@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.NotSerializableException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceResponsePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceSessionPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceStripePacket;
+
+/**
+ * Client that spreads its services over several connections to the
+ * same {@link ServiceServer}, so that a congested connection of bulk
+ * services doesn't hold up the others. Service server treats all
+ * connections as one client: it's connected to services once and
+ * packets of every service come over the connection of its stripe.
+ * <p>
+ * Services are assigned to stripes with {@link #assign(int, int)} or,
+ * if they're not, by {@link ServiceStripePacket#stripeOf(int, int)}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class StripedClient {
+
+	/** Connections by stripe index */
+	private final ServiceConnection[] connections;
+	/** Stripe index of explicitly assigned services by service id */
+	private final Map/*<Integer, Integer>*/ assignments = new HashMap();
+	/** Session token, <code>0</code> until server sends it */
+	private long token;
+	/** Number of stripes accepted by server */
+	private int accepted;
+	/** Was any stripe refused */
+	private boolean refused;
+	/** Are packets sent over stripes */
+	private volatile boolean open;
+	
+	/**
+	 * @param connections Open connections to the same service server,
+	 * the first one is used for joins and other control packets.
+	 */
+	public StripedClient(ServiceConnection[] connections) {
+		if (connections.length == 0) {
+			throw new IllegalArgumentException("no connections");
+		}
+		
+		this.connections = connections;
+		
+		final PacketListener handshakeListener = new PacketListener() {
+			public void packetReceived(Object data) {
+				if (data instanceof ServiceSessionPacket) {
+					sessionOpened(((ServiceSessionPacket) data).getToken());
+				} else if (data instanceof ServiceStripePacket) {
+					stripeAnswered(((ServiceStripePacket) data).getIndex() != -1);
+				}
+			}
+		};
+		
+		for (int i = 0; i < connections.length; ++i) {
+			connections[i].addPacketListener(handshakeListener);
+		}
+	}
+	
+	/**
+	 * Assigns service to a stripe, for example to keep latency
+	 * sensitive services away from bulk ones. Must be called before
+	 * {@link #open(long)}.
+	 */
+	public synchronized void assign(int serviceId, int stripe) {
+		if (open) {
+			throw new IllegalStateException("stripes are already open");
+		}
+		
+		if (stripe < 0 || stripe >= connections.length) {
+			throw new IllegalArgumentException("no stripe " + stripe);
+		}
+		
+		assignments.put(Integer.valueOf(serviceId), Integer.valueOf(stripe));
+	}
+	
+	/**
+	 * Opens a session over the first connection and joins the other
+	 * connections to it. Until then all packets go over the first
+	 * connection.
+	 * 
+	 * @param timeout Time in milliseconds to wait for the server.
+	 * @throws NetworkException If server doesn't accept the stripes in time.
+	 */
+	public synchronized void open(long timeout) throws NetworkException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		
+		if (open || connections.length == 1) {
+			open = true;
+			return;
+		}
+		
+		try {
+			send(0, new ServiceSessionPacket());
+			
+			while (token == 0) {
+				waitUntil(deadline, "no session token from server");
+			}
+			
+			for (int i = 1; i < connections.length; ++i) {
+				send(i, new ServiceStripePacket(token, i, connections.length, getAssigned(i)));
+			}
+		} catch (NotSerializableException e) {
+			// not possible
+		}
+		
+		while (accepted < connections.length - 1) {
+			if (refused) {
+				throw new NetworkException("server refused a stripe");
+			}
+			
+			waitUntil(deadline, "server didn't accept stripes");
+		}
+		
+		open = true;
+	}
+	
+	private void waitUntil(long deadline, String message) throws NetworkException {
+		final long remaining = deadline - System.currentTimeMillis();
+		
+		if (remaining <= 0) {
+			throw new NetworkException(message);
+		}
+		
+		try {
+			wait(remaining);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NetworkException(message);
+		}
+	}
+	
+	private synchronized void sessionOpened(long sessionToken) {
+		token = sessionToken;
+		notifyAll();
+	}
+	
+	private synchronized void stripeAnswered(boolean stripeAccepted) {
+		if (stripeAccepted) {
+			++accepted;
+		} else {
+			refused = true;
+		}
+		
+		notifyAll();
+	}
+	
+	private int[] getAssigned(int stripe) {
+		int count = 0;
+		for (final Iterator itor = assignments.values().iterator(); itor.hasNext();) {
+			if (((Integer) itor.next()).intValue() == stripe) {
+				++count;
+			}
+		}
+		
+		final int[] services = new int[count];
+		
+		count = 0;
+		Map.Entry entry;
+		for (final Iterator itor = assignments.entrySet().iterator(); itor.hasNext();) {
+			entry = (Map.Entry) itor.next();
+			
+			if (((Integer) entry.getValue()).intValue() == stripe) {
+				services[count++] = ((Integer) entry.getKey()).intValue();
+			}
+		}
+		
+		return services;
+	}
+	
+	/**
+	 * @return Stripe index of the service.
+	 */
+	public synchronized int getStripe(int serviceId) {
+		final Integer stripe = (Integer) assignments.get(Integer.valueOf(serviceId));
+		
+		return stripe != null ? stripe.intValue() : ServiceStripePacket.stripeOf(serviceId, connections.length);
+	}
+	
+	/**
+	 * Sends service packets over the stripe of their service and
+	 * everything else over the first connection.
+	 */
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		final int serviceId = serviceIdOf(data);
+		
+		send(open && serviceId != -1 ? getStripe(serviceId) : 0, data);
+	}
+	
+	private void send(int stripe, Object data) throws NotSerializableException, NetworkException {
+		connections[stripe].send(data);
+	}
+	
+	private static int serviceIdOf(Object data) {
+		if (data instanceof ServiceDataPacket) {
+			return ((ServiceDataPacket) data).getServiceId();
+		}
+		
+		if (data instanceof ServiceRequestPacket) {
+			return ((ServiceRequestPacket) data).getServiceId();
+		}
+		
+		if (data instanceof ServiceResponsePacket) {
+			return ((ServiceResponsePacket) data).getServiceId();
+		}
+		
+		if (data instanceof ServiceChunkPacket) {
+			return ((ServiceChunkPacket) data).getServiceId();
+		}
+		
+		if (data instanceof ServiceBatchPacket) {
+			return ((ServiceBatchPacket) data).getServiceId();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Adds the listener to all connections.
+	 */
+	public void addPacketListener(PacketListener l) {
+		for (int i = 0; i < connections.length; ++i) {
+			connections[i].addPacketListener(l);
+		}
+	}
+	
+	/**
+	 * Closes all connections.
+	 */
+	public void disconnect() {
+		open = false;
+		
+		for (int i = connections.length - 1; i >= 0; --i) {
+			connections[i].disconnect();
+		}
+	}
+	
+	/**
+	 * @return Number of connections.
+	 */
+	public int getStripeCount() {
+		return connections.length;
+	}
+}
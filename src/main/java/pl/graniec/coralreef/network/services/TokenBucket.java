@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket for a {@link RateLimit}.
+ * <p>
+ * Instead of counting tokens the bucket keeps only the theoretical
+ * arrival time of the next packet (generic cell rate algorithm). This
+ * way the whole state fits in one <code>long</code> and can be updated
+ * with a single compare-and-set.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class TokenBucket {
+
+	/** Limit that this bucket enforces */
+	private final RateLimit limit;
+	/** Nanoseconds needed to refill one token */
+	private final long interval;
+	/** How far ahead of now the arrival time can go */
+	private final long tolerance;
+	/** Theoretical arrival time of the next packet */
+	private final AtomicLong arrival;
+	
+	public TokenBucket(RateLimit limit) {
+		this.limit = limit;
+		
+		interval = Math.max(1, (long) (1000000000L / limit.getRate()));
+		tolerance = interval * (limit.getBurst() - 1);
+		arrival = new AtomicLong(System.nanoTime());
+	}
+	
+	/**
+	 * Takes a token if one is available.
+	 * 
+	 * @param now Current time in nanoseconds.
+	 * 
+	 * @return <code>true</code> if token was taken.
+	 */
+	public boolean tryAcquire(long now) {
+		long tat, base;
+		
+		do {
+			tat = arrival.get();
+			base = tat > now ? tat : now;
+			
+			if (base - now > tolerance) {
+				return false;
+			}
+			
+		} while (!arrival.compareAndSet(tat, base + interval));
+		
+		return true;
+	}
+	
+	/**
+	 * Takes a token, even if it is not available yet.
+	 * 
+	 * @param now Current time in nanoseconds.
+	 * 
+	 * @return Nanoseconds to wait until the token is really available.
+	 */
+	public long reserve(long now) {
+		return reserve(now, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Takes a token if it becomes available within <code>maxWait</code>.
+	 * 
+	 * @param now Current time in nanoseconds.
+	 * @param maxWait Longest acceptable wait in nanoseconds.
+	 * 
+	 * @return Nanoseconds to wait until the token is really available
+	 * or <code>-1</code> if no token was taken.
+	 */
+	public long reserve(long now, long maxWait) {
+		long tat, base, wait;
+		
+		do {
+			tat = arrival.get();
+			base = tat > now ? tat : now;
+			wait = Math.max(0, base - now - tolerance);
+			
+			if (wait > maxWait) {
+				return -1;
+			}
+			
+		} while (!arrival.compareAndSet(tat, base + interval));
+		
+		return wait;
+	}
+	
+	/**
+	 * Gives back a token taken by {@link #tryAcquire(long)} or
+	 * {@link #reserve(long, long)}, when the packet was not
+	 * let through after all.
+	 */
+	public void refund() {
+		arrival.addAndGet(-interval);
+	}
+	
+	/**
+	 * @return the limit
+	 */
+	public RateLimit getLimit() {
+		return limit;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads records of a log written by {@link TrafficRecorder}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficLogReader {
+
+	private final DataInputStream in;
+	/** Wall clock time when recording started */
+	private final long startTime;
+	
+	public TrafficLogReader(File log) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+		
+		if (in.readInt() != TrafficRecorder.MAGIC) {
+			in.close();
+			throw new IOException(log + " is not a traffic log");
+		}
+		
+		final int version = in.readInt();
+		
+		if (version != TrafficRecorder.VERSION) {
+			in.close();
+			throw new IOException("unsupported traffic log version " + version);
+		}
+		
+		startTime = in.readLong();
+	}
+	
+	/**
+	 * @return Time in milliseconds when recording started.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+	
+	/**
+	 * @return Next record or <code>null</code> at the end of log.
+	 */
+	public TrafficRecord next() throws IOException {
+		final int length;
+		
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		
+		if (length == 0) {
+			// unused space of log that wasn't truncated
+			return null;
+		}
+		
+		final long timestamp = in.readLong();
+		final int direction = in.readByte();
+		final int clientId = in.readInt();
+		final int serviceId = in.readInt();
+		final int packetType = in.readByte();
+		final byte[] payload = new byte[length - TrafficRecorder.RECORD_HEADER_SIZE + 4];
+		
+		in.readFully(payload);
+		
+		return new TrafficRecord(timestamp, direction, clientId, serviceId, packetType, payload);
+	}
+	
+	public void close() throws IOException {
+		in.close();
+	}
+}
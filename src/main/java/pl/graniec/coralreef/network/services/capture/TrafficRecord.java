@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.capture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+/**
+ * A single record of traffic log.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficRecord {
+
+	/** Nanoseconds since recording started */
+	private final long timestamp;
+	/** {@link TrafficRecorder#INBOUND} or {@link TrafficRecorder#OUTBOUND} */
+	private final int direction;
+	/** Id of the connection */
+	private final int clientId;
+	/** Service id or <code>-1</code> */
+	private final int serviceId;
+	/** Packet type or one of <code>TrafficRecorder.TYPE_*</code> */
+	private final int packetType;
+	/** Serialized packet, empty for connection events */
+	private final byte[] payload;
+	
+	public TrafficRecord(long timestamp, int direction, int clientId, int serviceId, int packetType, byte[] payload) {
+		this.timestamp = timestamp;
+		this.direction = direction;
+		this.clientId = clientId;
+		this.serviceId = serviceId;
+		this.packetType = packetType;
+		this.payload = payload;
+	}
+	
+	/**
+	 * @return Nanoseconds since recording started.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * @return the direction
+	 */
+	public int getDirection() {
+		return direction;
+	}
+	
+	/**
+	 * @return the clientId
+	 */
+	public int getClientId() {
+		return clientId;
+	}
+	
+	/**
+	 * @return the serviceId
+	 */
+	public int getServiceId() {
+		return serviceId;
+	}
+	
+	/**
+	 * @return the packetType
+	 */
+	public int getPacketType() {
+		return packetType;
+	}
+	
+	/**
+	 * @return the payload
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * @return <code>true</code> if it's a connection event without packet.
+	 */
+	public boolean isConnectionEvent() {
+		return packetType == TrafficRecorder.TYPE_CONNECT || packetType == TrafficRecorder.TYPE_DISCONNECT;
+	}
+	
+	/**
+	 * Deserializes the recorded packet.
+	 * 
+	 * @throws IOException When packet classes are not available.
+	 */
+	public Object getPacket() throws IOException {
+		if (isConnectionEvent()) {
+			return null;
+		}
+		
+		final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+		
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("unknown class in traffic log: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.capture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServicePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceResponsePacket;
+
+/**
+ * Records service traffic to an append-only log file that can be
+ * read by {@link TrafficLogReader} and replayed by {@link TrafficReplayer}.
+ * <p>
+ * Every record holds the time since the recorder was created, the
+ * direction, the client id, the service id, the packet type and the
+ * serialized packet. Records are copied to a preallocated ring buffer
+ * and written to the memory-mapped log by a background thread, so
+ * recording never waits for the disk. When the ring buffer is full
+ * the records are dropped and counted.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficRecorder implements Runnable {
+
+	/** Packet sent by a client */
+	public static final int INBOUND = 0;
+	/** Packet sent to a client */
+	public static final int OUTBOUND = 1;
+	
+	/** Client has connected, there is no packet */
+	public static final int TYPE_CONNECT = -1;
+	/** Client has disconnected, there is no packet */
+	public static final int TYPE_DISCONNECT = -2;
+	/** Packet that is not a {@link ServicePacket} */
+	public static final int TYPE_OTHER = -3;
+	
+	/** Default size of the ring buffer, 4 MB */
+	public static final int DEFAULT_BUFFER_SIZE = 4 << 20;
+	
+	/** First bytes of every log */
+	static final int MAGIC = 0x43524341;
+	/** Log format version */
+	static final int VERSION = 2;
+	/** Size of log header: magic, version, start time */
+	static final int LOG_HEADER_SIZE = 16;
+	/** Size of record header: length, timestamp, direction, client, service, type */
+	static final int RECORD_HEADER_SIZE = 22;
+	
+	private static final Logger logger = Logger.getLogger(TrafficRecorder.class.getName());
+	
+	/** Size of log regions mapped at once */
+	private static final int MAP_SIZE = 16 << 20;
+	/** Time between flushes in milliseconds */
+	private static final long FLUSH_INTERVAL = 50;
+	
+	private static final byte[] EMPTY = new byte[0];
+	
+	/** Records waiting to be written */
+	private final byte[] ring;
+	/** Total bytes put into the ring */
+	private long head;
+	/** Total bytes written to the log */
+	private long tail;
+	
+	/** Log file */
+	private final RandomAccessFile file;
+	/** Channel of the log file */
+	private final FileChannel channel;
+	/** Currently mapped region of the log */
+	private MappedByteBuffer mapped;
+	/** Log position of the mapped region */
+	private long mappedPosition;
+	
+	/** Time when the recorder was created */
+	private final long startTime = System.nanoTime();
+	/** Thread writing the log */
+	private final Thread flusher;
+	/** Is the recorder closed */
+	private volatile boolean closed;
+	/** Keeps the flusher from emptying the ring, used by tests */
+	volatile boolean flushPaused;
+	
+	/** Serialization streams of recording threads */
+	private final ThreadLocal/*<PacketEncoder>*/ encoders = new ThreadLocal() {
+		protected Object initialValue() {
+			try {
+				return new PacketEncoder();
+			} catch (IOException e) {
+				throw new RuntimeException("not possible");
+			}
+		}
+	};
+	
+	/** Number of recorded records */
+	private final AtomicLong recorded = new AtomicLong();
+	/** Number of dropped records */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	/**
+	 * Creates the log file with default ring buffer size.
+	 */
+	public TrafficRecorder(File log) throws IOException {
+		this(log, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Creates the log file, any existing file is overwritten.
+	 * 
+	 * @param bufferSize Size of the ring buffer in bytes.
+	 */
+	public TrafficRecorder(File log, int bufferSize) throws IOException {
+		ring = new byte[bufferSize];
+		
+		file = new RandomAccessFile(log, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+		mapped.putInt(MAGIC);
+		mapped.putInt(VERSION);
+		mapped.putLong(System.currentTimeMillis());
+		
+		flusher = new Thread(this, "TrafficRecorder " + log.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Records a packet. Service id and packet type are taken from
+	 * the packet. Packets that cannot be serialized are dropped.
+	 * 
+	 * @param direction {@link #INBOUND} or {@link #OUTBOUND}.
+	 * @param clientId Id of the connection.
+	 */
+	public void recordPacket(int direction, int clientId, Object packet) {
+		final PacketEncoder encoder = (PacketEncoder) encoders.get();
+		
+		try {
+			encoder.encode(packet);
+		} catch (IOException e) {
+			// stream may be left in the middle of an object
+			encoders.remove();
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		record(direction, clientId, serviceIdOf(packet), typeOf(packet), encoder.buffer(), encoder.size());
+	}
+	
+	/**
+	 * Records a connection event without a packet.
+	 * 
+	 * @param type {@link #TYPE_CONNECT} or {@link #TYPE_DISCONNECT}.
+	 */
+	public void recordConnection(int clientId, int type) {
+		record(INBOUND, clientId, -1, type, EMPTY);
+	}
+	
+	/**
+	 * Puts a record into the ring buffer. Never waits for the disk.
+	 * 
+	 * @return <code>false</code> if the record was dropped.
+	 */
+	public boolean record(int direction, int clientId, int serviceId, int packetType, byte[] payload) {
+		return record(direction, clientId, serviceId, packetType, payload, payload.length);
+	}
+	
+	/**
+	 * Puts a record with first <code>length</code> bytes of
+	 * <code>payload</code> into the ring buffer.
+	 */
+	private boolean record(int direction, int clientId, int serviceId, int packetType, byte[] payload, int length) {
+		final int size = RECORD_HEADER_SIZE + length;
+		final long timestamp = System.nanoTime() - startTime;
+		
+		synchronized (this) {
+			if (closed || ring.length - (head - tail) < size) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			
+			long position = head;
+			
+			position = put(position, size - 4, 4);
+			position = put(position, timestamp, 8);
+			position = put(position, direction, 1);
+			position = put(position, clientId, 4);
+			position = put(position, serviceId, 4);
+			position = put(position, packetType, 1);
+			
+			final int offset = (int) (position % ring.length);
+			final int first = Math.min(length, ring.length - offset);
+			
+			System.arraycopy(payload, 0, ring, offset, first);
+			System.arraycopy(payload, first, ring, 0, length - first);
+			
+			head = position + length;
+			
+			if (head - tail > ring.length / 2) {
+				notify();
+			}
+		}
+		
+		recorded.incrementAndGet();
+		return true;
+	}
+	
+	/** Writes big-endian <code>value</code> into the ring */
+	private long put(long position, long value, int bytes) {
+		for (int i = bytes - 1; i >= 0; --i) {
+			ring[(int) (position++ % ring.length)] = (byte) (value >>> (i * 8));
+		}
+		
+		return position;
+	}
+	
+	/**
+	 * @return Number of records put into the ring buffer.
+	 */
+	public long getRecordedCount() {
+		return recorded.get();
+	}
+	
+	/**
+	 * @return Number of records dropped because the ring buffer was
+	 * full or the packet couldn't be serialized.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Writes the remaining records and closes the log.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			
+			closed = true;
+			notify();
+		}
+		
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		flush();
+		
+		final long length = mappedPosition + mapped.position();
+		
+		mapped.force();
+		mapped = null;
+		
+		try {
+			channel.truncate(length);
+		} catch (IOException e) {
+			// some systems don't truncate mapped files, reader stops at zero length record
+			logger.fine("cannot truncate log: " + e.getMessage());
+		}
+		
+		file.close();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (!closed) {
+			synchronized (this) {
+				try {
+					wait(FLUSH_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			
+			if (flushPaused) {
+				continue;
+			}
+			
+			try {
+				flush();
+			} catch (IOException e) {
+				logger.severe("cannot write traffic log: " + e.getMessage());
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Copies records from the ring to the log. The ring is not locked
+	 * while copying, recording only appends after <code>head</code>.
+	 */
+	private void flush() throws IOException {
+		final long start;
+		final long end;
+		
+		synchronized (this) {
+			start = tail;
+			end = head;
+		}
+		
+		long position = start;
+		
+		while (position < end) {
+			if (!mapped.hasRemaining()) {
+				mappedPosition += mapped.position();
+				mapped = channel.map(FileChannel.MapMode.READ_WRITE, mappedPosition, MAP_SIZE);
+			}
+			
+			final int offset = (int) (position % ring.length);
+			final int length = (int) Math.min(Math.min(end - position, ring.length - offset), mapped.remaining());
+			
+			mapped.put(ring, offset, length);
+			position += length;
+		}
+		
+		synchronized (this) {
+			tail = end;
+		}
+	}
+	
+	/**
+	 * @return Service id of the packet or <code>-1</code>.
+	 */
+	static int serviceIdOf(Object packet) {
+		if (packet instanceof ServiceDataPacket) {
+			return ((ServiceDataPacket) packet).getServiceId();
+		}
+		
+		if (packet instanceof ServiceRequestPacket) {
+			return ((ServiceRequestPacket) packet).getServiceId();
+		}
+		
+		if (packet instanceof ServiceResponsePacket) {
+			return ((ServiceResponsePacket) packet).getServiceId();
+		}
+		
+		if (packet instanceof ServiceCreditPacket) {
+			return ((ServiceCreditPacket) packet).getServiceId();
+		}
+		
+		if (packet instanceof ServiceChunkPacket) {
+			return ((ServiceChunkPacket) packet).getServiceId();
+		}
+		
+		if (packet instanceof ServiceBatchPacket) {
+			return ((ServiceBatchPacket) packet).getServiceId();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * @return Record type of the packet.
+	 */
+	static int typeOf(Object packet) {
+		return packet instanceof ServicePacket ? ((ServicePacket) packet).getPacketType() : TYPE_OTHER;
+	}
+	/**
+	 * Serializes packets of one thread with a single object stream and
+	 * buffer. Every packet is preceded by a stream reset, so a record is
+	 * the stream header followed by one self-contained object and reads
+	 * back with a fresh <code>ObjectInputStream</code>.
+	 */
+	private static class PacketEncoder extends ByteArrayOutputStream {
+		
+		/** Stream writing into this buffer */
+		private final ObjectOutputStream out;
+		/** Length of the stream header */
+		private final int headerLength;
+		
+		public PacketEncoder() throws IOException {
+			super(256);
+			out = new ObjectOutputStream(this);
+			out.flush();
+			headerLength = count;
+		}
+		
+		/**
+		 * Replaces contents of the buffer with the header and
+		 * <code>packet</code>.
+		 */
+		public void encode(Object packet) throws IOException {
+			count = headerLength;
+			
+			out.reset();
+			out.writeObject(packet);
+			out.flush();
+		}
+		
+		/**
+		 * @return Internal buffer, valid up to {@link #size()}.
+		 */
+		public byte[] buffer() {
+			return buf;
+		}
+	}
+}
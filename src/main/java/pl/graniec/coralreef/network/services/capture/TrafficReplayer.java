@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.services.loopback.LoopbackClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackServer;
+
+/**
+ * Feeds inbound packets of a traffic log to a service server running
+ * on {@link LoopbackServer}. Every recorded client gets its own
+ * loopback connection. Outbound records are skipped, the server
+ * produces them again.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficReplayer {
+
+	private static final Logger logger = Logger.getLogger(TrafficReplayer.class.getName());
+	
+	/** Server to replay to */
+	private final LoopbackServer server;
+	/** Replayed connections by recorded client id */
+	private final Map/*<Integer, LoopbackClient>*/ clients = new HashMap();
+	
+	public TrafficReplayer(LoopbackServer server) {
+		this.server = server;
+	}
+	
+	/**
+	 * Replays the log and disconnects clients that are still
+	 * connected at the end.
+	 * 
+	 * @param speed Speed relative to the original, <code>2.0</code> is
+	 * twice as fast, <code>0</code> or less replays without waiting.
+	 * @return Number of replayed packets.
+	 */
+	public int replay(File log, double speed) throws IOException, InterruptedException {
+		final TrafficLogReader reader = new TrafficLogReader(log);
+		final long start = System.nanoTime();
+		
+		int replayed = 0;
+		
+		try {
+			TrafficRecord record;
+			while ((record = reader.next()) != null) {
+				if (record.getDirection() != TrafficRecorder.INBOUND) {
+					continue;
+				}
+				
+				if (speed > 0) {
+					waitUntil(start + (long) (record.getTimestamp() / speed));
+				}
+				
+				if (replay(record)) {
+					++replayed;
+				}
+			}
+		} finally {
+			reader.close();
+			
+			for (final Iterator itor = clients.values().iterator(); itor.hasNext();) {
+				((LoopbackClient) itor.next()).disconnect();
+			}
+			
+			clients.clear();
+		}
+		
+		return replayed;
+	}
+	
+	private boolean replay(TrafficRecord record) throws IOException {
+		final Integer clientId = Integer.valueOf(record.getClientId());
+		LoopbackClient client = (LoopbackClient) clients.get(clientId);
+		
+		if (record.getPacketType() == TrafficRecorder.TYPE_DISCONNECT) {
+			if (client != null) {
+				clients.remove(clientId);
+				client.disconnect();
+			}
+			
+			return false;
+		}
+		
+		try {
+			if (client == null) {
+				client = server.connect();
+				clients.put(clientId, client);
+			}
+			
+			if (record.isConnectionEvent()) {
+				return false;
+			}
+			
+			client.send(record.getPacket());
+		} catch (NetworkException e) {
+			logger.warning("cannot replay packet of client " + clientId + ": " + e.getMessage());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private static void waitUntil(long time) throws InterruptedException {
+		final long wait = time - System.nanoTime();
+		
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+		}
+	}
+}
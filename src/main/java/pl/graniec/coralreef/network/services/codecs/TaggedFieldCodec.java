@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.codecs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.services.ServiceCodec;
+
+/**
+ * Compact binary codec of tagged fields. A payload is a {@link Map}
+ * with non-negative {@link Integer} tags as keys. Supported values are
+ * {@link Boolean}, {@link Integer}, {@link Long}, {@link Float},
+ * {@link Double}, {@link String}, <code>byte[]</code> and nested maps
+ * of the same kind.
+ * <p>
+ * Every field is written as a variable length tag and a wire type
+ * byte followed by the value. Integers use zig-zag variable length
+ * encoding, so small numbers take a single byte. Decoded payloads
+ * are {@link HashMap}s.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TaggedFieldCodec implements ServiceCodec {
+
+	private static final int TYPE_FALSE = 0;
+	private static final int TYPE_TRUE = 1;
+	private static final int TYPE_INT = 2;
+	private static final int TYPE_LONG = 3;
+	private static final int TYPE_FLOAT = 4;
+	private static final int TYPE_DOUBLE = 5;
+	private static final int TYPE_STRING = 6;
+	private static final int TYPE_BYTES = 7;
+	private static final int TYPE_MAP = 8;
+	
+	/** Maximal nesting of maps */
+	private static final int MAX_DEPTH = 32;
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.ServiceCodec#encode(java.lang.Object)
+	 */
+	public byte[] encode(Object payload) throws IOException {
+		if (!(payload instanceof Map)) {
+			throw new IOException("payload must be a Map of tagged fields, got " + payload);
+		}
+		
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		
+		writeMap((Map) payload, out, 0);
+		
+		return out.toByteArray();
+	}
+
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.ServiceCodec#decode(byte[])
+	 */
+	public Object decode(byte[] data) throws IOException {
+		final ByteArrayInputStream in = new ByteArrayInputStream(data);
+		final Map payload = readMap(in, 0);
+		
+		if (in.available() > 0) {
+			throw new IOException(in.available() + " bytes left after payload");
+		}
+		
+		return payload;
+	}
+	
+	private void writeMap(Map map, OutputStream out, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("maps nested too deep");
+		}
+		
+		writeVarLong(map.size(), out);
+		
+		Map.Entry entry;
+		for (final Iterator itor = map.entrySet().iterator(); itor.hasNext();) {
+			entry = (Map.Entry) itor.next();
+			
+			if (!(entry.getKey() instanceof Integer) || ((Integer) entry.getKey()).intValue() < 0) {
+				throw new IOException("tags must be non-negative Integers, got " + entry.getKey());
+			}
+			
+			writeVarLong(((Integer) entry.getKey()).intValue(), out);
+			writeValue(entry.getValue(), out, depth);
+		}
+	}
+	
+	private void writeValue(Object value, OutputStream out, int depth) throws IOException {
+		if (value instanceof Boolean) {
+			out.write(((Boolean) value).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+		}
+		else if (value instanceof Integer) {
+			out.write(TYPE_INT);
+			writeVarLong(zigZag(((Integer) value).intValue()), out);
+		}
+		else if (value instanceof Long) {
+			out.write(TYPE_LONG);
+			writeVarLong(zigZag(((Long) value).longValue()), out);
+		}
+		else if (value instanceof Float) {
+			out.write(TYPE_FLOAT);
+			writeFixed(Float.floatToIntBits(((Float) value).floatValue()), 4, out);
+		}
+		else if (value instanceof Double) {
+			out.write(TYPE_DOUBLE);
+			writeFixed(Double.doubleToLongBits(((Double) value).doubleValue()), 8, out);
+		}
+		else if (value instanceof String) {
+			final byte[] bytes = ((String) value).getBytes("UTF-8");
+			out.write(TYPE_STRING);
+			writeVarLong(bytes.length, out);
+			out.write(bytes);
+		}
+		else if (value instanceof byte[]) {
+			final byte[] bytes = (byte[]) value;
+			out.write(TYPE_BYTES);
+			writeVarLong(bytes.length, out);
+			out.write(bytes);
+		}
+		else if (value instanceof Map) {
+			out.write(TYPE_MAP);
+			writeMap((Map) value, out, depth + 1);
+		}
+		else {
+			throw new IOException("unsupported field value " + value);
+		}
+	}
+	
+	private Map readMap(InputStream in, int depth) throws IOException {
+		if (depth > MAX_DEPTH) {
+			throw new IOException("maps nested too deep");
+		}
+		
+		final int size = (int) readVarLong(in);
+		final Map map = new HashMap();
+		
+		for (int i = 0; i < size; ++i) {
+			final Integer tag = Integer.valueOf((int) readVarLong(in));
+			map.put(tag, readValue(in, depth));
+		}
+		
+		return map;
+	}
+	
+	private Object readValue(InputStream in, int depth) throws IOException {
+		final int type = in.read();
+		
+		switch (type) {
+			case TYPE_FALSE:
+				return Boolean.FALSE;
+			case TYPE_TRUE:
+				return Boolean.TRUE;
+			case TYPE_INT:
+				return Integer.valueOf((int) unZigZag(readVarLong(in)));
+			case TYPE_LONG:
+				return Long.valueOf(unZigZag(readVarLong(in)));
+			case TYPE_FLOAT:
+				return Float.valueOf(Float.intBitsToFloat((int) readFixed(4, in)));
+			case TYPE_DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(readFixed(8, in)));
+			case TYPE_STRING:
+				return new String(readBytes(in), "UTF-8");
+			case TYPE_BYTES:
+				return readBytes(in);
+			case TYPE_MAP:
+				return readMap(in, depth + 1);
+			case -1:
+				throw new IOException("unexpected end of payload");
+			default:
+				throw new IOException("unknown wire type " + type);
+		}
+	}
+	
+	private static byte[] readBytes(InputStream in) throws IOException {
+		final long length = readVarLong(in);
+		
+		if (length > in.available()) {
+			throw new IOException("field length " + length + " exceeds payload");
+		}
+		
+		final byte[] bytes = new byte[(int) length];
+		
+		if (in.read(bytes, 0, bytes.length) != bytes.length) {
+			throw new IOException("unexpected end of payload");
+		}
+		
+		return bytes;
+	}
+	
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static void writeVarLong(long value, OutputStream out) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		
+		out.write((int) value);
+	}
+	
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		int b;
+		
+		for (int shift = 0; shift < 64; shift += 7) {
+			b = in.read();
+			
+			if (b < 0) {
+				throw new IOException("unexpected end of payload");
+			}
+			
+			value |= (long) (b & 0x7f) << shift;
+			
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("malformed variable length number");
+	}
+	
+	private static void writeFixed(long value, int bytes, OutputStream out) throws IOException {
+		for (int i = 0; i < bytes; ++i) {
+			out.write((int) (value >>> (8 * i)));
+		}
+	}
+	
+	private static long readFixed(int bytes, InputStream in) throws IOException {
+		long value = 0;
+		int b;
+		
+		for (int i = 0; i < bytes; ++i) {
+			b = in.read();
+			
+			if (b < 0) {
+				throw new IOException("unexpected end of payload");
+			}
+			
+			value |= (long) b << (8 * i);
+		}
+		
+		return value;
+	}
+}
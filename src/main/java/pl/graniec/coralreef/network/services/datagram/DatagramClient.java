@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.datagram;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramTokenPacket;
+
+/**
+ * Client side of the service datagram channel.
+ * <p>
+ * Send {@link ServiceDatagramRequestPacket} over the reliable
+ * connection and pass the {@link ServiceDatagramTokenPacket} answer
+ * to {@link #bind(ServiceDatagramTokenPacket)}. After that packets of
+ * unreliable services come as {@link ServiceDataPacket}s to listeners
+ * of this client, and {@link #send(int, Object)} sends data to them.
+ * Late datagrams are dropped.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class DatagramClient implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(DatagramClient.class.getName());
+	
+	/** How often the binding is repeated until confirmed, in milliseconds */
+	private static final int BIND_INTERVAL = 100;
+	
+	/** Address of the server */
+	private final InetAddress serverAddress;
+	/** Socket of this client */
+	private final DatagramSocket socket;
+	/** Thread receiving datagrams */
+	private final Thread thread;
+	/** Packet listeners */
+	private final Set/*<PacketListener>*/ packetListeners = new HashSet();
+	/** Drops late datagrams */
+	private final SequenceFilter sequenceFilter = new SequenceFilter();
+	
+	/** Token of the connection, valid after bind */
+	private volatile long token;
+	/** Datagram port of the server, <code>0</code> until bind */
+	private volatile int serverPort;
+	/** Has the server confirmed the binding */
+	private volatile boolean bound;
+	/** Sequence of next sent datagram */
+	private int nextSequence;
+	
+	/**
+	 * Opens a datagram socket on any free local port.
+	 * 
+	 * @param serverAddress Address of the service server.
+	 */
+	public DatagramClient(InetAddress serverAddress) throws SocketException {
+		this.serverAddress = serverAddress;
+		
+		socket = new DatagramSocket();
+		socket.setSoTimeout(BIND_INTERVAL);
+		
+		thread = new Thread(this, "DatagramClient " + socket.getLocalPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Starts binding this socket to the connection that received
+	 * <code>packet</code>. Binding is repeated until the server
+	 * confirms it.
+	 */
+	public void bind(ServiceDatagramTokenPacket packet) throws IOException {
+		token = packet.getToken();
+		serverPort = packet.getPort();
+		bound = false;
+		
+		sendFrame(new DatagramFrame(DatagramFrame.BIND, token, 0, null));
+	}
+	
+	/**
+	 * @return <code>true</code> if server has confirmed the binding.
+	 */
+	public boolean isBound() {
+		return bound;
+	}
+	
+	/**
+	 * Sends <code>data</code> to service <code>serviceId</code>. It may
+	 * be lost or dropped when it comes late.
+	 * 
+	 * @throws IOException When client is not bound, data cannot be
+	 * serialized or is too big for a datagram.
+	 */
+	public void send(int serviceId, Object data) throws IOException {
+		if (!bound) {
+			throw new IOException("datagram client is not bound");
+		}
+		
+		final int sequence;
+		
+		synchronized (this) {
+			sequence = nextSequence++;
+		}
+		
+		sendFrame(new DatagramFrame(DatagramFrame.DATA, token, sequence, new ServiceDataPacket(serviceId, data)));
+	}
+	
+	public boolean addPacketListener(PacketListener l) {
+		synchronized (packetListeners) {
+			return packetListeners.add(l);
+		}
+	}
+	
+	public boolean removePacketListener(PacketListener l) {
+		synchronized (packetListeners) {
+			return packetListeners.remove(l);
+		}
+	}
+	
+	/**
+	 * @return Number of datagrams dropped because they came late.
+	 */
+	public long getDroppedCount() {
+		return sequenceFilter.getDropped();
+	}
+	
+	/**
+	 * Closes the socket.
+	 */
+	public void close() {
+		socket.close();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		final byte[] buffer = new byte[DatagramFrame.MAX_SIZE];
+		final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+		
+		while (!socket.isClosed()) {
+			try {
+				datagram.setLength(buffer.length);
+				socket.receive(datagram);
+				
+				handleFrame(buffer, datagram.getOffset(), datagram.getLength());
+			} catch (SocketTimeoutException e) {
+				if (!bound && serverPort != 0) {
+					try {
+						sendFrame(new DatagramFrame(DatagramFrame.BIND, token, 0, null));
+					} catch (IOException e1) {
+						logger.warning("cannot bind datagram client: " + e1.getMessage());
+					}
+				}
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					logger.warning("malformed datagram: " + e.getMessage());
+				}
+			} catch (RuntimeException e) {
+				logger.warning("cannot handle datagram: " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the token before the packet is deserialized.
+	 */
+	private void handleFrame(byte[] buffer, int offset, int length) throws IOException {
+		final DatagramFrame frame = DatagramFrame.decodeHeader(buffer, offset, length);
+		
+		if (frame.getToken() != token) {
+			return;
+		}
+		
+		if (frame.getKind() == DatagramFrame.BIND_ACK) {
+			bound = true;
+			return;
+		}
+		
+		if (frame.getKind() != DatagramFrame.DATA) {
+			return;
+		}
+		
+		final ServiceDataPacket packet = DatagramFrame.decodePacket(buffer, offset, length);
+		
+		if (!sequenceFilter.accept(packet.getServiceId(), frame.getSequence())) {
+			return;
+		}
+		
+		synchronized (packetListeners) {
+			for (final Iterator itor = packetListeners.iterator(); itor.hasNext();) {
+				((PacketListener) itor.next()).packetReceived(packet);
+			}
+		}
+	}
+	
+	private void sendFrame(DatagramFrame frame) throws IOException {
+		final byte[] bytes = frame.encode();
+		
+		if (bytes.length > DatagramFrame.MAX_SIZE) {
+			throw new IOException("datagram of " + bytes.length + " bytes is too big");
+		}
+		
+		socket.send(new DatagramPacket(bytes, bytes.length, serverAddress, serverPort));
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.datagram;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * A single datagram of the service datagram channel. Every frame
+ * starts with a plain header of its kind and the token of the
+ * connection. Data frames also carry a sequence number in the header
+ * and a serialized {@link ServiceDataPacket} after it. The header is
+ * decoded separately, so the packet is deserialized only when the
+ * sender is known.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class DatagramFrame {
+
+	/** Client binds its address to the token */
+	public static final int BIND = 1;
+	/** Server confirms the binding */
+	public static final int BIND_ACK = 2;
+	/** Service data */
+	public static final int DATA = 3;
+	
+	/**
+	 * Largest frame that is sent as datagram. Bigger packets are sent
+	 * over the reliable connection, so they are never fragmented.
+	 */
+	public static final int MAX_SIZE = 1200;
+	
+	/** Size of kind and token */
+	private static final int HEADER_SIZE = 9;
+	/** Size of kind, token and sequence number */
+	private static final int DATA_HEADER_SIZE = HEADER_SIZE + 4;
+	
+	/** Frame kind */
+	private final int kind;
+	/** Token of the connection */
+	private final long token;
+	/** Sequence number of data frame */
+	private final int sequence;
+	/** Packet of data frame */
+	private final ServiceDataPacket packet;
+	
+	public DatagramFrame(int kind, long token, int sequence, ServiceDataPacket packet) {
+		this.kind = kind;
+		this.token = token;
+		this.sequence = sequence;
+		this.packet = packet;
+	}
+	
+	/**
+	 * @return the kind
+	 */
+	public int getKind() {
+		return kind;
+	}
+	
+	/**
+	 * @return the token
+	 */
+	public long getToken() {
+		return token;
+	}
+	
+	/**
+	 * @return the sequence
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * @return Packet or <code>null</code> if this is not a data frame.
+	 */
+	public ServiceDataPacket getPacket() {
+		return packet;
+	}
+	
+	/**
+	 * Encodes the frame.
+	 * 
+	 * @throws IOException When packet data cannot be serialized.
+	 */
+	public byte[] encode() throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		final DataOutputStream header = new DataOutputStream(bytes);
+		
+		header.writeByte(kind);
+		header.writeLong(token);
+		
+		if (kind == DATA) {
+			header.writeInt(sequence);
+			
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			packet.writeExternal(out);
+			out.close();
+		}
+		
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Decodes the header of a received frame. Packet of the returned
+	 * frame is always <code>null</code>, use
+	 * {@link #decodePacket(byte[], int, int)} to get it.
+	 * 
+	 * @throws IOException When the frame is too short.
+	 */
+	public static DatagramFrame decodeHeader(byte[] buffer, int offset, int length) throws IOException {
+		if (length < HEADER_SIZE) {
+			throw new IOException("datagram of " + length + " bytes is too short");
+		}
+		
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
+		
+		final int kind = in.readByte();
+		final long token = in.readLong();
+		
+		if (kind != DATA) {
+			return new DatagramFrame(kind, token, 0, null);
+		}
+		
+		if (length < DATA_HEADER_SIZE) {
+			throw new IOException("data datagram of " + length + " bytes is too short");
+		}
+		
+		return new DatagramFrame(kind, token, in.readInt(), null);
+	}
+	
+	/**
+	 * Decodes the packet of a received data frame.
+	 * 
+	 * @throws IOException When the frame is malformed.
+	 */
+	public static ServiceDataPacket decodePacket(byte[] buffer, int offset, int length) throws IOException {
+		if (length < DATA_HEADER_SIZE) {
+			throw new IOException("data datagram of " + length + " bytes is too short");
+		}
+		
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(buffer, offset + DATA_HEADER_SIZE, length - DATA_HEADER_SIZE));
+		final ServiceDataPacket packet = new ServiceDataPacket();
+		
+		try {
+			packet.readExternal(in);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("unknown class in datagram: " + e.getMessage());
+		}
+		
+		return packet;
+	}
+	
+	/**
+	 * Tells if <code>sequence</code> comes after <code>last</code>,
+	 * taking wrapping of numbers into account.
+	 */
+	public static boolean isNewer(int sequence, int last) {
+		return sequence - last > 0;
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.datagram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drops datagrams that come after newer ones of the same service.
+ * Only the latest state matters for unreliable services.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class SequenceFilter {
+
+	/** Last accepted sequence by service id */
+	private final Map/*<Integer, int[]>*/ last = new HashMap();
+	/** Number of dropped datagrams */
+	private long dropped;
+	
+	/**
+	 * @return <code>true</code> if datagram should be delivered.
+	 */
+	public synchronized boolean accept(int serviceId, int sequence) {
+		final Integer key = Integer.valueOf(serviceId);
+		final int[] lastSequence = (int[]) last.get(key);
+		
+		if (lastSequence == null) {
+			last.put(key, new int[] {sequence});
+			return true;
+		}
+		
+		if (!DatagramFrame.isNewer(sequence, lastSequence[0])) {
+			++dropped;
+			return false;
+		}
+		
+		lastSequence[0] = sequence;
+		return true;
+	}
+	
+	/**
+	 * @return Number of datagrams dropped because they came late.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+}
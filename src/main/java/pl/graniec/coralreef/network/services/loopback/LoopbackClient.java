@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.loopback;
+
+import java.io.NotSerializableException;
+
+import pl.graniec.coralreef.network.DisconnectReason;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.services.ServiceConnection;
+
+/**
+ * Client side of a {@link LoopbackServer} connection. Created by
+ * {@link LoopbackServer#connect()}.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LoopbackClient implements ServiceConnection {
+
+	/** Server that this client is connected to */
+	private final LoopbackServer server;
+	/** Server side of the connection */
+	private LoopbackRemoteClient remoteClient;
+	/** Listeners of packets sent by the server */
+	private final PacketListeners packetListeners = new PacketListeners();
+	/** Is the connection open */
+	private volatile boolean connected = true;
+	
+	LoopbackClient(LoopbackServer server) {
+		this.server = server;
+	}
+	
+	void setRemoteClient(LoopbackRemoteClient remoteClient) {
+		this.remoteClient = remoteClient;
+	}
+	
+	public boolean addPacketListener(PacketListener l) {
+		return packetListeners.add(l);
+	}
+	
+	public boolean removePacketListener(PacketListener l) {
+		return packetListeners.remove(l);
+	}
+	
+	/**
+	 * Closes the connection. Server connection listeners are notified
+	 * before this method returns.
+	 */
+	public void disconnect() {
+		connected = false;
+		server.disconnect(remoteClient, DisconnectReason.UserAction, "client disconnected");
+	}
+	
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	/**
+	 * Delivers <code>data</code> to the server before returning.
+	 */
+	public void send(Object data) throws NotSerializableException, NetworkException {
+		if (!connected) {
+			throw new NetworkException("not connected");
+		}
+		
+		remoteClient.notifyPacketReceived(server.transfer(data));
+	}
+	
+	/**
+	 * @return Server side of this connection.
+	 */
+	public LoopbackRemoteClient getRemoteClient() {
+		return remoteClient;
+	}
+	
+	void notifyPacketReceived(Object data) {
+		packetListeners.packetReceived(data);
+	}
+	
+	void notifyDisconnected() {
+		connected = false;
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.loopback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import pl.graniec.coralreef.network.DisconnectReason;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * In-memory {@link Server} implementation. Clients are connected with
+ * {@link #connect()} and every packet is delivered synchronously, on the
+ * thread that sends it. There are no sockets and no background threads,
+ * so it's suitable for tests and for simulating thousands of clients
+ * in one process.
+ * <p>
+ * By default packets are passed as references. When the server is
+ * created as serializing, every packet is written to bytes and read
+ * back, just like a real transport would do.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LoopbackServer implements Server {
+
+	/** Port numbers given to servers opened at port 0 */
+	private static int nextPort = 1;
+	
+	/** Should packets be copied through serialization */
+	private final boolean serializing;
+	/** Connection listeners */
+	private final Set/*<ConnectionListener>*/ connectionListeners = new HashSet();
+	/** Connected clients */
+	private final Set/*<LoopbackRemoteClient>*/ remoteClients = new HashSet();
+	
+	/** Port that this server is open on, 0 if closed */
+	private int port;
+	
+	public LoopbackServer() {
+		this(false);
+	}
+	
+	/**
+	 * @param serializing Should packets be copied through serialization.
+	 */
+	public LoopbackServer(boolean serializing) {
+		this.serializing = serializing;
+	}
+	
+	/**
+	 * Connects a new client to this server. Connection listeners are
+	 * notified before this method returns.
+	 * 
+	 * @return Client side of the connection.
+	 * @throws NetworkException When server is not open.
+	 */
+	public LoopbackClient connect() throws NetworkException {
+		final LoopbackClient client = new LoopbackClient(this);
+		final LoopbackRemoteClient remoteClient = new LoopbackRemoteClient(this, client);
+		
+		client.setRemoteClient(remoteClient);
+		
+		synchronized (this) {
+			if (port == 0) {
+				throw new NetworkException("server is not open");
+			}
+			
+			remoteClients.add(remoteClient);
+		}
+		
+		final ConnectionListener[] listeners = getConnectionListeners();
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			listeners[i].clientConnected(remoteClient);
+		}
+		
+		return client;
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.server.Server#addConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public boolean addConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.add(l);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.server.Server#close()
+	 */
+	public void close() {
+		final List/*<LoopbackRemoteClient>*/ connected;
+		
+		synchronized (this) {
+			port = 0;
+			connected = new ArrayList(remoteClients);
+		}
+		
+		for (final Iterator itor = connected.iterator(); itor.hasNext();) {
+			((LoopbackRemoteClient) itor.next()).disconnect();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.server.Server#getPort()
+	 */
+	public synchronized int getPort() {
+		return port;
+	}
+
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.server.Server#isOpen()
+	 */
+	public synchronized boolean isOpen() {
+		return port != 0;
+	}
+
+	/**
+	 * Opens the server. No port is really bound, the number
+	 * only identifies this server.
+	 */
+	public void open(int port) throws NetworkException {
+		synchronized (LoopbackServer.class) {
+			if (port == 0) {
+				port = nextPort++;
+			}
+		}
+		
+		synchronized (this) {
+			if (this.port != 0) {
+				throw new NetworkException("server is already open");
+			}
+			
+			this.port = port;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.server.Server#removeConnectionListener(pl.graniec.coralreef.network.server.ConnectionListener)
+	 */
+	public boolean removeConnectionListener(ConnectionListener l) {
+		synchronized (connectionListeners) {
+			return connectionListeners.remove(l);
+		}
+	}
+	
+	/**
+	 * @return Number of connected clients.
+	 */
+	public synchronized int getClientCount() {
+		return remoteClients.size();
+	}
+	
+	/**
+	 * Closes the connection of <code>remoteClient</code>.
+	 * 
+	 * @return <code>false</code> if it was closed already.
+	 */
+	boolean disconnect(LoopbackRemoteClient remoteClient, int reason, String reasonString) {
+		synchronized (this) {
+			if (!remoteClients.remove(remoteClient)) {
+				return false;
+			}
+		}
+		
+		final ConnectionListener[] listeners = getConnectionListeners();
+		
+		for (int i = 0; i < listeners.length; ++i) {
+			listeners[i].clientDisconnected(remoteClient, reason, reasonString);
+		}
+		
+		return true;
+	}
+	
+	boolean disconnect(LoopbackRemoteClient remoteClient) {
+		return disconnect(remoteClient, DisconnectReason.UserAction, "user action");
+	}
+	
+	/**
+	 * Makes the copy of a packet that will be delivered to the other side.
+	 */
+	Object transfer(Object data) throws NotSerializableException, NetworkException {
+		if (!serializing) {
+			return data;
+		}
+		
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			
+			out.writeObject(data);
+			out.close();
+			
+			final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			
+			return in.readObject();
+			
+		} catch (NotSerializableException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NetworkException(e.getMessage());
+		} catch (ClassNotFoundException e) {
+			throw new NetworkException(e.getMessage());
+		}
+	}
+	
+	private ConnectionListener[] getConnectionListeners() {
+		synchronized (connectionListeners) {
+			return (ConnectionListener[]) connectionListeners.toArray(new ConnectionListener[connectionListeners.size()]);
+		}
+	}
+}
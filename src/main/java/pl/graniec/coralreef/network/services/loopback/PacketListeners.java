@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.loopback;
+
+import pl.graniec.coralreef.network.PacketListener;
+
+/**
+ * Copy-on-write list of packet listeners. Delivering a packet doesn't
+ * take any lock, so many threads can deliver at once.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+class PacketListeners {
+
+	private volatile PacketListener[] listeners = new PacketListener[0];
+	
+	public synchronized boolean add(PacketListener l) {
+		for (int i = 0; i < listeners.length; ++i) {
+			if (listeners[i] == l) {
+				return false;
+			}
+		}
+		
+		final PacketListener[] added = new PacketListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, added, 0, listeners.length);
+		added[listeners.length] = l;
+		
+		listeners = added;
+		
+		return true;
+	}
+	
+	public synchronized boolean remove(PacketListener l) {
+		for (int i = 0; i < listeners.length; ++i) {
+			if (listeners[i] == l) {
+				final PacketListener[] removed = new PacketListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				
+				listeners = removed;
+				
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	public void packetReceived(Object data) {
+		final PacketListener[] current = listeners;
+		
+		for (int i = 0; i < current.length; ++i) {
+			current[i].packetReceived(data);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.packets;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Several packets of one service sent at once. Services in tick mode
+ * send everything for a client from one tick in a batch. A batch holds
+ * only data, request and response packets of its own service, never
+ * other batches.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceBatchPacket implements ServicePacket {
+
+	/** Largest number of packets in a batch */
+	public static final int MAX_PACKETS = 1024;
+	
+	private int serviceId;
+	/** Packets in order they were sent */
+	private ServicePacket[] packets;
+	
+	public ServiceBatchPacket() {
+	}
+	
+	/**
+	 * @throws IllegalArgumentException When there are too many packets
+	 * or some of them cannot be in a batch of the service.
+	 */
+	public ServiceBatchPacket(int serviceId, ServicePacket[] packets) {
+		if (packets.length > MAX_PACKETS) {
+			throw new IllegalArgumentException("batch of " + packets.length + " packets");
+		}
+		
+		for (int i = 0; i < packets.length; ++i) {
+			if (!isBatchable(packets[i], serviceId)) {
+				throw new IllegalArgumentException("packet " + packets[i] + " cannot be in a batch of service " + serviceId);
+			}
+		}
+		
+		this.serviceId = serviceId;
+		this.packets = packets;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		serviceId = in.readInt();
+		
+		final int count = in.readInt();
+		
+		if (count < 0 || count > MAX_PACKETS) {
+			throw new InvalidObjectException("batch of " + count + " packets");
+		}
+		
+		packets = new ServicePacket[count];
+		
+		for (int i = 0; i < count; ++i) {
+			final int type = in.readByte();
+			
+			switch (type) {
+				case TYPE_DATA:
+					packets[i] = new ServiceDataPacket();
+					break;
+				case TYPE_REQUEST:
+					packets[i] = new ServiceRequestPacket();
+					break;
+				case TYPE_RESPONSE:
+					packets[i] = new ServiceResponsePacket();
+					break;
+				default:
+					throw new InvalidObjectException("packet of type " + type + " in a batch");
+			}
+			
+			packets[i].readExternal(in);
+			
+			if (!isBatchable(packets[i], serviceId)) {
+				throw new InvalidObjectException("packet of another service in a batch of service " + serviceId);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(serviceId);
+		out.writeInt(packets.length);
+		
+		for (int i = 0; i < packets.length; ++i) {
+			out.writeByte(packets[i].getPacketType());
+			packets[i].writeExternal(out);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_BATCH;
+	}
+	
+	/**
+	 * @return the serviceId
+	 */
+	public int getServiceId() {
+		return serviceId;
+	}
+	
+	/**
+	 * @return the packets
+	 */
+	public ServicePacket[] getPackets() {
+		return packets;
+	}
+	
+	/**
+	 * Tells if <code>packet</code> can be in a batch of the service.
+	 * 
+	 * @return <code>true</code> for data, request and response packets
+	 * of service <code>serviceId</code>.
+	 */
+	public static boolean isBatchable(ServicePacket packet, int serviceId) {
+		if (packet instanceof ServiceDataPacket) {
+			return ((ServiceDataPacket) packet).getServiceId() == serviceId;
+		}
+		
+		if (packet instanceof ServiceRequestPacket) {
+			return ((ServiceRequestPacket) packet).getServiceId() == serviceId;
+		}
+		
+		if (packet instanceof ServiceResponsePacket) {
+			return ((ServiceResponsePacket) packet).getServiceId() == serviceId;
+		}
+		
+		return false;
+	}
+
+}
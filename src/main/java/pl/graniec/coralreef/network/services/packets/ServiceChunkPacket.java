@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.packets;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * A piece of a stream sent to a service or from a service. Large
+ * payloads are sent as many chunks, so they don't hold up other
+ * services and never have to be buffered as a whole.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceChunkPacket implements ServicePacket {
+
+	/** Largest chunk that is accepted, 1 MB */
+	public static final int MAX_CHUNK_SIZE = 1 << 20;
+	
+	private int serviceId;
+	/** Stream id, unique among open streams of the sender */
+	private int streamId;
+	/** Number of the chunk in the stream, starting from 0 */
+	private int index;
+	/** Is this the last chunk of the stream */
+	private boolean last;
+	/** Chunk data */
+	private byte[] data;
+	
+	public ServiceChunkPacket() {
+	}
+	
+	public ServiceChunkPacket(int serviceId, int streamId, int index, boolean last, byte[] data) {
+		this.serviceId = serviceId;
+		this.streamId = streamId;
+		this.index = index;
+		this.last = last;
+		this.data = data;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		serviceId = in.readInt();
+		streamId = in.readInt();
+		index = in.readInt();
+		last = in.readBoolean();
+		
+		final int length = in.readInt();
+		
+		if (length < 0 || length > MAX_CHUNK_SIZE) {
+			throw new InvalidObjectException("chunk of " + length + " bytes");
+		}
+		
+		data = new byte[length];
+		in.readFully(data);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(serviceId);
+		out.writeInt(streamId);
+		out.writeInt(index);
+		out.writeBoolean(last);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_CHUNK;
+	}
+	
+	/**
+	 * @return the serviceId
+	 */
+	public int getServiceId() {
+		return serviceId;
+	}
+	
+	/**
+	 * @return the streamId
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+	
+	/**
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return <code>true</code> if this is the last chunk of the stream.
+	 */
+	public boolean isLast() {
+		return last;
+	}
+	
+	/**
+	 * @return the data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+}
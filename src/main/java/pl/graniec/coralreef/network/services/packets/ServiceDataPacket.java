@@ -29,6 +29,7 @@
 package pl.graniec.coralreef.network.services.packets;
 
 import java.io.IOException;
+import java.io.InvalidObjectException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
@@ -38,10 +39,24 @@ import java.io.ObjectOutput;
  */
 public class ServiceDataPacket implements ServicePacket {
 
+	/** Type id of data sent with Java serialization */
+	public static final int TYPE_SERIALIZED = -1;
+	/** Type id of payload encoded by the codec of the service */
+	public static final int TYPE_ENCODED = -2;
+	/**
+	 * Largest encoded payload that is accepted, 1 MB. Bigger data
+	 * should be sent as a stream of chunks.
+	 */
+	public static final int MAX_PAYLOAD_SIZE = 1 << 20;
+	
 	/** Service that this packet belongs to */
 	private int serviceId;
+	/** Registered type id of encoded payload, {@link #TYPE_ENCODED} or {@link #TYPE_SERIALIZED} */
+	private int typeId = TYPE_SERIALIZED;
 	/** This packet's data */
 	private Object data;
+	/** Encoded payload when type id is registered */
+	private byte[] payload;
 	
 	public ServiceDataPacket() {
 	}
@@ -51,13 +66,58 @@ public class ServiceDataPacket implements ServicePacket {
 		this.serviceId = serviceId;
 		this.data = data;
 	}
+	
+	/**
+	 * Creates a packet with payload encoded by the serializer
+	 * registered for <code>typeId</code> or, when type id is
+	 * {@link #TYPE_ENCODED}, by the codec of the service.
+	 * 
+	 * @see pl.graniec.coralreef.network.services.PayloadTypeRegistry
+	 * @see pl.graniec.coralreef.network.services.ServiceCodec
+	 */
+	public ServiceDataPacket(int serviceId, int typeId, byte[] payload) {
+		this.serviceId = serviceId;
+		this.typeId = typeId;
+		this.payload = payload;
+	}
 
 	/**
-	 * @return the data
+	 * Fills a pooled packet.
+	 */
+	void set(int serviceId, int typeId, Object data, byte[] payload) {
+		this.serviceId = serviceId;
+		this.typeId = typeId;
+		this.data = data;
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the data, <code>null</code> if the payload is encoded
 	 */
 	public Object getData() {
 		return data;
 	}
+	
+	/**
+	 * @return the typeId, {@link #TYPE_ENCODED} or {@link #TYPE_SERIALIZED}
+	 */
+	public int getTypeId() {
+		return typeId;
+	}
+	
+	/**
+	 * @return the encoded payload, <code>null</code> if data is serialized
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * @return <code>true</code> if the payload is encoded
+	 */
+	public boolean isEncoded() {
+		return typeId != TYPE_SERIALIZED;
+	}
 
 	/**
 	 * @return the serviceId
@@ -71,7 +131,20 @@ public class ServiceDataPacket implements ServicePacket {
 	 */
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 		serviceId = in.readInt();
-		data = in.readObject();
+		typeId = in.readShort();
+		
+		if (typeId == TYPE_SERIALIZED) {
+			data = in.readObject();
+		} else {
+			final int length = in.readInt();
+			
+			if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+				throw new InvalidObjectException("payload of " + length + " bytes");
+			}
+			
+			payload = new byte[length];
+			in.readFully(payload);
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -79,7 +152,21 @@ public class ServiceDataPacket implements ServicePacket {
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
 		out.writeInt(serviceId);
-		out.writeObject(data);
+		out.writeShort(typeId);
+		
+		if (typeId == TYPE_SERIALIZED) {
+			out.writeObject(data);
+		} else {
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_DATA;
 	}
 
 }
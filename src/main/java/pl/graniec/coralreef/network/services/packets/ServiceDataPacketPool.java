@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.packets;
+
+/**
+ * Bounded pool of reusable {@link ServiceDataPacket} envelopes.
+ * <p>
+ * Ownership rules: a packet taken with {@link #acquire(int, Object)}
+ * belongs to the caller until it is given back with
+ * {@link #release(ServiceDataPacket)}. After release the packet may
+ * be filled with other data at any moment, so nobody can keep a
+ * reference to it. That is why pooling is safe only with transports
+ * that finish serializing the packet before <code>send()</code> returns.
+ * Payload objects are never pooled, so listeners can keep them freely.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceDataPacketPool {
+
+	/** Free packets */
+	private final ServiceDataPacket[] free;
+	/** Number of free packets */
+	private int size;
+	
+	/**
+	 * @param capacity Maximum number of free packets kept in pool.
+	 */
+	public ServiceDataPacketPool(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be at least 1");
+		}
+		
+		free = new ServiceDataPacket[capacity];
+	}
+	
+	/**
+	 * Takes a packet from the pool or creates a new one if pool
+	 * is empty.
+	 */
+	public ServiceDataPacket acquire(int serviceId, Object data) {
+		return acquire(serviceId, ServiceDataPacket.TYPE_SERIALIZED, data, null);
+	}
+	
+	/**
+	 * Takes a packet for encoded payload from the pool or creates a
+	 * new one if pool is empty.
+	 */
+	public ServiceDataPacket acquire(int serviceId, int typeId, byte[] payload) {
+		return acquire(serviceId, typeId, null, payload);
+	}
+	
+	private ServiceDataPacket acquire(int serviceId, int typeId, Object data, byte[] payload) {
+		ServiceDataPacket packet = null;
+		
+		synchronized (free) {
+			if (size > 0) {
+				packet = free[--size];
+				free[size] = null;
+			}
+		}
+		
+		if (packet == null) {
+			packet = new ServiceDataPacket();
+		}
+		
+		packet.set(serviceId, typeId, data, payload);
+		
+		return packet;
+	}
+	
+	/**
+	 * Gives the packet back to the pool. If pool is full then
+	 * the packet is left for garbage collector.
+	 */
+	public void release(ServiceDataPacket packet) {
+		// don't hold the payload longer than needed
+		packet.set(0, ServiceDataPacket.TYPE_SERIALIZED, null, null);
+		
+		synchronized (free) {
+			if (size < free.length) {
+				free[size++] = packet;
+			}
+		}
+	}
+	
+	/**
+	 * @return Number of free packets in pool.
+	 */
+	public int size() {
+		synchronized (free) {
+			return size;
+		}
+	}
+}
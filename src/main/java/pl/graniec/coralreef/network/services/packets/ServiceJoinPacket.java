@@ -65,6 +65,13 @@ public class ServiceJoinPacket implements ServicePacket {
 		out.writeObject(services);
 	}
 	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_JOIN;
+	}
+	
 	/**
 	 * @return the services
 	 */
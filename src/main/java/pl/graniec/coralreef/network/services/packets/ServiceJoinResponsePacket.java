@@ -33,19 +33,47 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
 /**
+ * Response to {@link ServiceJoinPacket}. Tells which services were
+ * joined and why the others were not. Services that were full or
+ * overloaded come with a hint how long to wait before trying again.
+ * 
  * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
  *
  */
 public class ServiceJoinResponsePacket implements ServicePacket {
 
+	/** There is no such service */
+	public static final int REASON_UNKNOWN_SERVICE = 1;
+	/** Service is closed */
+	public static final int REASON_CLOSED = 2;
+	/** Service has reached its capacity */
+	public static final int REASON_FULL = 3;
+	/** Service is too busy to take new clients */
+	public static final int REASON_OVERLOADED = 4;
+	
+	private static final int[] EMPTY = new int[0];
+	
 	private int[] servicesJoined;
+	/** Services that were not joined */
+	private int[] servicesRejected;
+	/** <code>REASON_</code> constants of rejected services */
+	private int[] reasons;
+	/** Milliseconds to wait before joining rejected services again, <code>0</code> if it's pointless */
+	private int[] retryAfter;
 	
 	public ServiceJoinResponsePacket() {
 	}
 	
 	public ServiceJoinResponsePacket(int[] servicesJoined) {
+		this(servicesJoined, EMPTY, EMPTY, EMPTY);
+	}
+	
+	public ServiceJoinResponsePacket(int[] servicesJoined, int[] servicesRejected, int[] reasons, int[] retryAfter) {
 		super();
 		this.servicesJoined = servicesJoined;
+		this.servicesRejected = servicesRejected;
+		this.reasons = reasons;
+		this.retryAfter = retryAfter;
 	}
 
 	/* (non-Javadoc)
@@ -53,6 +81,9 @@ public class ServiceJoinResponsePacket implements ServicePacket {
 	 */
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 		servicesJoined = (int[]) in.readObject();
+		servicesRejected = (int[]) in.readObject();
+		reasons = (int[]) in.readObject();
+		retryAfter = (int[]) in.readObject();
 	}
 
 	/* (non-Javadoc)
@@ -60,6 +91,16 @@ public class ServiceJoinResponsePacket implements ServicePacket {
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
 		out.writeObject(servicesJoined);
+		out.writeObject(servicesRejected);
+		out.writeObject(reasons);
+		out.writeObject(retryAfter);
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_JOIN_RESPONSE;
 	}
 	
 	/**
@@ -68,5 +109,28 @@ public class ServiceJoinResponsePacket implements ServicePacket {
 	public int[] getServicesJoined() {
 		return servicesJoined;
 	}
+	
+	/**
+	 * @return the servicesRejected
+	 */
+	public int[] getServicesRejected() {
+		return servicesRejected;
+	}
+	
+	/**
+	 * @return Reasons of rejections, in order of {@link #getServicesRejected()}.
+	 */
+	public int[] getReasons() {
+		return reasons;
+	}
+	
+	/**
+	 * @return Milliseconds to wait before joining again, in order of
+	 * {@link #getServicesRejected()}; <code>0</code> if joining again
+	 * won't help.
+	 */
+	public int[] getRetryAfter() {
+		return retryAfter;
+	}
 
 }
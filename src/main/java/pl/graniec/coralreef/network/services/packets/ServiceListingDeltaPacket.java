@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.packets;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Change of the service listing sent to subscribed clients.
+ * Versions of changes follow the version of {@link ServiceListingPacket}
+ * one by one.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceListingDeltaPacket implements ServicePacket {
+
+	/** Largest number of added or removed services in a delta */
+	public static final int MAX_IDS = 65536;
+	
+	/** Version of the listing after this change */
+	private int version;
+	/** Identificators of created services */
+	private int[] added;
+	/** Identificators of removed services */
+	private int[] removed;
+	
+	public ServiceListingDeltaPacket() {
+	}
+	
+	public ServiceListingDeltaPacket(int version, int[] added, int[] removed) {
+		this.version = version;
+		this.added = added;
+		this.removed = removed;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		version = in.readInt();
+		added = readIds(in);
+		removed = readIds(in);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(version);
+		writeIds(out, added);
+		writeIds(out, removed);
+	}
+	
+	private static int[] readIds(ObjectInput in) throws IOException {
+		final int count = in.readInt();
+		
+		if (count < 0 || count > MAX_IDS) {
+			throw new InvalidObjectException("delta of " + count + " services");
+		}
+		
+		final int[] ids = new int[count];
+		
+		for (int i = 0; i < ids.length; ++i) {
+			ids[i] = in.readInt();
+		}
+		
+		return ids;
+	}
+	
+	private static void writeIds(ObjectOutput out, int[] ids) throws IOException {
+		out.writeInt(ids.length);
+		
+		for (int i = 0; i < ids.length; ++i) {
+			out.writeInt(ids[i]);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_LISTING_DELTA;
+	}
+	
+	/**
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the added
+	 */
+	public int[] getAdded() {
+		return added;
+	}
+	
+	/**
+	 * @return the removed
+	 */
+	public int[] getRemoved() {
+		return removed;
+	}
+
+}
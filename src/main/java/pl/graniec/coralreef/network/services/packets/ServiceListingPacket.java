@@ -44,13 +44,20 @@ public class ServiceListingPacket implements ServicePacket {
 
 	/** Array of service identificators */
 	private int[] services;
+	/** Version of the listing */
+	private int version;
 	
 	/** Public no-arg construction needed for custom serialization */
 	public ServiceListingPacket() {
 	}
 	
 	public ServiceListingPacket(int[] services) {
+		this(services, 0);
+	}
+	
+	public ServiceListingPacket(int[] services, int version) {
 		this.services = services;
+		this.version = version;
 	}
 	
 	/**
@@ -63,12 +70,22 @@ public class ServiceListingPacket implements ServicePacket {
 		return services;
 	}
 	
+	/**
+	 * Provides the version of the listing. It grows by one with
+	 * every service created or removed, see {@link ServiceListingDeltaPacket}.
+	 * 
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
 	 */
 	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
 		services = (int[]) in.readObject();
-
+		version = in.readInt();
 	}
 
 	/* (non-Javadoc)
@@ -76,6 +93,14 @@ public class ServiceListingPacket implements ServicePacket {
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
 		out.writeObject(services);
+		out.writeInt(version);
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_LISTING;
 	}
 
 }
@@ -55,5 +55,12 @@ public class ServiceListingRequestPacket implements ServicePacket {
 	 */
 	public void writeExternal(ObjectOutput out) throws IOException {
 	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_LISTING_REQUEST;
+	}
 
 }
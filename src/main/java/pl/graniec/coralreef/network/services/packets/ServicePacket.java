@@ -38,4 +38,34 @@ import java.io.Externalizable;
  *
  */
 public interface ServicePacket extends Externalizable {
+
+	int TYPE_DATA = 0;
+	int TYPE_REQUEST = 1;
+	int TYPE_RESPONSE = 2;
+	int TYPE_JOIN = 3;
+	int TYPE_JOIN_RESPONSE = 4;
+	int TYPE_LISTING_REQUEST = 5;
+	int TYPE_LISTING = 6;
+	int TYPE_DATAGRAM_REQUEST = 7;
+	int TYPE_DATAGRAM_TOKEN = 8;
+	int TYPE_CREDIT = 9;
+	int TYPE_CHUNK = 10;
+	int TYPE_LISTING_SUBSCRIBE = 11;
+	int TYPE_LISTING_DELTA = 12;
+	int TYPE_SESSION = 13;
+	int TYPE_STRIPE = 14;
+	int TYPE_BATCH = 15;
+	
+	/** First type id that applications can use for their own packets */
+	int FIRST_USER_TYPE = 64;
+	/** Largest type id, ids fit in one byte */
+	int MAX_TYPE = 127;
+	
+	/**
+	 * Tells what kind of packet it is, so the receiver can dispatch
+	 * it without checking its class.
+	 * 
+	 * @return Type id from <code>0</code> to {@link #MAX_TYPE}.
+	 */
+	int getPacketType();
 }
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.packets;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Joins the connection it's sent over to a session opened with
+ * {@link ServiceSessionPacket}, as one of <code>count</code> stripes.
+ * Service server treats all stripes as the same client and sends
+ * packets of a service over the stripe the service is assigned to.
+ * <p>
+ * Services listed in the packet are assigned to its stripe, the
+ * others by {@link #stripeOf(int, int)}. Service server sends the
+ * packet back when the stripe is accepted, or with index <code>-1</code>
+ * when it's not.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceStripePacket implements ServicePacket {
+
+	/** Session token */
+	private long token;
+	/** Index of the stripe, from <code>1</code>; first connection is stripe <code>0</code> */
+	private int index;
+	/** Number of stripes, first connection included */
+	private int count;
+	/** Services assigned to this stripe explicitly */
+	private int[] services;
+	
+	public ServiceStripePacket() {
+	}
+	
+	public ServiceStripePacket(long token, int index, int count, int[] services) {
+		this.token = token;
+		this.index = index;
+		this.count = count;
+		this.services = services;
+	}
+	
+	/**
+	 * Assigns services to stripes that have no explicit assignment.
+	 * 
+	 * @return Stripe index of the service.
+	 */
+	public static int stripeOf(int serviceId, int count) {
+		return (serviceId & 0x7fffffff) % count;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#readExternal(java.io.ObjectInput)
+	 */
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		token = in.readLong();
+		index = in.readInt();
+		count = in.readInt();
+		services = (int[]) in.readObject();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Externalizable#writeExternal(java.io.ObjectOutput)
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(token);
+		out.writeInt(index);
+		out.writeInt(count);
+		out.writeObject(services);
+	}
+	
+	/* (non-Javadoc)
+	 * @see pl.graniec.coralreef.network.services.packets.ServicePacket#getPacketType()
+	 */
+	public int getPacketType() {
+		return TYPE_STRIPE;
+	}
+	
+	/**
+	 * @return the token
+	 */
+	public long getToken() {
+		return token;
+	}
+	
+	/**
+	 * @return the index
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * @return the count
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	/**
+	 * @return the services
+	 */
+	public int[] getServices() {
+		return services;
+	}
+
+}
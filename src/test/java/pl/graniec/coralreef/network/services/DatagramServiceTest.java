@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.datagram.DatagramClient;
+import pl.graniec.coralreef.network.services.datagram.DatagramFrame;
+import pl.graniec.coralreef.network.services.datagram.SequenceFilter;
+import pl.graniec.coralreef.network.services.loopback.LoopbackClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackServer;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDatagramTokenPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinPacket;
+
+/**
+ * Unreliable service over localhost datagrams, with the in-memory
+ * transport as the reliable connection.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class DatagramServiceTest extends TestCase {
+
+	ServiceServer serviceServer;
+	LoopbackClient client;
+	DatagramClient datagramClient;
+	
+	/** Packets received by the client over reliable connection */
+	final List received = new ArrayList();
+	/** Packets received by the client as datagrams */
+	final List receivedDatagrams = new ArrayList();
+	/** Data received by the service */
+	final List serverReceived = new ArrayList();
+	/** Service client of the client */
+	RemoteClient serviceClient;
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		final LoopbackServer server = new LoopbackServer(true);
+		
+		serviceServer = new ServiceServer(server);
+		serviceServer.open(0);
+		serviceServer.openDatagram(0);
+		
+		final Service service = serviceServer.newService(10);
+		service.setReliable(false);
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				serviceClient = client;
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						synchronized (serverReceived) {
+							serverReceived.add(data);
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client = server.connect();
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				received.add(data);
+			}
+		});
+		
+		datagramClient = new DatagramClient(InetAddress.getByName("127.0.0.1"));
+		datagramClient.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				synchronized (receivedDatagrams) {
+					receivedDatagrams.add(data);
+				}
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		datagramClient.close();
+		serviceServer.close();
+		super.tearDown();
+	}
+	
+	/** Data goes reliable way until datagram channel is bound */
+	public void testUnbound() throws Exception {
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		serviceClient.send("reliable");
+		
+		assertEquals(2, received.size());
+		assertEquals("reliable", ((ServiceDataPacket) received.get(1)).getData());
+	}
+	
+	/** Data in both directions goes as datagrams */
+	public void testDatagrams() throws Exception {
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDatagramRequestPacket());
+		
+		final ServiceDatagramTokenPacket token = (ServiceDatagramTokenPacket) received.get(1);
+		assertEquals(serviceServer.getDatagramPort(), token.getPort());
+		
+		datagramClient.bind(token);
+		waitFor(new Condition() {
+			public boolean met() {
+				return datagramClient.isBound();
+			}
+		});
+		
+		datagramClient.send(10, "from client");
+		waitFor(new Condition() {
+			public boolean met() {
+				synchronized (serverReceived) {
+					return serverReceived.size() == 1;
+				}
+			}
+		});
+		assertEquals("from client", serverReceived.get(0));
+		
+		serviceClient.send("from server");
+		waitFor(new Condition() {
+			public boolean met() {
+				synchronized (receivedDatagrams) {
+					return receivedDatagrams.size() == 1;
+				}
+			}
+		});
+		assertEquals("from server", ((ServiceDataPacket) receivedDatagrams.get(0)).getData());
+		
+		// too big for a datagram
+		serviceClient.send(new byte[4096]);
+		assertEquals(3, received.size());
+	}
+	
+	/** Late datagrams are dropped */
+	public void testSequenceFilter() {
+		final SequenceFilter filter = new SequenceFilter();
+		
+		assertTrue(filter.accept(1, 5));
+		assertTrue(filter.accept(1, 7));
+		assertFalse(filter.accept(1, 6));
+		assertFalse(filter.accept(1, 7));
+		assertTrue(filter.accept(2, 6));
+		assertTrue(filter.accept(1, Integer.MAX_VALUE));
+		assertTrue(filter.accept(1, Integer.MIN_VALUE));
+		assertEquals(2, filter.getDropped());
+	}
+	
+	private interface Condition {
+		boolean met();
+	}
+	
+	private static void waitFor(Condition condition) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 2000;
+		
+		while (!condition.met()) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+	
+	public void testFrameHeader() throws Exception {
+		final byte[] bytes = new DatagramFrame(DatagramFrame.DATA, 42, 7, new ServiceDataPacket(10, "data")).encode();
+		final DatagramFrame header = DatagramFrame.decodeHeader(bytes, 0, bytes.length);
+		
+		assertEquals(DatagramFrame.DATA, header.getKind());
+		assertEquals(42, header.getToken());
+		assertEquals(7, header.getSequence());
+		assertNull(header.getPacket());
+		
+		assertEquals("data", DatagramFrame.decodePacket(bytes, 0, bytes.length).getData());
+		
+		// header alone of a frame with corrupted payload
+		bytes[bytes.length - 1] = 0x7f;
+		assertEquals(42, DatagramFrame.decodeHeader(bytes, 0, bytes.length).getToken());
+		
+		try {
+			DatagramFrame.decodeHeader(bytes, 0, 12);
+			fail("short data frame decoded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
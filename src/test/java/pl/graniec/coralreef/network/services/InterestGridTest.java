@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class InterestGridTest extends TestCase {
+
+	InterestGrid grid;
+	List result;
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		grid = new InterestGrid(10.0f);
+		result = new ArrayList();
+	}
+	
+	/** Point inside and outside of single area */
+	public void testQuery1() {
+		grid.update("a", 0, 0, 5);
+		
+		grid.query(3, 3, result);
+		assertEquals(1, result.size());
+		assertEquals("a", result.get(0));
+		
+		result.clear();
+		
+		// in the same cell as area center, but outside the circle
+		grid.query(4, 4, result);
+		assertEquals(0, result.size());
+	}
+	
+	/** Area spanning multiple cells */
+	public void testQuery2() {
+		grid.update("a", 0, 0, 25);
+		grid.update("b", 100, 100, 1);
+		
+		grid.query(-20, 10, result);
+		assertEquals(1, result.size());
+		assertEquals("a", result.get(0));
+	}
+	
+	/** Moving an area */
+	public void testUpdate() {
+		grid.update("a", 0, 0, 5);
+		grid.update("a", 50, 50, 5);
+		
+		grid.query(0, 0, result);
+		assertEquals(0, result.size());
+		
+		grid.query(52, 52, result);
+		assertEquals(1, result.size());
+		assertEquals(1, grid.size());
+	}
+	
+	/** Removing and changing cell size */
+	public void testRemove() {
+		grid.update("a", 0, 0, 5);
+		grid.update("b", 1, 1, 5);
+		
+		assertTrue(grid.remove("a"));
+		assertFalse(grid.remove("a"));
+		
+		grid.setCellSize(3.0f);
+		
+		grid.query(0, 0, result);
+		assertEquals(1, result.size());
+		assertEquals("b", result.get(0));
+	}
+	
+	/** Huge areas and far points don't hang or overflow */
+	public void testWideAreas() {
+		grid.update("a", 0, 0, 1e30f);
+		grid.update("b", 1e30f, -1e30f, 5);
+		
+		grid.query(-1e20f, 1e20f, result);
+		assertEquals(1, result.size());
+		assertEquals("a", result.get(0));
+		
+		// back to cells and wide again
+		grid.update("a", 0, 0, 5);
+		grid.query(500, 500, result);
+		assertEquals(1, result.size());
+		
+		grid.update("a", 500, 500, Float.MAX_VALUE);
+		grid.setCellSize(1.0f);
+		grid.query(1e30f, -1e30f, result);
+		assertEquals(3, result.size());
+		
+		assertTrue(grid.remove("a"));
+		result.clear();
+		grid.query(0, 0, result);
+		assertEquals(0, result.size());
+	}
+	
+	/** Values that are not finite are rejected */
+	public void testInvalidAreas() {
+		final float[][] invalid = {
+			{Float.NaN, 0, 1},
+			{0, Float.POSITIVE_INFINITY, 1},
+			{0, 0, Float.POSITIVE_INFINITY},
+			{0, 0, Float.NaN},
+			{0, 0, -1},
+		};
+		
+		for (int i = 0; i < invalid.length; ++i) {
+			try {
+				grid.update("a", invalid[i][0], invalid[i][1], invalid[i][2]);
+				fail("invalid area " + i + " accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		
+		assertEquals(0, grid.size());
+	}
+
+}
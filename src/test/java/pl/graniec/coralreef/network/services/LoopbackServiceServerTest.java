@@ -0,0 +1,1360 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackServer;
+import pl.graniec.coralreef.network.services.packets.ServiceBatchPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceChunkPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceCreditPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinResponsePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingDeltaPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceListingSubscribePacket;
+import pl.graniec.coralreef.network.services.packets.ServicePacket;
+import pl.graniec.coralreef.network.services.packets.ServiceRequestPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceResponsePacket;
+
+/**
+ * Same scenarios as {@link ServiceServerTest}, but on the in-memory
+ * transport, so every packet is delivered before <code>send()</code>
+ * returns.
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LoopbackServiceServerTest extends TestCase {
+
+	/** Payload that is not serializable at all */
+	static class Position {
+		int x, y;
+		
+		public Position(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+	
+	static class PositionSerializer implements PayloadSerializer {
+		public void write(Object payload, DataOutput out) throws IOException {
+			out.writeInt(((Position) payload).x);
+			out.writeInt(((Position) payload).y);
+		}
+		
+		public Object read(DataInput in) throws IOException {
+			return new Position(in.readInt(), in.readInt());
+		}
+	}
+
+	/** Application control packet */
+	public static class PingPacket implements ServicePacket {
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		}
+		
+		public void writeExternal(ObjectOutput out) throws IOException {
+		}
+		
+		public int getPacketType() {
+			return ServicePacket.FIRST_USER_TYPE;
+		}
+	}
+	
+	/** Collects streams and notes their events */
+	static class StreamCollector implements ServiceStreamListener {
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		final StringBuffer events = new StringBuffer();
+		
+		public void streamStarted(int streamId) {
+			events.append("S").append(streamId);
+		}
+		
+		public void chunkReceived(int streamId, byte[] chunk) {
+			events.append("C").append(chunk.length);
+			data.write(chunk, 0, chunk.length);
+		}
+		
+		public void streamFinished(int streamId) {
+			events.append("F");
+		}
+		
+		public void streamAborted(int streamId) {
+			events.append("A");
+		}
+	}
+	
+	ServiceServer serviceServer;
+	LoopbackClient client;
+	
+	/** Packets received by the client */
+	final List received = new ArrayList();
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		final LoopbackServer server = new LoopbackServer(true);
+		
+		serviceServer = new ServiceServer(server);
+		serviceServer.open(0);
+		
+		client = server.connect();
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				received.add(data);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		serviceServer.close();
+		super.tearDown();
+	}
+	
+	/** One service */
+	public void testServiceListing() throws Exception {
+		serviceServer.newService(10);
+		
+		client.send(new ServiceListingRequestPacket());
+		
+		assertEquals(1, received.size());
+		assertEquals(10, ((ServiceListingPacket) received.get(0)).getServices()[0]);
+	}
+	
+	/** Join and exchange data */
+	public void testServiceData() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List serverReceived = new ArrayList();
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10, 11}));
+		
+		final ServiceJoinResponsePacket response = (ServiceJoinResponsePacket) received.get(0);
+		assertEquals(1, response.getServicesJoined().length);
+		
+		client.send(new ServiceDataPacket(10, "hello"));
+		client.send(new ServiceDataPacket(11, "nobody"));
+		
+		assertEquals(1, serverReceived.size());
+		assertEquals("hello", serverReceived.get(0));
+	}
+	
+	/** Data published at a point reaches clients whose areas cover it */
+	public void testInterestAreas() throws Exception {
+		final Service service = serviceServer.newService(10);
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		received.clear();
+		
+		final RemoteClient member = service.getClients()[0];
+		
+		service.setInterestArea(member, 0, 0, 10);
+		service.publishAt(5, 5, "near");
+		service.publishAt(100, 100, "far");
+		
+		assertEquals(1, received.size());
+		assertEquals("near", ((ServiceDataPacket) received.get(0)).getData());
+		
+		// covers everything without linking every cell
+		service.setInterestArea(member, 0, 0, 1e30f);
+		service.publishAt(-1e20f, 1e20f, "everywhere");
+		
+		assertEquals(2, received.size());
+		assertEquals("everywhere", ((ServiceDataPacket) received.get(1)).getData());
+		
+		try {
+			service.setInterestArea(member, Float.NaN, 0, 10);
+			fail("NaN center accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			service.setInterestArea(member, 0, 0, Float.POSITIVE_INFINITY);
+			fail("infinite radius accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		assertTrue(service.removeInterestArea(member));
+		service.publishAt(0, 0, "nobody");
+		assertEquals(2, received.size());
+	}
+	
+	/** Requests from the client and from the server */
+	public void testRequests() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List responses = new ArrayList();
+		
+		service.setRequestListener(new RequestListener() {
+			public void requestReceived(ServiceRequest request) {
+				try {
+					request.respond("re: " + request.getData());
+				} catch (Exception e) {
+					fail(e.toString());
+				}
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceRequestPacket(10, 7, "ping"));
+		
+		final ServiceResponsePacket response = (ServiceResponsePacket) received.get(1);
+		assertEquals(7, response.getRequestId());
+		assertEquals("re: ping", response.getData());
+		
+		// now the other way
+		final ServiceRemoteClient serviceClient = (ServiceRemoteClient) service.getClients()[0];
+		
+		serviceClient.call("pong", 1000, new ResponseCallback() {
+			public void responseReceived(Object data) {
+				responses.add(data);
+			}
+			
+			public void requestTimedOut() {
+				fail();
+			}
+			
+			public void requestCancelled() {
+				fail();
+			}
+		});
+		
+		final ServiceRequestPacket request = (ServiceRequestPacket) received.get(2);
+		assertEquals(1, serviceClient.getPendingRequestCount());
+		
+		client.send(new ServiceResponsePacket(10, request.getRequestId(), "re: pong"));
+		
+		assertEquals(0, serviceClient.getPendingRequestCount());
+		assertEquals(1, responses.size());
+		assertEquals("re: pong", responses.get(0));
+	}
+	
+	/** Registered payload types are sent without Java serialization */
+	public void testPayloadTypes() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final PayloadTypeRegistry clientTypes = new PayloadTypeRegistry();
+		
+		serviceServer.getPayloadTypes().register(1, Position.class, new PositionSerializer());
+		clientTypes.register(1, Position.class, new PositionSerializer());
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(final RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						final Position position = (Position) data;
+						
+						try {
+							client.send(new Position(position.y, position.x));
+						} catch (Exception e) {
+							fail(e.toString());
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(clientTypes.encode(10, new Position(1, 2)));
+		
+		final ServiceDataPacket echo = (ServiceDataPacket) received.get(1);
+		assertEquals(1, echo.getTypeId());
+		assertEquals(8, echo.getPayload().length);
+		
+		final Position position = (Position) clientTypes.decode(echo);
+		assertEquals(2, position.x);
+		assertEquals(1, position.y);
+	}
+	
+	/** Closing the service disconnects its clients */
+	public void testServiceClose() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List disconnected = new ArrayList();
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+				disconnected.add(client);
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		
+		final RemoteClient serviceClient = service.getClients()[0];
+		assertTrue(serviceClient.isConnected());
+		
+		service.close();
+		
+		assertFalse(service.isOpen());
+		assertFalse(serviceClient.isConnected());
+		assertEquals(1, disconnected.size());
+		
+		// closed service cannot be joined
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		assertEquals(0, ((ServiceJoinResponsePacket) received.get(1)).getServicesJoined().length);
+	}
+	
+	/** Events over the threshold are reported as separate objects */
+	public void testProfiling() throws Exception {
+		final List events = new ArrayList();
+		
+		serviceServer.newService(10);
+		serviceServer.setProfiler(new ServiceProfiler() {
+			public void eventRecorded(ServiceEvent event) {
+				events.add(event);
+			}
+		});
+		
+		for (int i = 0; i < ServiceEvent.TYPE_COUNT; ++i) {
+			serviceServer.setProfilingThreshold(i, 0);
+		}
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, new byte[16]));
+		client.send(new ServiceDataPacket(10, new byte[32]));
+		
+		final ServiceEvent first = (ServiceEvent) events.get(events.size() - 4);
+		final ServiceEvent second = (ServiceEvent) events.get(events.size() - 2);
+		
+		assertNotSame(first, second);
+		assertEquals(ServiceEvent.DELIVERY, first.getType());
+		assertEquals(16, first.getPayloadSize());
+		assertEquals(32, second.getPayloadSize());
+		assertEquals(10, second.getServiceId());
+		
+		// reported copies keep the client after the thread's event is reused
+		assertEquals(ServiceEvent.ROUTE, ((ServiceEvent) events.get(events.size() - 1)).getType());
+		assertNotNull(((ServiceEvent) events.get(events.size() - 1)).getClient());
+	}
+
+	/** Packets received while a listener replies get their own events */
+	public void testNestedProfiling() throws Exception {
+		final List events = new ArrayList();
+		final Service service = serviceServer.newService(10);
+		
+		serviceServer.setProfiler(new ServiceProfiler() {
+			public void eventRecorded(ServiceEvent event) {
+				events.add(event);
+			}
+		});
+		
+		for (int i = 0; i < ServiceEvent.TYPE_COUNT; ++i) {
+			serviceServer.setProfilingThreshold(i, 0);
+		}
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(final RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						if (((byte[]) data).length == 16) {
+							try {
+								client.send(new byte[8]);
+							} catch (Exception e) {
+								fail(e.toString());
+							}
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				if (data instanceof ServiceDataPacket) {
+					try {
+						client.send(new ServiceDataPacket(10, new byte[32]));
+					} catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+			}
+		});
+		events.clear();
+		
+		client.send(new ServiceDataPacket(10, new byte[16]));
+		
+		final List deliveries = new ArrayList();
+		final List routes = new ArrayList();
+		
+		for (int i = 0; i < events.size(); ++i) {
+			final ServiceEvent event = (ServiceEvent) events.get(i);
+			
+			if (event.getType() == ServiceEvent.DELIVERY) {
+				deliveries.add(event);
+			} else if (event.getType() == ServiceEvent.ROUTE) {
+				routes.add(event);
+			}
+		}
+		
+		assertEquals(2, deliveries.size());
+		assertEquals(2, routes.size());
+		
+		final ServiceEvent inner = (ServiceEvent) deliveries.get(0);
+		final ServiceEvent outer = (ServiceEvent) deliveries.get(1);
+		
+		assertEquals(32, inner.getPayloadSize());
+		assertEquals(16, outer.getPayloadSize());
+		assertTrue(outer.getStartTime() < inner.getStartTime());
+		assertTrue(outer.getDuration() > inner.getDuration());
+		assertNotNull(((ServiceEvent) routes.get(1)).getClient());
+	}
+
+	/** Only clients over their own limit are disconnected */
+	public void testRateLimits() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List serverReceived = new ArrayList();
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		service.setServiceRateLimit(new RateLimit(0.001, 1, RateLimit.DISCONNECT));
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, "first"));
+		client.send(new ServiceDataPacket(10, "second"));
+		
+		assertEquals(1, serverReceived.size());
+		assertEquals(1, service.getClientCount());
+		
+		// delays longer than allowed drop the packet
+		service.setServiceRateLimit(new RateLimit(0.001, 1, RateLimit.DELAY, 10));
+		client.send(new ServiceDataPacket(10, "third"));
+		client.send(new ServiceDataPacket(10, "fourth"));
+		
+		assertEquals(2, serverReceived.size());
+		assertEquals(2, service.getRateLimitHits());
+		
+		service.setServiceRateLimit(null);
+		service.setClientRateLimit(new RateLimit(0.001, 1, RateLimit.DISCONNECT));
+		client.send(new ServiceDataPacket(10, "fifth"));
+		client.send(new ServiceDataPacket(10, "sixth"));
+		
+		assertEquals(3, serverReceived.size());
+		assertEquals(0, service.getClientCount());
+	}
+
+	/** Credits come before join response and are granted back as listeners handle data */
+	public void testFlowControl() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final ServiceCredits credits = new ServiceCredits();
+		final List serverReceived = new ArrayList();
+		
+		service.setFlowWindow(4);
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.addPacketListener(credits);
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		
+		assertEquals(4, ((ServiceCreditPacket) received.get(0)).getCredits());
+		assertTrue(received.get(1) instanceof ServiceJoinResponsePacket);
+		assertEquals(4, credits.getCredits(10));
+		assertEquals(-1, credits.getCredits(11));
+		
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(credits.tryAcquire(10));
+			client.send(new ServiceDataPacket(10, "data"));
+		}
+		
+		assertEquals(10, serverReceived.size());
+		assertEquals(4, credits.getCredits(10));
+		assertEquals(14, service.getGrantedCredits());
+		assertEquals(0, service.getCreditViolations());
+		assertEquals(4, ((ServiceRemoteClient) service.getClients()[0]).getCredits());
+	}
+	
+	/** Packets dropped by the service limit don't use up the client limit */
+	public void testRateLimitRefund() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List serverReceived = new ArrayList();
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		service.setClientRateLimit(new RateLimit(0.001, 2, RateLimit.DISCONNECT));
+		service.setServiceRateLimit(new RateLimit(0.001, 1, RateLimit.DROP));
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, "first"));
+		client.send(new ServiceDataPacket(10, "second"));
+		
+		assertEquals(1, serverReceived.size());
+		
+		service.setServiceRateLimit(null);
+		assertNull(service.getServiceRateLimit());
+		client.send(new ServiceDataPacket(10, "third"));
+		
+		assertEquals(2, serverReceived.size());
+		assertEquals("third", serverReceived.get(1));
+		assertEquals(1, service.getClientCount());
+	}
+	
+	/** Delayed packets are held back without blocking the receiving thread */
+	public void testRateLimitDelay() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List serverReceived = Collections.synchronizedList(new ArrayList());
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		service.setClientRateLimit(new RateLimit(20, 1, RateLimit.DELAY, 1000));
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		
+		final long startTime = System.currentTimeMillis();
+		
+		for (int i = 0; i < 4; ++i) {
+			client.send(new ServiceDataPacket(10, Integer.valueOf(i)));
+		}
+		
+		assertTrue(System.currentTimeMillis() - startTime < 100);
+		assertEquals(1, serverReceived.size());
+		
+		final long deadline = System.currentTimeMillis() + 2000;
+		
+		while (serverReceived.size() < 4) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		
+		assertTrue(System.currentTimeMillis() - startTime >= 140);
+		
+		for (int i = 0; i < 4; ++i) {
+			assertEquals(Integer.valueOf(i), serverReceived.get(i));
+		}
+		
+		assertEquals(3, service.getRateLimitHits());
+	}
+	
+	/** Packets dropped by rate limits still give their credits back */
+	public void testRateLimitedFlowControl() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final ServiceCredits credits = new ServiceCredits();
+		final List serverReceived = new ArrayList();
+		
+		service.setFlowWindow(4);
+		service.setClientRateLimit(new RateLimit(0.001, 1, RateLimit.DROP));
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.addPacketListener(credits);
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		
+		for (int i = 0; i < 10; ++i) {
+			assertTrue(credits.tryAcquire(10));
+			client.send(new ServiceDataPacket(10, "data"));
+		}
+		
+		assertEquals(1, serverReceived.size());
+		assertEquals(9, service.getRateLimitHits());
+		assertEquals(4, credits.getCredits(10));
+		assertEquals(0, service.getCreditViolations());
+		
+		service.setClientRateLimit(null);
+		assertTrue(credits.tryAcquire(10));
+		client.send(new ServiceDataPacket(10, "data"));
+		
+		assertEquals(2, serverReceived.size());
+	}
+	
+	/** Application packets go to handlers registered for their types */
+	public void testPacketHandlers() throws Exception {
+		final List handled = new ArrayList();
+		
+		serviceServer.setPacketHandler(ServicePacket.FIRST_USER_TYPE, new ServicePacketHandler() {
+			public void packetReceived(RemoteClient sender, ServicePacket packet) {
+				handled.add(packet);
+			}
+		});
+		
+		client.send(new PingPacket());
+		assertEquals(1, handled.size());
+		assertTrue(handled.get(0) instanceof PingPacket);
+		
+		// no handler, dropped
+		serviceServer.setPacketHandler(ServicePacket.FIRST_USER_TYPE, null);
+		client.send(new PingPacket());
+		assertEquals(1, handled.size());
+		
+		try {
+			serviceServer.setPacketHandler(ServicePacket.TYPE_JOIN, null);
+			fail("reserved type accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** Streams are sent in chunks both ways */
+	public void testStreams() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final StreamCollector serverStreams = new StreamCollector();
+		final StreamCollector clientStreams = new StreamCollector();
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				((ServiceRemoteClient) client).setStreamListener(serverStreams);
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.addPacketListener(new ServiceStreamReceiver(10, clientStreams));
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		
+		// server to client
+		final ServiceOutputStream out = ((ServiceRemoteClient) service.getClients()[0]).openStream(4);
+		out.write("0123456789".getBytes());
+		out.close();
+		
+		assertEquals("0123456789", new String(clientStreams.data.toByteArray()));
+		assertEquals("S0C4C4C2F", clientStreams.events.toString());
+		assertEquals(4, ((ServiceChunkPacket) received.get(1)).getData().length);
+		
+		// client to server
+		final ServiceOutputStream in = new ServiceOutputStream(10, 7, 8) {
+			protected void sendChunk(ServiceChunkPacket packet) throws IOException {
+				try {
+					client.send(packet);
+				} catch (Exception e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		};
+		
+		in.write("abc".getBytes());
+		in.flush();
+		assertEquals("S7C3", serverStreams.events.toString());
+		
+		in.close();
+		assertEquals("abc", new String(serverStreams.data.toByteArray()));
+		assertEquals("S7C3C0F", serverStreams.events.toString());
+		
+		// missing chunk aborts the stream
+		client.send(new ServiceChunkPacket(10, 8, 0, false, new byte[1]));
+		client.send(new ServiceChunkPacket(10, 8, 2, false, new byte[1]));
+		client.send(new ServiceChunkPacket(10, 8, 3, true, new byte[1]));
+		assertEquals("S7C3C0FS8C1A", serverStreams.events.toString());
+		
+		// open streams are aborted when client leaves
+		client.send(new ServiceChunkPacket(10, 9, 0, false, new byte[1]));
+		serviceServer.close();
+		assertEquals("S7C3C0FS8C1AS9C1A", serverStreams.events.toString());
+	}
+
+	/** Subscribers get listing changes pushed */
+	public void testListingSubscription() throws Exception {
+		final ServiceListingTracker tracker = new ServiceListingTracker(client);
+		
+		serviceServer.newService(10);
+		
+		client.addPacketListener(tracker);
+		client.send(new ServiceListingSubscribePacket(true));
+		
+		assertEquals(1, ((ServiceListingPacket) received.get(0)).getVersion());
+		assertEquals(1, tracker.getServices().length);
+		
+		serviceServer.newService(11);
+		
+		final ServiceListingDeltaPacket delta = (ServiceListingDeltaPacket) received.get(1);
+		assertEquals(2, delta.getVersion());
+		assertEquals(11, delta.getAdded()[0]);
+		assertEquals(2, tracker.getServices().length);
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		assertNotNull(serviceServer.removeService(10));
+		assertNull(serviceServer.removeService(10));
+		assertEquals(10, ((ServiceListingDeltaPacket) received.get(3)).getRemoved()[0]);
+		assertEquals(11, tracker.getServices()[0]);
+		assertEquals(3, tracker.getVersion());
+		
+		// id can be used again, but not twice
+		serviceServer.newService(10);
+		assertEquals(0, serviceServer.getService(10).getClientCount());
+		
+		try {
+			serviceServer.newService(10);
+			fail("service created twice");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		assertEquals(4, tracker.getVersion());
+		
+		// stale listing is ignored, missing delta brings the full one
+		tracker.packetReceived(new ServiceListingPacket(new int[0], 1));
+		assertEquals(2, tracker.getServices().length);
+		tracker.packetReceived(new ServiceListingDeltaPacket(6, new int[] {13}, new int[0]));
+		assertEquals(4, ((ServiceListingPacket) received.get(5)).getVersion());
+		assertEquals(4, tracker.getVersion());
+		assertEquals(2, tracker.getServices().length);
+		received.remove(5);
+		
+		// no more deltas after cancelling
+		client.send(new ServiceListingSubscribePacket(false));
+		serviceServer.newService(12);
+		assertEquals(5, received.size());
+		
+		client.send(new ServiceListingRequestPacket());
+		assertEquals(5, ((ServiceListingPacket) received.get(5)).getVersion());
+	}
+
+	/** Clients of all attached servers share services */
+	public void testAttachedServers() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final LoopbackServer second = new LoopbackServer(true);
+		final List secondReceived = new ArrayList();
+		
+		assertTrue(serviceServer.attach(second));
+		assertFalse(serviceServer.attach(second));
+		assertEquals(2, serviceServer.getServers().length);
+		
+		second.open(0);
+		
+		final LoopbackClient secondClient = second.connect();
+		secondClient.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				secondReceived.add(data);
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		secondClient.send(new ServiceJoinPacket(new int[] {10}));
+		assertEquals(2, service.getClientCount());
+		
+		final RemoteClient[] clients = service.getClients();
+		for (int i = 0; i < clients.length; ++i) {
+			clients[i].send("hello");
+		}
+		
+		assertEquals("hello", ((ServiceDataPacket) received.get(1)).getData());
+		assertEquals("hello", ((ServiceDataPacket) secondReceived.get(1)).getData());
+		
+		// clients of detached server leave
+		assertTrue(serviceServer.detach(second));
+		assertFalse(second.isOpen());
+		assertEquals(1, service.getClientCount());
+		assertEquals(1, serviceServer.getServers().length);
+	}
+
+	/** Joins above capacity or load are rejected with a reason */
+	public void testAdmission() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final LoopbackClient secondClient = ((LoopbackServer) serviceServer.getServers()[0]).connect();
+		final List secondReceived = new ArrayList();
+		
+		secondClient.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				secondReceived.add(data);
+			}
+		});
+		
+		service.setCapacity(1);
+		service.setRetryAfter(100);
+		
+		client.send(new ServiceJoinPacket(new int[] {10, 11}));
+		
+		ServiceJoinResponsePacket response = (ServiceJoinResponsePacket) received.get(0);
+		assertEquals(10, response.getServicesJoined()[0]);
+		assertEquals(11, response.getServicesRejected()[0]);
+		assertEquals(ServiceJoinResponsePacket.REASON_UNKNOWN_SERVICE, response.getReasons()[0]);
+		assertEquals(0, response.getRetryAfter()[0]);
+		
+		secondClient.send(new ServiceJoinPacket(new int[] {10}));
+		
+		response = (ServiceJoinResponsePacket) secondReceived.get(0);
+		assertEquals(0, response.getServicesJoined().length);
+		assertEquals(ServiceJoinResponsePacket.REASON_FULL, response.getReasons()[0]);
+		assertTrue(response.getRetryAfter()[0] >= 100 && response.getRetryAfter()[0] <= 150);
+		assertEquals(1, service.getRejectedJoins());
+		
+		// slow listeners
+		service.setCapacity(0);
+		service.setLoadLimits(0, 1);
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						try {
+							Thread.sleep(5);
+						} catch (InterruptedException e) {
+							// ignore
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceDataPacket(10, "data"));
+		assertTrue(service.getListenerLatency() > 0);
+		
+		secondClient.send(new ServiceJoinPacket(new int[] {10}));
+		
+		response = (ServiceJoinResponsePacket) secondReceived.get(1);
+		assertEquals(ServiceJoinResponsePacket.REASON_OVERLOADED, response.getReasons()[0]);
+		assertEquals(1, service.getClientCount());
+	}
+
+	/** Overloaded service that went idle admits joins again */
+	public void testAdmissionRecovery() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final LoopbackClient secondClient = ((LoopbackServer) serviceServer.getServers()[0]).connect();
+		final List secondReceived = new ArrayList();
+		
+		secondClient.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				secondReceived.add(data);
+			}
+		});
+		
+		service.latencyHalfLife = 10000000L;
+		service.setLoadLimits(0, 100000L);
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						try {
+							Thread.sleep(20);
+						} catch (InterruptedException e) {
+							// ignore
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, "data"));
+		secondClient.send(new ServiceJoinPacket(new int[] {10}));
+		
+		ServiceJoinResponsePacket response = (ServiceJoinResponsePacket) secondReceived.get(0);
+		assertEquals(ServiceJoinResponsePacket.REASON_OVERLOADED, response.getReasons()[0]);
+		
+		Thread.sleep(300);
+		assertTrue(service.getListenerLatency() < 100000L);
+		
+		secondClient.send(new ServiceJoinPacket(new int[] {10}));
+		
+		response = (ServiceJoinResponsePacket) secondReceived.get(1);
+		assertEquals(10, response.getServicesJoined()[0]);
+		assertEquals(2, service.getClientCount());
+	}
+
+	/** Codec services decode and deliver on their own thread and drop packets over its queue capacity */
+	public void testCodecService() throws Exception {
+		final List decodeThreads = Collections.synchronizedList(new ArrayList());
+		final List serverReceived = Collections.synchronizedList(new ArrayList());
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		final Service service = serviceServer.newService(10, new ServiceCodec() {
+			public byte[] encode(Object payload) {
+				return ((String) payload).getBytes();
+			}
+			
+			public Object decode(byte[] data) {
+				decodeThreads.add(Thread.currentThread());
+				return new String(data);
+			}
+		});
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+						
+						if ("block".equals(data)) {
+							blocked.countDown();
+							
+							try {
+								release.await(5, TimeUnit.SECONDS);
+							} catch (InterruptedException e) {
+								// ignore
+							}
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, ServiceDataPacket.TYPE_ENCODED, "block".getBytes()));
+		
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), decodeThreads.get(0));
+		assertEquals("Service 10 dispatcher", ((Thread) decodeThreads.get(0)).getName());
+		
+		// dispatch thread is busy, so the queue fills up and the rest is dropped
+		for (int i = 0; i < ServiceDispatcher.DEFAULT_CAPACITY + 10; ++i) {
+			client.send(new ServiceDataPacket(10, ServiceDataPacket.TYPE_ENCODED, "data".getBytes()));
+		}
+		
+		assertEquals(ServiceDispatcher.DEFAULT_CAPACITY, service.getQueueDepth());
+		release.countDown();
+		
+		final long deadline = System.currentTimeMillis() + 5000;
+		
+		while (service.getQueueDepth() > 0 || serverReceived.size() < ServiceDispatcher.DEFAULT_CAPACITY + 1) {
+			assertTrue("timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		
+		assertEquals(ServiceDispatcher.DEFAULT_CAPACITY + 1, serverReceived.size());
+		assertEquals("data", serverReceived.get(1));
+		assertEquals(ServiceDispatcher.DEFAULT_CAPACITY + 1, decodeThreads.size());
+		assertEquals(1, service.getClientCount());
+	}
+
+	/** Services of a factory range are created on join and released when idle */
+	public void testServiceFactory() throws Exception {
+		final List released = new ArrayList();
+		
+		serviceServer.addServiceFactory(100, 199, new ServiceFactory() {
+			public Service createService(ServiceServer server, int id) {
+				return id != 150 ? server.newService(id) : null;
+			}
+			
+			public void serviceReleased(Service service) {
+				released.add(service);
+			}
+		}, 20);
+		
+		try {
+			serviceServer.addServiceFactory(199, 200, null, 0);
+			fail("overlapping range accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		assertNull(serviceServer.getService(100));
+		
+		client.send(new ServiceJoinPacket(new int[] {100, 150, 200}));
+		
+		final ServiceJoinResponsePacket response = (ServiceJoinResponsePacket) received.get(0);
+		assertEquals(1, response.getServicesJoined().length);
+		assertEquals(2, response.getServicesRejected().length);
+		
+		final Service service = serviceServer.getService(100);
+		assertEquals(1, service.getClientCount());
+		
+		// client stays, service stays
+		Thread.sleep(100);
+		assertSame(service, serviceServer.getService(100));
+		
+		((ServiceRemoteClient) service.getClients()[0]).disconnect();
+		
+		for (int i = 0; i < 100 && released.isEmpty(); ++i) {
+			Thread.sleep(10);
+		}
+		
+		assertSame(service, released.get(0));
+		assertNull(serviceServer.getService(100));
+		
+		// and is created again
+		client.send(new ServiceJoinPacket(new int[] {100}));
+		assertNotSame(service, serviceServer.getService(100));
+	}
+
+	/** Striped connections are one client, services go over their stripes */
+	public void testStriping() throws Exception {
+		final Service control = serviceServer.newService(10);
+		final Service bulk = serviceServer.newService(11);
+		final LoopbackClient second = ((LoopbackServer) serviceServer.getServers()[0]).connect();
+		final StripedClient striped = new StripedClient(new ServiceConnection[] {client, second});
+		final List secondReceived = new ArrayList();
+		final List serverReceived = new ArrayList();
+		final int[] connected = new int[1];
+		
+		second.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				secondReceived.add(data);
+			}
+		});
+		
+		bulk.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				++connected[0];
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						serverReceived.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+				--connected[0];
+			}
+		});
+		
+		striped.assign(11, 1);
+		striped.open(1000);
+		assertEquals(0, striped.getStripe(10));
+		
+		striped.send(new ServiceJoinPacket(new int[] {10, 11}));
+		striped.send(new ServiceDataPacket(11, "bulk"));
+		assertEquals(1, connected[0]);
+		assertEquals("bulk", serverReceived.get(0));
+		
+		received.clear();
+		secondReceived.clear();
+		
+		control.getClients()[0].send("control");
+		bulk.getClients()[0].send("bulk");
+		
+		assertEquals("control", ((ServiceDataPacket) received.get(0)).getData());
+		assertEquals("bulk", ((ServiceDataPacket) secondReceived.get(0)).getData());
+		
+		// lost stripe falls back to the first connection
+		second.disconnect();
+		assertEquals(1, bulk.getClientCount());
+		
+		bulk.getClients()[0].send("bulk");
+		assertEquals("bulk", ((ServiceDataPacket) received.get(1)).getData());
+		
+		// stripes can't join a session twice
+		final StripedClient again = new StripedClient(new ServiceConnection[] {client, client});
+		
+		try {
+			again.open(100);
+			fail("stripe accepted twice");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		// clients can't have more stripes than allowed
+		serviceServer.setMaxStripes(1);
+		final StripedClient tooMany = new StripedClient(new ServiceConnection[] {
+				client, ((LoopbackServer) serviceServer.getServers()[0]).connect()});
+		
+		try {
+			tooMany.open(100);
+			fail("too many stripes accepted");
+		} catch (NetworkException e) {
+			// expected
+		}
+		
+		client.disconnect();
+		assertEquals(0, connected[0]);
+	}
+
+	/** Inputs of a tick come together and replies go out in one batch */
+	public void testTicks() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final List batches = new ArrayList();
+		final List unpacked = new ArrayList();
+		
+		client.addPacketListener(new ServiceBatchReceiver(new PacketListener() {
+			public void packetReceived(Object data) {
+				unpacked.add(data);
+			}
+		}));
+		
+		final TickListener listener = new TickListener() {
+			public void tick(long tick, ServiceInput[] inputs) {
+				batches.add(inputs);
+				
+				try {
+					for (int i = 0; i < inputs.length; ++i) {
+						inputs[i].getClient().send("echo " + inputs[i].getData());
+					}
+				} catch (Exception e) {
+					fail(e.getMessage());
+				}
+			}
+		};
+		
+		// never runs by itself during the test
+		service.setFlowWindow(8);
+		service.startTicks(3600000L, listener);
+		assertTrue(service.isTicking());
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, "a"));
+		client.send(new ServiceBatchPacket(10, new ServicePacket[] {new ServiceDataPacket(10, "b"), new ServiceDataPacket(10, "c")}));
+		assertTrue(batches.isEmpty());
+		
+		received.clear();
+		unpacked.clear();
+		service.runTick();
+		
+		assertEquals(1, batches.size());
+		assertEquals(3, ((ServiceInput[]) batches.get(0)).length);
+		assertEquals("b", ((ServiceInput[]) batches.get(0))[1].getData());
+		
+		assertEquals(1, received.size());
+		assertEquals(3, ((ServiceBatchPacket) received.get(0)).getPackets().length);
+		assertEquals("echo c", ((ServiceDataPacket) unpacked.get(2)).getData());
+		
+		// dropped inputs give their credits back
+		service.startTicks(3600000L, listener);
+		client.send(new ServiceDataPacket(10, "d"));
+		received.clear();
+		
+		service.stopTicks();
+		assertFalse(service.isTicking());
+		assertEquals(1, batches.size());
+		assertEquals(4, ((ServiceCreditPacket) received.get(0)).getCredits());
+		
+		// batches hold only packets of their own service
+		try {
+			new ServiceBatchPacket(10, new ServicePacket[] {new ServiceDataPacket(11, "e")});
+			fail("packet of another service batched");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		
+		try {
+			new ServiceBatchPacket(10, new ServicePacket[] {new ServiceBatchPacket(10, new ServicePacket[0])});
+			fail("batch nested");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	/** Ticks of a stopped timer never overlap with ticks of the new one */
+	public void testTickRestart() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final int[] running = new int[2];
+		
+		final TickListener listener = new TickListener() {
+			public void tick(long tick, ServiceInput[] inputs) {
+				synchronized (running) {
+					running[1] = Math.max(running[1], ++running[0]);
+				}
+				
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				
+				synchronized (running) {
+					--running[0];
+				}
+			}
+		};
+		
+		for (int i = 0; i < 20; ++i) {
+			service.startTicks(1, listener);
+			Thread.sleep(3);
+		}
+		
+		service.stopTicks();
+		Thread.sleep(20);
+		
+		assertEquals(0, running[0]);
+		assertEquals(1, running[1]);
+	}
+	
+	/** Pooled packets are not reused while they wait in the outbound queue or in a tick batch */
+	public void testPacketPooling() throws Exception {
+		final Service service = serviceServer.newService(10);
+		final PayloadTypeRegistry clientTypes = new PayloadTypeRegistry();
+		
+		serviceServer.getPayloadTypes().register(1, Position.class, new PositionSerializer());
+		clientTypes.register(1, Position.class, new PositionSerializer());
+		serviceServer.setPacketPooling(true);
+		serviceServer.setOutboundScheduling(true);
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(final RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						try {
+							if ("go".equals(data)) {
+								client.send(new Position(1, 1));
+							} else if ("reply".equals(data)) {
+								// queued while the first packet is being sent
+								client.send(new Position(2, 2));
+								client.send(new Position(3, 3));
+							}
+						} catch (Exception e) {
+							fail(e.toString());
+						}
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.addPacketListener(new PacketListener() {
+			public void packetReceived(Object data) {
+				if (data instanceof ServiceDataPacket && ((ServiceDataPacket) data).getTypeId() == 1 && received.size() == 1) {
+					try {
+						client.send(new ServiceDataPacket(10, "reply"));
+					} catch (Exception e) {
+						fail(e.toString());
+					}
+				}
+			}
+		});
+		received.clear();
+		
+		client.send(new ServiceDataPacket(10, "go"));
+		
+		assertEquals(3, received.size());
+		
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(i + 1, ((Position) clientTypes.decode((ServiceDataPacket) received.get(i))).x);
+		}
+		
+		assertTrue(serviceServer.getPacketPool().size() > 0);
+		
+		// packets of a tick wait for its end
+		service.startTicks(3600000L, new TickListener() {
+			public void tick(long tick, ServiceInput[] inputs) {
+				try {
+					for (int i = 4; i <= 6; ++i) {
+						inputs[0].getClient().send(new Position(i, i));
+					}
+				} catch (Exception e) {
+					fail(e.toString());
+				}
+			}
+		});
+		
+		client.send(new ServiceDataPacket(10, "tick"));
+		received.clear();
+		service.runTick();
+		
+		final ServicePacket[] batch = ((ServiceBatchPacket) received.get(0)).getPackets();
+		
+		assertEquals(3, batch.length);
+		
+		for (int i = 0; i < 3; ++i) {
+			assertEquals(i + 4, ((Position) clientTypes.decode((ServiceDataPacket) batch[i])).x);
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * Compares heap taken by memberships of clients in services kept
+ * in {@link MembershipTable} with the maps and eagerly created
+ * {@link ServiceRemoteClient} objects used before. Every client joins
+ * every service. Run it from command line with enough heap:
+ * <pre>
+ * java pl.graniec.coralreef.network.services.MembershipBenchmark [clients] [services]
+ * </pre>
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MembershipBenchmark {
+
+	/** Server that is never opened */
+	private static class NullServer implements Server {
+		public boolean addConnectionListener(ConnectionListener l) { return true; }
+		public void close() {}
+		public int getPort() { return 0; }
+		public boolean isOpen() { return false; }
+		public void open(int port) {}
+		public boolean removeConnectionListener(ConnectionListener l) { return true; }
+	}
+	
+	/** Client that is never connected */
+	private static class NullRemoteClient implements RemoteClient {
+		public boolean addPacketListener(PacketListener l) { return true; }
+		public void disconnect() {}
+		public boolean isConnected() { return false; }
+		public boolean removePacketListener(PacketListener l) { return true; }
+		public void send(Object data) {}
+	}
+	
+	/** Keeps the measured structures reachable */
+	private static Object retained;
+	
+	public static void main(String[] args) throws Exception {
+		final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int services = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		
+		final ServiceServer serviceServer = new ServiceServer(new NullServer());
+		final Service[] serviceArray = new Service[services];
+		final RemoteClient[] clientArray = new RemoteClient[clients];
+		
+		for (int i = 0; i < services; ++i) {
+			serviceArray[i] = serviceServer.newService(i);
+		}
+		
+		for (int i = 0; i < clients; ++i) {
+			clientArray[i] = new NullRemoteClient();
+		}
+		
+		final long maps = measure(new Runnable() {
+			public void run() {
+				retained = buildMaps(serviceServer, serviceArray, clientArray);
+			}
+		});
+		
+		final long table = measure(new Runnable() {
+			public void run() {
+				retained = buildTable(serviceArray, clientArray);
+			}
+		});
+		
+		final long memberships = (long) clients * services;
+		
+		System.out.println("memberships:   " + memberships);
+		System.out.println("maps (bytes):  " + maps + " (" + (maps / memberships) + " per membership)");
+		System.out.println("table (bytes): " + table + " (" + (table / memberships) + " per membership)");
+	}
+	
+	/** Layout used before: map of services in every client, map of clients in every service */
+	private static Object buildMaps(ServiceServer serviceServer, Service[] services, RemoteClient[] clients) {
+		final Map[] clientServices = new Map[clients.length];
+		final Map[] serviceClients = new Map[services.length];
+		
+		for (int i = 0; i < services.length; ++i) {
+			serviceClients[i] = new HashMap();
+		}
+		
+		for (int i = 0; i < clients.length; ++i) {
+			clientServices[i] = new HashMap();
+			
+			for (int j = 0; j < services.length; ++j) {
+				clientServices[i].put(Integer.valueOf(services[j].getId()), services[j]);
+				serviceClients[j].put(clients[i], new ServiceRemoteClient(serviceServer, services[j].getId(), clients[i]));
+			}
+		}
+		
+		return new Object[] { clientServices, serviceClients };
+	}
+	
+	private static Object buildTable(Service[] services, RemoteClient[] clients) {
+		final MembershipTable table = new MembershipTable();
+		final int[] indices = new int[services.length];
+		
+		for (int i = 0; i < services.length; ++i) {
+			indices[i] = table.addService(services[i]);
+		}
+		
+		int slot;
+		for (int i = 0; i < clients.length; ++i) {
+			slot = table.addClient(clients[i]);
+			
+			for (int j = 0; j < services.length; ++j) {
+				table.join(slot, indices[j]);
+			}
+		}
+		
+		return table;
+	}
+	
+	private static long measure(Runnable build) {
+		retained = null;
+		final long before = usedMemory();
+		
+		build.run();
+		
+		final long after = usedMemory();
+		retained = null;
+		
+		return after - before;
+	}
+	
+	private static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		
+		for (int i = 0; i < 4; ++i) {
+			System.gc();
+		}
+		
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class MembershipTableTest extends TestCase {
+
+	private MembershipTable table;
+	
+	protected void setUp() throws Exception {
+		table = new MembershipTable();
+	}
+	
+	/** Joining and leaving sets both directions */
+	public void testJoinLeave() {
+		final int first = table.addService("first");
+		final int second = table.addService("second");
+		final int a = table.addClient("a");
+		final int b = table.addClient("b");
+		
+		assertTrue(table.join(a, first));
+		assertFalse(table.join(a, first));
+		assertTrue(table.join(a, second));
+		assertTrue(table.join(b, second));
+		
+		assertTrue(table.isMember(a, first));
+		assertFalse(table.isMember(b, first));
+		assertEquals(2, table.getClientCount(second));
+		assertEquals("[first, second]", Arrays.asList(table.getServices(a)).toString());
+		
+		assertTrue(table.leave(a, second));
+		assertFalse(table.leave(a, second));
+		assertEquals("[b]", Arrays.asList(table.getClients(second)).toString());
+	}
+	
+	/** Removed client leaves all services and its slot is reused */
+	public void testRemoveClient() {
+		final int service = table.addService("service");
+		final int a = table.addClient("a");
+		
+		table.join(a, service);
+		
+		assertEquals("[service]", Arrays.asList(table.removeClient(a)).toString());
+		assertEquals(0, table.getClientCount(service));
+		
+		final int b = table.addClient("b");
+		
+		assertEquals(a, b);
+		assertFalse(table.isMember(b, service));
+		assertEquals(0, table.getServices(b).length);
+	}
+	
+	/** Removing all clients of a service keeps their other services */
+	public void testRemoveClients() {
+		final int first = table.addService("first");
+		final int second = table.addService("second");
+		final int[] slots = new int[100];
+		
+		for (int i = 0; i < slots.length; ++i) {
+			slots[i] = table.addClient("c" + i);
+			table.join(slots[i], first);
+			table.join(slots[i], second);
+		}
+		
+		assertEquals(100, table.removeClients(first).length);
+		assertEquals(0, table.getClientCount(first));
+		assertEquals(100, table.getClientCount(second));
+		assertEquals(1, table.getServices(slots[50]).length);
+	}
+	
+	public void testRemoveService() {
+		final int first = table.addService("first");
+		final int second = table.addService("second");
+		final int slot = table.addClient("client");
+		
+		table.join(slot, first);
+		table.join(slot, second);
+		
+		assertEquals(1, table.removeService(first).length);
+		assertEquals(1, table.getServices(slot).length);
+		
+		// index is reused without old members
+		assertEquals(first, table.addService("third"));
+		assertEquals(0, table.getClientCount(first));
+		assertFalse(table.isMember(slot, first));
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackServer;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class OutboundSchedulerTest extends TestCase {
+
+	/**
+	 * Records sent packets. The first packet is held until the
+	 * test queues the rest, like a slow connection would do.
+	 */
+	private static class RecordingRemoteClient implements RemoteClient {
+		final List/*<String>*/ sent = new ArrayList();
+		Runnable onFirstSend;
+		
+		public boolean addPacketListener(PacketListener l) {
+			return false;
+		}
+
+		public void disconnect() {
+		}
+
+		public boolean isConnected() {
+			return true;
+		}
+
+		public boolean removePacketListener(PacketListener l) {
+			return false;
+		}
+
+		public void send(Object data) throws NotSerializableException, NetworkException {
+			if (data instanceof ServiceDataPacket) {
+				sent.add(String.valueOf(((ServiceDataPacket) data).getServiceId()));
+			} else {
+				sent.add(data);
+			}
+			
+			if (onFirstSend != null) {
+				final Runnable runnable = onFirstSend;
+				onFirstSend = null;
+				runnable.run();
+			}
+		}
+	}
+	
+	private ServiceServer serviceServer;
+	private RecordingRemoteClient client;
+	private OutboundScheduler scheduler;
+	
+	protected void setUp() throws Exception {
+		serviceServer = new ServiceServer(new LoopbackServer());
+		client = new RecordingRemoteClient();
+		scheduler = new OutboundScheduler(client);
+	}
+	
+	private void queue(Service service, int count) {
+		for (int i = 0; i < count; ++i) {
+			scheduler.send(service, new OutboundScheduler.Frame(
+					new ServiceDataPacket(service.getId(), new byte[OutboundScheduler.QUANTUM]), null, null));
+		}
+	}
+	
+	/** Services share the connection by their weights, control packets go first */
+	public void testWeights() {
+		final Service light = serviceServer.newService(1);
+		final Service heavy = serviceServer.newService(2);
+		
+		heavy.setWeight(3);
+		
+		client.onFirstSend = new Runnable() {
+			public void run() {
+				queue(light, 4);
+				queue(heavy, 4);
+				scheduler.sendControl("control");
+			}
+		};
+		
+		scheduler.sendControl("first");
+		
+		assertEquals("[first, control, 1, 2, 2, 2, 1, 2, 1, 1]", client.sent.toString());
+		assertEquals(0, scheduler.size());
+	}
+	
+	/** Higher priority is always sent first */
+	public void testPriority() {
+		final Service bulk = serviceServer.newService(1);
+		final Service urgent = serviceServer.newService(2);
+		
+		urgent.setPriority(1);
+		
+		client.onFirstSend = new Runnable() {
+			public void run() {
+				queue(bulk, 2);
+				queue(urgent, 2);
+			}
+		};
+		
+		scheduler.sendControl("first");
+		
+		assertEquals("[first, 2, 2, 1, 1]", client.sent.toString());
+	}
+	
+	/** Queued control packets wait for the flush */
+	public void testQueueControl() {
+		scheduler.queueControl("first");
+		scheduler.queueControl("second");
+		assertTrue(client.sent.isEmpty());
+		
+		scheduler.flush();
+		
+		assertEquals("[first, second]", client.sent.toString());
+		assertEquals(0, scheduler.size());
+	}
+	
+}
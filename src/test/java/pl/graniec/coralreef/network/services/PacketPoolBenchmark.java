@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.io.NotSerializableException;
+import java.lang.management.ManagementFactory;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.exceptions.NetworkException;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.server.Server;
+
+/**
+ * Compares bytes allocated by {@link ServiceRemoteClient#send(Object)}
+ * with and without packet pooling. Run it from command line:
+ * <pre>
+ * java pl.graniec.coralreef.network.services.PacketPoolBenchmark [messages]
+ * </pre>
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class PacketPoolBenchmark {
+
+	/** Server that is never opened */
+	private static class NullServer implements Server {
+		public boolean addConnectionListener(ConnectionListener l) { return true; }
+		public void close() {}
+		public int getPort() { return 0; }
+		public boolean isOpen() { return false; }
+		public void open(int port) throws NetworkException {}
+		public boolean removeConnectionListener(ConnectionListener l) { return true; }
+	}
+	
+	/** Client that drops everything that is sent */
+	private static class NullRemoteClient implements RemoteClient {
+		/** Keeps the packet reachable like a real transport would */
+		volatile Object last;
+		
+		public boolean addPacketListener(PacketListener l) { return true; }
+		public void disconnect() {}
+		public boolean isConnected() { return true; }
+		public boolean removePacketListener(PacketListener l) { return true; }
+		public void send(Object data) throws NotSerializableException, NetworkException { last = data; }
+	}
+	
+	public static void main(String[] args) throws Exception {
+		final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		
+		final ServiceServer serviceServer = new ServiceServer(new NullServer());
+		final ServiceRemoteClient client = new ServiceRemoteClient(serviceServer, 1, new NullRemoteClient());
+		final Object payload = "payload";
+		
+		// warm up both paths
+		run(client, payload, messages);
+		serviceServer.setPacketPooling(true);
+		run(client, payload, messages);
+		
+		serviceServer.setPacketPooling(false);
+		final long plain = run(client, payload, messages);
+		
+		serviceServer.setPacketPooling(true);
+		final long pooled = run(client, payload, messages);
+		
+		System.out.println("messages:        " + messages);
+		System.out.println("default (bytes): " + plain + " (" + (plain / messages) + " per message)");
+		System.out.println("pooled (bytes):  " + pooled + " (" + (pooled / messages) + " per message)");
+	}
+	
+	private static long run(ServiceRemoteClient client, Object payload, int messages) throws Exception {
+		final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+		
+		final long before = threads.getThreadAllocatedBytes(threadId);
+		
+		for (int i = 0; i < messages; ++i) {
+			client.send(payload);
+		}
+		
+		return threads.getThreadAllocatedBytes(threadId) - before;
+	}
+}
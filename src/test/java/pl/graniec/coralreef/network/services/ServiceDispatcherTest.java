@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class ServiceDispatcherTest extends TestCase {
+
+	/** Tasks over the capacity are refused */
+	public void testCapacity() throws Exception {
+		final ServiceDispatcher dispatcher = new ServiceDispatcher("test", 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		
+		assertTrue(dispatcher.dispatch(new Runnable() {
+			public void run() {
+				started.countDown();
+				
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					// test ends
+				}
+			}
+		}));
+		
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(dispatcher.dispatch(new Runnable() { public void run() {} }));
+		assertTrue(dispatcher.dispatch(new Runnable() { public void run() {} }));
+		assertFalse(dispatcher.dispatch(new Runnable() { public void run() {} }));
+		assertEquals(2, dispatcher.getQueueDepth());
+		
+		release.countDown();
+		dispatcher.shutdown();
+	}
+	
+	/** Tasks dispatched after shutdown never run on two threads at once */
+	public void testRestart() throws Exception {
+		final ServiceDispatcher dispatcher = new ServiceDispatcher("test");
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(100);
+		
+		final Runnable task = new Runnable() {
+			public void run() {
+				if (running.incrementAndGet() > 1) {
+					overlaps.incrementAndGet();
+				}
+				
+				Thread.yield();
+				running.decrementAndGet();
+				done.countDown();
+			}
+		};
+		
+		for (int i = 0; i < 100; ++i) {
+			dispatcher.dispatch(task);
+			
+			if (i % 10 == 0) {
+				dispatcher.shutdown();
+			}
+		}
+		
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		
+		dispatcher.shutdown();
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TokenBucketTest extends TestCase {
+
+	/** Burst is allowed at once, then one token per interval */
+	public void testTryAcquire() {
+		final TokenBucket bucket = new TokenBucket(new RateLimit(10, 3, RateLimit.DROP));
+		final long now = System.nanoTime() + 1000000000L;
+		
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		
+		// 100ms later there is one token more
+		assertTrue(bucket.tryAcquire(now + 100000000L));
+		assertFalse(bucket.tryAcquire(now + 100000000L));
+	}
+	
+	/** Reservations over the burst must wait */
+	public void testReserve() {
+		final TokenBucket bucket = new TokenBucket(new RateLimit(10, 1, RateLimit.DELAY));
+		final long now = System.nanoTime() + 1000000000L;
+		
+		assertEquals(0, bucket.reserve(now));
+		assertEquals(100000000L, bucket.reserve(now));
+		assertEquals(200000000L, bucket.reserve(now));
+	}
+	
+	/** Reservations that would wait too long take no token */
+	public void testReserveMaxWait() {
+		final TokenBucket bucket = new TokenBucket(new RateLimit(10, 1, RateLimit.DELAY));
+		final long now = System.nanoTime() + 1000000000L;
+		
+		assertEquals(0, bucket.reserve(now, 150000000L));
+		assertEquals(100000000L, bucket.reserve(now, 150000000L));
+		assertEquals(-1, bucket.reserve(now, 150000000L));
+		assertEquals(-1, bucket.reserve(now, 150000000L));
+		assertEquals(200000000L, bucket.reserve(now));
+	}
+	
+	/** Refunded token can be taken again */
+	public void testRefund() {
+		final TokenBucket bucket = new TokenBucket(new RateLimit(10, 1, RateLimit.DROP));
+		final long now = System.nanoTime() + 1000000000L;
+		
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		
+		bucket.refund();
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+	}
+
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.capture;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.Service;
+import pl.graniec.coralreef.network.services.ServiceServer;
+import pl.graniec.coralreef.network.services.loopback.LoopbackClient;
+import pl.graniec.coralreef.network.services.loopback.LoopbackServer;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinPacket;
+import pl.graniec.coralreef.network.services.packets.ServicePacket;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TrafficCaptureTest extends TestCase {
+
+	private File log;
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		log = File.createTempFile("traffic", ".log");
+	}
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	protected void tearDown() throws Exception {
+		log.delete();
+	}
+	
+	/** Data received by service */
+	private List serve(ServiceServer serviceServer) {
+		final List received = new ArrayList();
+		final Service service = serviceServer.newService(10);
+		
+		service.addConnectionListener(new ConnectionListener() {
+			public void clientConnected(RemoteClient client) {
+				client.addPacketListener(new PacketListener() {
+					public void packetReceived(Object data) {
+						received.add(data);
+					}
+				});
+			}
+			
+			public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+			}
+		});
+		
+		return received;
+	}
+	
+	/** Recorded session is replayed to a fresh server */
+	public void testRecordAndReplay() throws Exception {
+		final LoopbackServer server = new LoopbackServer(true);
+		final ServiceServer serviceServer = new ServiceServer(server);
+		final TrafficRecorder recorder = new TrafficRecorder(log, 4096);
+		
+		serve(serviceServer);
+		serviceServer.open(0);
+		serviceServer.setTrafficRecorder(recorder);
+		
+		final LoopbackClient client = server.connect();
+		client.send(new ServiceJoinPacket(new int[] {10}));
+		client.send(new ServiceDataPacket(10, "first"));
+		client.send(new ServiceDataPacket(10, "second"));
+		client.disconnect();
+		
+		recorder.close();
+		serviceServer.close();
+		
+		assertEquals(0, recorder.getDroppedCount());
+		
+		// connect, join, join response, two data packets, disconnect
+		final TrafficLogReader reader = new TrafficLogReader(log);
+		final List records = new ArrayList();
+		
+		TrafficRecord record;
+		while ((record = reader.next()) != null) {
+			records.add(record);
+		}
+		
+		reader.close();
+		
+		assertEquals(6, records.size());
+		assertEquals(TrafficRecorder.TYPE_CONNECT, ((TrafficRecord) records.get(0)).getPacketType());
+		assertEquals(TrafficRecorder.OUTBOUND, ((TrafficRecord) records.get(2)).getDirection());
+		assertEquals(10, ((TrafficRecord) records.get(3)).getServiceId());
+		assertEquals("first", ((ServiceDataPacket) ((TrafficRecord) records.get(3)).getPacket()).getData());
+		
+		final LoopbackServer replayServer = new LoopbackServer(true);
+		final ServiceServer replayServiceServer = new ServiceServer(replayServer);
+		final List received = serve(replayServiceServer);
+		replayServiceServer.open(0);
+		
+		assertEquals(3, new TrafficReplayer(replayServer).replay(log, 0));
+		assertEquals(2, received.size());
+		assertEquals("second", received.get(1));
+		
+		replayServiceServer.close();
+	}
+	
+	/** Records that don't fit into the ring are dropped, not waited for */
+	public void testFullRing() throws Exception {
+		final TrafficRecorder recorder = new TrafficRecorder(log, 64);
+		
+		// keep the flusher from emptying the ring in between
+		recorder.flushPaused = true;
+		assertTrue(recorder.record(TrafficRecorder.INBOUND, 1, 10, ServicePacket.TYPE_DATA, new byte[32]));
+		assertFalse(recorder.record(TrafficRecorder.INBOUND, 1, 10, ServicePacket.TYPE_DATA, new byte[32]));
+		
+		recorder.close();
+		
+		assertEquals(1, recorder.getDroppedCount());
+		assertEquals(1, recorder.getRecordedCount());
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.codecs;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class TaggedFieldCodecTest extends TestCase {
+
+	TaggedFieldCodec codec;
+	
+	/* (non-Javadoc)
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	protected void setUp() throws Exception {
+		super.setUp();
+		
+		codec = new TaggedFieldCodec();
+	}
+	
+	/** All value types survive encoding */
+	public void testRoundTrip() throws IOException {
+		final Map nested = new HashMap();
+		nested.put(Integer.valueOf(0), "nested");
+		
+		final Map payload = new HashMap();
+		payload.put(Integer.valueOf(1), Boolean.TRUE);
+		payload.put(Integer.valueOf(2), Integer.valueOf(-5));
+		payload.put(Integer.valueOf(3), Long.valueOf(Long.MIN_VALUE));
+		payload.put(Integer.valueOf(4), new Float(1.5f));
+		payload.put(Integer.valueOf(5), new Double(-2.25));
+		payload.put(Integer.valueOf(6), "za\u017c\u00f3\u0142\u0107");
+		payload.put(Integer.valueOf(300), nested);
+		
+		final Map decoded = (Map) codec.decode(codec.encode(payload));
+		
+		assertEquals(payload, decoded);
+	}
+	
+	/** Small values take single bytes */
+	public void testCompact() throws IOException {
+		final Map payload = new HashMap();
+		payload.put(Integer.valueOf(1), Integer.valueOf(-1));
+		
+		// count, tag, type, value
+		assertEquals(4, codec.encode(payload).length);
+	}
+	
+	/** Truncated input is rejected */
+	public void testTruncated() throws IOException {
+		final Map payload = new HashMap();
+		payload.put(Integer.valueOf(1), "some text");
+		
+		final byte[] bytes = codec.encode(payload);
+		final byte[] truncated = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		
+		try {
+			codec.decode(truncated);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2009, Coral Reef Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of the Coral Reef Project nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package pl.graniec.coralreef.network.services.loopback;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import pl.graniec.coralreef.network.PacketListener;
+import pl.graniec.coralreef.network.server.ConnectionListener;
+import pl.graniec.coralreef.network.server.RemoteClient;
+import pl.graniec.coralreef.network.services.Service;
+import pl.graniec.coralreef.network.services.ServiceServer;
+import pl.graniec.coralreef.network.services.packets.ServiceDataPacket;
+import pl.graniec.coralreef.network.services.packets.ServiceJoinPacket;
+
+/**
+ * Drives a {@link ServiceServer} on {@link LoopbackServer} with many
+ * virtual clients and reports throughput, latency and heap usage.
+ * Every service echoes data back to the sender and the latency is
+ * measured from send to echo.
+ * <p>
+ * Parameters are given as <code>name=value</code> arguments:
+ * <ul>
+ * <li><code>clients</code> - number of virtual clients (10000)</li>
+ * <li><code>services</code> - number of services (20)</li>
+ * <li><code>join</code> - <code>all</code>, <code>single</code> or
+ * <code>random:N</code> services joined by every client (single)</li>
+ * <li><code>messages</code> - messages sent by every client (100)</li>
+ * <li><code>rate</code> - messages per second of every client, 0 for
+ * no limit (0)</li>
+ * <li><code>threads</code> - number of sending threads (number of processors)</li>
+ * <li><code>payload</code> - payload size in bytes (64)</li>
+ * <li><code>serializing</code> - copy packets through serialization (false)</li>
+ * </ul>
+ * 
+ * @author Piotr Korzuszek <piotr.korzuszek@gmail.com>
+ *
+ */
+public class LoadSimulator {
+
+	/** Latencies measured by one sending thread */
+	private static class LatencyRecorder {
+		final long[] samples;
+		int count;
+		
+		public LatencyRecorder(int capacity) {
+			samples = new long[capacity];
+		}
+		
+		void record(long latency) {
+			if (count < samples.length) {
+				samples[count++] = latency;
+			}
+		}
+	}
+	
+	private int clients = 10000;
+	private int services = 20;
+	private String join = "single";
+	private int messages = 100;
+	private int rate = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int payload = 64;
+	private boolean serializing = false;
+	
+	public static void main(String[] args) throws Exception {
+		final LoadSimulator simulator = new LoadSimulator();
+		
+		for (int i = 0; i < args.length; ++i) {
+			simulator.set(args[i]);
+		}
+		
+		simulator.run();
+	}
+	
+	private void set(String arg) {
+		final int eq = arg.indexOf('=');
+		
+		if (eq < 0) {
+			throw new IllegalArgumentException("expected name=value, got " + arg);
+		}
+		
+		final String name = arg.substring(0, eq);
+		final String value = arg.substring(eq + 1);
+		
+		if (name.equals("clients")) {
+			clients = Integer.parseInt(value);
+		} else if (name.equals("services")) {
+			services = Integer.parseInt(value);
+		} else if (name.equals("join")) {
+			join = value;
+		} else if (name.equals("messages")) {
+			messages = Integer.parseInt(value);
+		} else if (name.equals("rate")) {
+			rate = Integer.parseInt(value);
+		} else if (name.equals("threads")) {
+			threads = Integer.parseInt(value);
+		} else if (name.equals("payload")) {
+			payload = Integer.parseInt(value);
+		} else if (name.equals("serializing")) {
+			serializing = Boolean.valueOf(value).booleanValue();
+		} else {
+			throw new IllegalArgumentException("unknown parameter " + name);
+		}
+	}
+	
+	private void run() throws Exception {
+		final LoopbackServer server = new LoopbackServer(serializing);
+		final ServiceServer serviceServer = new ServiceServer(server);
+		
+		serviceServer.open(0);
+		
+		// every service echoes data to the sender
+		for (int i = 0; i < services; ++i) {
+			final Service service = serviceServer.newService(i);
+			
+			service.addConnectionListener(new ConnectionListener() {
+				public void clientConnected(final RemoteClient client) {
+					client.addPacketListener(new PacketListener() {
+						public void packetReceived(Object data) {
+							try {
+								client.send(data);
+							} catch (Exception e) {
+								throw new RuntimeException(e);
+							}
+						}
+					});
+				}
+				
+				public void clientDisconnected(RemoteClient client, int reason, String reasonString) {
+				}
+			});
+		}
+		
+		// connect and join
+		final LoopbackClient[] virtualClients = new LoopbackClient[clients];
+		final int[][] joined = new int[clients][];
+		final LatencyRecorder[] recorders = new LatencyRecorder[threads];
+		final Random random = new Random(0);
+		
+		for (int t = 0; t < threads; ++t) {
+			recorders[t] = new LatencyRecorder((clients / threads + 1) * messages);
+		}
+		
+		final long heapEmpty = usedHeap();
+		final long connectStart = System.nanoTime();
+		
+		for (int i = 0; i < clients; ++i) {
+			final LatencyRecorder recorder = recorders[i % threads];
+			
+			virtualClients[i] = server.connect();
+			virtualClients[i].addPacketListener(new PacketListener() {
+				public void packetReceived(Object data) {
+					if (data instanceof ServiceDataPacket) {
+						final long[] probe = (long[]) ((ServiceDataPacket) data).getData();
+						recorder.record(System.nanoTime() - probe[0]);
+					}
+				}
+			});
+			
+			joined[i] = joinPattern(i, random);
+			virtualClients[i].send(new ServiceJoinPacket(joined[i]));
+		}
+		
+		final long connectTime = System.nanoTime() - connectStart;
+		final long heapJoined = usedHeap();
+		
+		// send messages
+		final Thread[] workers = new Thread[threads];
+		final long sendStart = System.nanoTime();
+		
+		for (int t = 0; t < threads; ++t) {
+			final int first = t;
+			
+			workers[t] = new Thread("LoadSimulator-" + t) {
+				public void run() {
+					try {
+						sendMessages(virtualClients, joined, first);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			
+			workers[t].start();
+		}
+		
+		for (int t = 0; t < threads; ++t) {
+			workers[t].join();
+		}
+		
+		final long sendTime = System.nanoTime() - sendStart;
+		
+		// merge latencies
+		int total = 0;
+		for (int t = 0; t < threads; ++t) {
+			total += recorders[t].count;
+		}
+		
+		final long[] latencies = new long[total];
+		int offset = 0;
+		for (int t = 0; t < threads; ++t) {
+			System.arraycopy(recorders[t].samples, 0, latencies, offset, recorders[t].count);
+			offset += recorders[t].count;
+		}
+		
+		Arrays.sort(latencies);
+		
+		System.out.println("clients:            " + clients);
+		System.out.println("services:           " + services + " (join " + join + ")");
+		System.out.println("threads:            " + threads);
+		System.out.println("connect and join:   " + (connectTime / 1000000L) + " ms");
+		System.out.println("messages echoed:    " + total);
+		System.out.println("throughput:         " + (long) (total / (sendTime / 1e9)) + " msg/s");
+		System.out.println("latency p50:        " + percentile(latencies, 0.50) + " us");
+		System.out.println("latency p99:        " + percentile(latencies, 0.99) + " us");
+		System.out.println("latency p999:       " + percentile(latencies, 0.999) + " us");
+		System.out.println("heap for clients:   " + ((heapJoined - heapEmpty) / 1024) + " KB");
+		System.out.println("heap per client:    " + ((heapJoined - heapEmpty) / Math.max(1, clients)) + " B");
+		
+		serviceServer.close();
+	}
+	
+	private void sendMessages(LoopbackClient[] virtualClients, int[][] joined, int first) throws Exception {
+		final long roundInterval = rate > 0 ? 1000000000L / rate : 0;
+		long nextRound = System.nanoTime();
+		
+		for (int m = 0; m < messages; ++m) {
+			for (int i = first; i < virtualClients.length; i += threads) {
+				final long[] probe = new long[Math.max(1, payload / 8)];
+				final int[] services = joined[i];
+				
+				if (services.length == 0) {
+					continue;
+				}
+				
+				probe[0] = System.nanoTime();
+				virtualClients[i].send(new ServiceDataPacket(services[m % services.length], probe));
+			}
+			
+			if (roundInterval > 0) {
+				nextRound += roundInterval;
+				
+				final long wait = nextRound - System.nanoTime();
+				
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				}
+			}
+		}
+	}
+	
+	private int[] joinPattern(int client, Random random) {
+		if (join.equals("all")) {
+			final int[] ids = new int[services];
+			for (int i = 0; i < services; ++i) {
+				ids[i] = i;
+			}
+			return ids;
+		}
+		
+		if (join.equals("single")) {
+			return new int[] { client % services };
+		}
+		
+		if (join.startsWith("random:")) {
+			final int[] ids = new int[Math.min(services, Integer.parseInt(join.substring(7)))];
+			for (int i = 0; i < ids.length; ++i) {
+				ids[i] = random.nextInt(services);
+			}
+			return ids;
+		}
+		
+		throw new IllegalArgumentException("unknown join pattern " + join);
+	}
+	
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000L;
+	}
+	
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+		}
+		
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}